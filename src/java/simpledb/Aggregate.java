@@ -5,18 +5,27 @@ import java.util.*;
 import simpledb.Aggregator.Op;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by zero or more columns.  All the aggregates are computed in
+ * one pass over the child by a {@link GroupAggregator}, which spills partial
+ * groups to partition files when there are more than fit in the memory
+ * budget.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for the groups, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+    private static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
     private OpIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
-    private Aggregator ag;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private TupleDesc td;
+    private GroupAggregator ag;
     private OpIterator op;
     
     /**
@@ -39,15 +48,85 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+    	this(child, new int[] {afield},
+    			gfield==Aggregator.NO_GROUPING?new int[0]:new int[] {gfield},
+    			new Aggregator.Op[] {aop});
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by key.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates, one per
+     *            aggregate.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operators to use, one per aggregate
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
     	this.child=child;
-    	this.afield=afield;
-    	this.gfield=gfield;
-    	this.aop=aop;
-    	if(child.getTupleDesc().getFieldType(afield)==Type.INT_TYPE)
-    		ag=new IntegerAggregator(gfield, gfield==-1?null:child.getTupleDesc().getFieldType(gfield), afield, aop);
-    	else
-    		ag=new StringAggregator(gfield, gfield==-1?null:child.getTupleDesc().getFieldType(gfield), afield, aop);
+    	this.afields=afields.clone();
+    	this.gfields=gfields.clone();
+    	this.aops=aops.clone();
+    	ag=newAggregator();
     	op=null;
+    	TupleDesc ctd=child.getTupleDesc();
+    	Type type[]=new Type[gfields.length+afields.length];
+    	String name[]=new String[type.length];
+    	for(int i=0;i<gfields.length;++i) {
+    		type[i]=ctd.getFieldType(gfields[i]);
+    		name[i]=ctd.getFieldName(gfields[i]);
+    	}
+    	for(int i=0;i<afields.length;++i) {
+    		type[gfields.length+i]=Type.INT_TYPE;
+    		name[gfields.length+i]=aops[i].toString()+"("+ctd.getFieldName(afields[i])+")";
+    	}
+    	td=new TupleDesc(type,name);
+    }
+
+    /**
+     * Set the number of bytes of groups an Aggregate keeps in memory before
+     * it spills to partition files.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Returns true if the last open() had to spill groups to disk. */
+    public boolean isSpilled() {
+        return getSpillCount() > 0;
+    }
+
+    /**
+     * @return the number of times the last open() wrote groups out to
+     *         partition files, counting repartitioning
+     */
+    public int getSpillCount() {
+        return ag.getSpillCount();
+    }
+
+    /** @return the number of bytes the last open() wrote to partition files */
+    public long getSpilledBytes() {
+        return ag.getSpilledBytes();
+    }
+
+    private GroupAggregator newAggregator() {
+    	TupleDesc ctd=child.getTupleDesc();
+    	Type gtypes[]=new Type[gfields.length];
+    	for(int i=0;i<gfields.length;++i)
+    		gtypes[i]=ctd.getFieldType(gfields[i]);
+    	Type atypes[]=new Type[afields.length];
+    	for(int i=0;i<afields.length;++i)
+    		atypes[i]=ctd.getFieldType(afields[i]);
+    	return new GroupAggregator(gfields, gtypes, afields, atypes, aops);
     }
 
     /**
@@ -57,7 +136,15 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
 	// some code goes here
-	return gfield;
+	return gfields.length==0?Aggregator.NO_GROUPING:gfields[0];
+    }
+
+    /**
+     * @return the groupby field indexes in the <b>INPUT</b> tuples; empty if
+     *         there is no group by
+     * */
+    public int[] groupFields() {
+	return gfields.clone();
     }
 
     /**
@@ -67,7 +154,7 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-	return child.getTupleDesc().getFieldName(gfield);
+	return gfields.length==0?null:td.getFieldName(0);
     }
 
     /**
@@ -75,7 +162,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-	return afield;
+	return afields[0];
+    }
+
+    /**
+     * @return the aggregate fields, one per aggregate
+     * */
+    public int[] aggregateFields() {
+	return afields.clone();
     }
 
     /**
@@ -84,7 +178,7 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	return child.getTupleDesc().getFieldName(afield);
+	return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -92,7 +186,14 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	return aop;
+	return aops[0];
+    }
+
+    /**
+     * @return the aggregate operators, one per aggregate
+     * */
+    public Aggregator.Op[] aggregateOps() {
+	return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -102,7 +203,10 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
+    	if(op!=null)
+    		op.close();
     	this.child.open();
+    	ag=newAggregator();
     	while(child.hasNext()) {
     		ag.mergeTupleIntoGroup(child.next());
     	}
@@ -120,18 +224,13 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-    	Tuple res=new Tuple(getTupleDesc());
-    	while(op.hasNext()) {
-    		Tuple tmp=op.next();
-    		if(gfield!=-1) {
-    			res.setField(0, tmp.getField(0));
-    			res.setField(1, tmp.getField(1));
-    		}else {
-    			res.setField(0, tmp.getField(0));
-    		}
-    		return res;
-    	}	
-    	return null;
+    	if(!op.hasNext())
+    		return null;
+    	Tuple tmp=op.next();
+    	Tuple res=new Tuple(td);
+    	for(int i=0;i<td.numFields();++i)
+    		res.setField(i, tmp.getField(i));
+    	return res;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -140,10 +239,8 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by columns, if any,
+     * followed by one column per aggregate.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -152,21 +249,14 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-    	Type type[];
-    	String name[];
-    	if(gfield!=-1) {
-    		type=new Type[] {child.getTupleDesc().getFieldType(gfield),Type.INT_TYPE};
-    		name=new String[] {child.getTupleDesc().getFieldName(gfield),aop.toString()+"("+child.getTupleDesc().getFieldName(afield)+")"};
-    	}else {
-    		type=new Type[] {Type.INT_TYPE};
-    		name=new String[] {aop.toString()+"("+child.getTupleDesc().getFieldName(afield)+")"};
-    	}
-    	return new TupleDesc(type,name);
+    	return td;
     }
 
     public void close() {
 	// some code goes here
     	super.close();
+    	if(op!=null)
+    		op.close();
     	op=null;
     	child.close();
     }
@@ -0,0 +1,317 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import simpledb.Predicate.Op;
+
+/**
+ * BTreeBulkLoader builds a B+ tree file bottom-up from tuples that arrive in
+ * key order, in one pass and with bounded memory.  Leaf pages are filled to
+ * the fill factor and written as they fill; each one written adds an entry
+ * to the internal page being filled one level up, and so on up to the root.
+ * <p>
+ * Page numbers are handed out when a page is started, so a page's right
+ * sibling is known once the next one starts, and its parent once it is
+ * added to one.  Each level holds back its last full page until the next
+ * one fills, and at the end the last two pages of each level share their
+ * contents, so the last one is not left nearly empty.  An internal page's
+ * high key is the key pushed up between it and its right sibling.  Memory
+ * is two pages per level, whatever the input size.
+ * <p>
+ * Input that is not sorted can be run through an external sort first,
+ * see {@link #sortAndLoad}.
+ *
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkLoader {
+
+	/** Default fill factor: pages are filled completely. */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	private final FileChannel channel;
+	private final TupleDesc td;
+	private final int keyField;
+	private final int tableid;
+	private final int pageSize = BufferPool.getPageSize();
+	private final int leafCapacity;
+	private final int leafMinimum;
+	private final int internalCapacity; // keys per internal page
+	private final int internalMinimum;
+
+	private final ArrayList<Level> levels = new ArrayList<Level>();
+	private int nextPage = 1; // page 0 is the root pointer
+	private Field lastKey = null;
+	private boolean finished = false;
+
+	/** A page under construction. */
+	private static class Node {
+		final int pageNo;
+		// the key separating this page from its left sibling: the first key for
+		// a leaf, the key pushed up for an internal page; null for the left-most
+		Field lowKey;
+		// the low key of the right sibling of an internal page; null for the right-most
+		Field highKey;
+		final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		final ArrayList<Field> keys = new ArrayList<Field>();
+		final ArrayList<Integer> children = new ArrayList<Integer>();
+		int leftSibling = 0;
+		int rightSibling = 0;
+
+		Node(int pageNo) {
+			this.pageNo = pageNo;
+		}
+	}
+
+	/** The pages of one level of the tree that are not written yet. */
+	private static class Level {
+		final int category;
+		Node open;    // the page being filled
+		Node pending; // the full page before it, held back for the end
+
+		Level(int category) {
+			this.category = category;
+		}
+	}
+
+	/**
+	 * Start a B+ tree in file f, replacing its contents.
+	 *
+	 * @param f - the file to write the B+ tree to
+	 * @param td - the tuple descriptor of the tuples
+	 * @param keyField - the index of the field the tree is keyed on
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1;
+	 *   lower values leave room for inserts before pages split
+	 */
+	public BTreeBulkLoader(File f, TupleDesc td, int keyField, double fillFactor) throws IOException {
+		if(fillFactor < 0.5 || fillFactor > 1.0)
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1: " + fillFactor);
+		this.td = td;
+		this.keyField = keyField;
+		this.tableid = f.getAbsoluteFile().hashCode();
+
+		int leafMax = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		int keySize = td.getFieldType(keyField).getLen();
+		int internalMax = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8 - keySize * 8 - 8 - 1)
+				/ (keySize * 8 + BTreePage.INDEX_SIZE * 8 + 1);
+		this.leafCapacity = Math.max(1, (int) (leafMax * fillFactor));
+		this.leafMinimum = leafMax / 2;
+		this.internalMinimum = internalMax / 2;
+		// one over the minimum, so the page before the last of a level can
+		// always spare the last one a key
+		this.internalCapacity = Math.max(internalMinimum + 1, (int) (internalMax * fillFactor));
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Add the next tuple.
+	 * @throws DbException if t's key is less than the key of the tuple added before it
+	 */
+	public void add(Tuple t) throws DbException, IOException {
+		if(finished)
+			throw new IllegalStateException("bulk load already finished");
+		Field key = t.getField(keyField);
+		if(lastKey != null && key.compare(Op.LESS_THAN, lastKey))
+			throw new DbException("bulk load input is not sorted: " + key + " after " + lastKey);
+		lastKey = key;
+
+		Level leaves = level(0);
+		if(leaves.open == null)
+			leaves.open = new Node(nextPage++);
+		else if(leaves.open.tuples.size() == leafCapacity)
+			startNext(0);
+		leaves.open.tuples.add(t);
+	}
+
+	/**
+	 * Write the remaining pages and the root pointer, and close the file.
+	 * @return the number of pages written, not counting the root pointer
+	 */
+	public int finish() throws IOException {
+		if(finished)
+			throw new IllegalStateException("bulk load already finished");
+		finished = true;
+		try {
+			Level leaves = level(0);
+			if(leaves.open == null)
+				leaves.open = new Node(nextPage++);
+
+			// levels.size() grows as lower levels add their last pages
+			int root = 0;
+			for(int i = 0; i < levels.size(); i++) {
+				Level l = levels.get(i);
+				evenOut(i);
+				if(l.pending != null) {
+					emit(i, l.pending);
+					l.pending = null;
+				}
+				if(i + 1 < levels.size()) {
+					emit(i, l.open);
+				}
+				else {
+					write(l, l.open, 0);
+					root = l.open.pageNo;
+				}
+				l.open = null;
+			}
+			int rootCategory = levels.get(levels.size() - 1).category;
+			write(0, BTreeFileEncoder.convertToRootPtrPage(root, rootCategory, 0));
+			return nextPage - 1;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Load the tuples of sorted, which must come in key order, into a new
+	 * B+ tree in f.  The file is not added to the catalog.
+	 */
+	public static BTreeFile load(OpIterator sorted, File f, int keyField, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, sorted.getTupleDesc(), keyField, fillFactor);
+		sorted.open();
+		try {
+			while(sorted.hasNext())
+				loader.add(sorted.next());
+		} finally {
+			sorted.close();
+		}
+		loader.finish();
+		return new BTreeFile(f, keyField, sorted.getTupleDesc());
+	}
+
+	/**
+	 * Sort the tuples of child on keyField with an {@link OrderBy}, which
+	 * spills sorted runs to disk past its memory budget, and load them into a
+	 * new B+ tree in f.  The file is not added to the catalog.
+	 */
+	public static BTreeFile sortAndLoad(OpIterator child, File f, int keyField, double fillFactor)
+			throws DbException, TransactionAbortedException, IOException {
+		return load(new OrderBy(keyField, true, child), f, keyField, fillFactor);
+	}
+
+	private Level level(int i) {
+		while(levels.size() <= i)
+			levels.add(new Level(levels.isEmpty() ? BTreePageId.LEAF : BTreePageId.INTERNAL));
+		return levels.get(i);
+	}
+
+	/**
+	 * The open page of level i is full: hold it back and start the next one,
+	 * adding the page held back before it to the level above.
+	 */
+	private void startNext(int i) throws IOException {
+		Level l = levels.get(i);
+		Node full = l.open;
+		Node next = new Node(nextPage++);
+		full.rightSibling = next.pageNo;
+		next.leftSibling = full.pageNo;
+		if(l.pending != null)
+			emit(i, l.pending);
+		l.pending = full;
+		l.open = next;
+	}
+
+	/**
+	 * Add page n of level i to the level above as its parent's next child,
+	 * then write it out now that its parent is known.
+	 */
+	private void emit(int i, Node n) throws IOException {
+		Level l = levels.get(i);
+		Field sep = l.category == BTreePageId.LEAF ? n.tuples.get(0).getField(keyField) : n.lowKey;
+		Level up = level(i + 1);
+		if(up.open == null) {
+			up.open = new Node(nextPage++);
+		}
+		else if(up.open.keys.size() == internalCapacity) {
+			startNext(i + 1);
+			up.open.lowKey = sep;
+			up.pending.highKey = sep;
+			sep = null;
+		}
+		if(sep != null && !up.open.children.isEmpty())
+			up.open.keys.add(sep);
+		up.open.children.add(n.pageNo);
+		write(l, n, up.open.pageNo);
+	}
+
+	/**
+	 * Share the contents of the last two pages of level i evenly, so the last
+	 * one is not left nearly empty, but keep the page before the last at least
+	 * half full: below a fill factor of 1, the last page gets what it can
+	 * spare and may stay under half full if the level ends on a short page.
+	 */
+	private void evenOut(int i) throws IOException {
+		Level l = levels.get(i);
+		Node p = l.pending, q = l.open;
+		if(p == null)
+			return;
+		if(l.category == BTreePageId.LEAF) {
+			int total = p.tuples.size() + q.tuples.size();
+			int keep = Math.max(total / 2, Math.min(p.tuples.size(), leafMinimum));
+			List<Tuple> tail = p.tuples.subList(keep, p.tuples.size());
+			q.tuples.addAll(0, tail);
+			tail.clear();
+		}
+		else {
+			// the keys of both pages and the one between them; p keeps the
+			// first half, the middle one goes up and q gets the rest
+			int total = p.keys.size() + 1 + q.keys.size();
+			int c = p.children.size();
+			int m = p.keys.size() - Math.max(total / 2, internalMinimum);
+			if(m <= 0)
+				return;
+			List<Integer> children = p.children.subList(c - m, c);
+			ArrayList<Field> moved = new ArrayList<Field>(p.keys.subList(c - m, c - 1));
+			moved.add(q.lowKey);
+			q.keys.addAll(0, moved);
+			q.children.addAll(0, children);
+			q.lowKey = p.keys.get(c - m - 1);
+			p.highKey = q.lowKey;
+			// the moved children were written with p as their parent
+			for(int child : children)
+				write(pageOffset(child), ByteBuffer.allocate(BTreePage.INDEX_SIZE).putInt(0, q.pageNo).array());
+			children.clear();
+			p.keys.subList(c - m - 1, c - 1).clear();
+		}
+	}
+
+	private void write(Level l, Node n, int parent) throws IOException {
+		byte[] data;
+		if(l.category == BTreePageId.LEAF) {
+			Type[] types = new Type[td.numFields()];
+			for(int i = 0; i < types.length; i++)
+				types[i] = td.getFieldType(i);
+			data = BTreeFileEncoder.convertToLeafPage(n.tuples, pageSize, types.length, types, keyField);
+			ByteBuffer.wrap(data).putInt(0, parent).putInt(4, n.leftSibling).putInt(8, n.rightSibling);
+		}
+		else {
+			int childCategory = levels.get(levels.indexOf(l) - 1).category;
+			ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+			for(int k = 0; k < n.keys.size(); k++) {
+				entries.add(new BTreeEntry(n.keys.get(k),
+						new BTreePageId(tableid, n.children.get(k), childCategory),
+						new BTreePageId(tableid, n.children.get(k + 1), childCategory)));
+			}
+			data = BTreeFileEncoder.convertToInternalPage(entries, pageSize,
+					td.getFieldType(keyField), childCategory, n.rightSibling, n.highKey);
+			ByteBuffer.wrap(data).putInt(0, parent);
+		}
+		write(pageOffset(n.pageNo), data);
+	}
+
+	private long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * pageSize;
+	}
+
+	private void write(long pos, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while(buf.hasRemaining())
+			channel.write(buf, pos + buf.position());
+	}
+}
@@ -1,7 +1,14 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +18,14 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * The tree is a B-link tree: each internal page links to its right sibling on
+ * the same level and keeps a high key, the upper bound of the keys below it.
+ * Lookups and inserts descend without transaction locks on the root pointer and
+ * internal pages, reading each under a short page latch and following right
+ * links past splits they missed; only the leaf is locked.  Inserts and deletes
+ * hold a write latch on each internal page they change until they return,
+ * besides the transaction's write lock, which an abort needs.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -24,6 +39,24 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	// used for all writes; pages are appended an extent at a time
+	private volatile FileChannel channel;
+	private final ExtentAllocator extents = new ExtentAllocator(BTreeRootPtrPage.getPageSize());
+	// latches on the root pointer page and the internal pages, by page number;
+	// separate from the transaction locks on them, see findLeafPageOptimistic
+	private final ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches =
+			new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
+	// counts changes that a descent following right links cannot recover
+	// from: keys moving left or between parents, freed pages, and internal
+	// pages read back from disk, e.g. restored by an abort
+	private final AtomicLong restructures = new AtomicLong();
+	private final AtomicLong optimisticDescents = new AtomicLong();
+	private final AtomicLong coupledDescents = new AtomicLong();
+
+	// how long a descent waits for a latch before it locks its way down instead
+	private static final long LATCH_WAIT_MICROS = 200;
+	// bound on the pages a descent reads before it locks its way down instead
+	private static final int MAX_OPTIMISTIC_STEPS = 64;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -94,6 +127,12 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
+				if(p.getFormatVersion() != BTreeRootPtrPage.FORMAT_VERSION) {
+					throw new IllegalArgumentException("BTreeFile has format version "
+							+ p.getFormatVersion() + ", expected " + BTreeRootPtrPage.FORMAT_VERSION);
+				}
+				// a descent may have read the version of the page cached before
+				restructures.incrementAndGet();
 				return p;
 			}
 			else {
@@ -114,6 +153,7 @@ public class BTreeFile implements DbFile {
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					restructures.incrementAndGet();
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
@@ -148,24 +188,80 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			writePageData(id.getPageNumber(), data);
 		}
 	}
-	
+
+	// writes page pgno (counting from 1, after the root pointer)
+	private void writePageData(int pgno, byte[] data) throws IOException {
+		write(BTreeRootPtrPage.getPageSize() + (long) (pgno-1) * BufferPool.getPageSize(), data);
+		extents.written(pgno-1, channel());
+	}
+
+	private void write(long pos, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while(buf.hasRemaining())
+			channel().write(buf, pos + buf.position());
+	}
+
+	/**
+	 * Returns the channel of the backing file, opening it on first use or if
+	 * it was closed.
+	 */
+	private FileChannel channel() throws IOException {
+		FileChannel ch = channel;
+		if(ch != null && ch.isOpen())
+			return ch;
+		synchronized(this) {
+			if(channel == null || !channel.isOpen()) {
+				channel = new RandomAccessFile(f, "rw").getChannel();
+				extents.open(channel, referencedPages(channel));
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Returns the highest page number the root pointer page of the file
+	 * behind ch refers to.  An empty root leaf is all zeros on disk, so
+	 * those pages must be counted even if they end the file.
+	 */
+	private static int referencedPages(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(BTreeRootPtrPage.getPageSize());
+		while(buf.hasRemaining()) {
+			if(ch.read(buf, buf.position()) < 0)
+				return 0;
+		}
+		// root page number, its category, then the first header page number
+		return Math.max(buf.getInt(0), buf.getInt(5));
+	}
+
+	/**
+	 * Closes the backing file, giving back the unused part of the last
+	 * extent.  It is reopened if the index is used again.
+	 */
+	public synchronized void close() throws IOException {
+		if(channel != null) {
+			extents.trim(channel);
+			channel.close();
+		}
+		channel = null;
+	}
+
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return extents.numPages(channel());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -176,8 +272,8 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It locks the internal
 	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
 	 * leaf node with permission perm.
 	 * 
@@ -194,8 +290,47 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		return findLeafPage(tid, dirtypages, pid, perm, f, null);
+	}
+
+	/**
+	 * Descend from page pid to the leaf page possibly containing f, coupling the locks:
+	 * each internal page is locked only until its child is, unless this transaction
+	 * held a lock on it already.  Splits, merges and redistributions
+	 * still lock the pages they change until the transaction ends, since an abort
+	 * restores their before images; a page another transaction is descending
+	 * through only holds them up for one step.
+	 * 
+	 * @param coupled - a page locked to find pid, released once pid is locked; may be null
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+			Field f, BTreePageId coupled) 
+					throws DbException, TransactionAbortedException {
+		while(true) {
+			boolean held = dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+			Page p = getPage(tid, dirtypages, pid,
+					pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY);
+			releaseCoupled(tid, dirtypages, coupled);
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				coupledDescents.incrementAndGet();
+				return (BTreeLeafPage) p;
+			}
+			coupled = held ? null : pid;
+			pid = ((BTreeInternalPage) p).findChild(f);
+		}
+	}
+
+	/**
+	 * Release the lock on a page locked only to find a page below it, unless the
+	 * operation dirtied it since.
+	 * 
+	 * @param pid - the page to release; may be null
+	 */
+	private void releaseCoupled(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid) {
+		if(pid != null && !dirtypages.containsKey(pid)) {
+			Database.getBufferPool().releasePage(tid, pid);
+		}
 	}
 	
 	/**
@@ -216,6 +351,263 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Find and lock the left-most leaf page possibly containing f.  The descent
+	 * locks only the leaf page, see findLeafPageOptimistic; if that fails, it
+	 * lock-couples from the root pointer page on, which stays locked only until
+	 * the root is, unless this transaction held a lock on it already.  Used by
+	 * the BTreeFile iterators.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
+			throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, perm, f);
+		if(leaf != null) {
+			return leaf;
+		}
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, rootPtr.getRootId(), perm, f, held ? null : rootPtrId);
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing f without locking
+	 * the root pointer page or the internal pages.  Each of those is read under
+	 * its read latch, held only while the page is read.  A page whose high key
+	 * is below f was split after the descent read its parent, so the descent
+	 * follows the page's right link.  Only the leaf is locked, with perm; then
+	 * the descent checks that the last internal page on the way still leads to
+	 * it, and that nothing a right link cannot recover from, such as a merge,
+	 * happened meanwhile.
+	 * <p>
+	 * The pages read may hold changes of transactions that have not committed.
+	 * Every change to the keys a leaf covers write-locks the leaf until the
+	 * transaction ends, so locking the leaf waits for such a change to commit
+	 * or be undone.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing f, or null if a latch
+	 * stayed taken or the check failed, and the caller must lock-couple instead
+	 */
+	private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		long seen = restructures.get();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		BTreePageId parentId = null;
+		try {
+			for(int steps = 0; pid.pgcateg() != BTreePageId.LEAF; steps++) {
+				if(steps == MAX_OPTIMISTIC_STEPS || restructures.get() != seen) {
+					return null;
+				}
+				Lock latch = latch(pid).readLock();
+				Page p = getPageLatched(pid, latch);
+				if(p == null) {
+					return null;
+				}
+				BTreePageId next;
+				try {
+					if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+						next = ((BTreeRootPtrPage) p).getRootId();
+						parentId = pid;
+					}
+					else if(isAboveHighKey((BTreeInternalPage) p, f)) {
+						next = ((BTreeInternalPage) p).getRightSiblingId();
+					}
+					else {
+						next = ((BTreeInternalPage) p).findChild(f);
+						parentId = pid;
+					}
+				} finally {
+					latch.unlock();
+				}
+				if(next == null || (next.pgcateg() != BTreePageId.INTERNAL && next.pgcateg() != BTreePageId.LEAF)) {
+					return null;
+				}
+				pid = next;
+			}
+		} catch(RuntimeException e) {
+			// a page freed and reused since the descent read its parent need
+			// not parse as the kind of page it expects
+			return null;
+		}
+
+		boolean held = dirtypages.containsKey(pid) || Database.getBufferPool().holdsLock(tid, pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		if(leadsTo(parentId, f, pid, seen)) {
+			optimisticDescents.incrementAndGet();
+			return leaf;
+		}
+		if(!held) {
+			dirtypages.remove(pid);
+			Database.getBufferPool().releasePage(tid, pid);
+		}
+		return null;
+	}
+
+	/**
+	 * Whether page parentId, the root pointer page or an internal page, leads a
+	 * descent for f to page pid, and nothing a right link cannot recover from
+	 * happened since restructures read seen.
+	 */
+	private boolean leadsTo(BTreePageId parentId, Field f, BTreePageId pid, long seen) throws DbException {
+		Lock latch = latch(parentId).readLock();
+		Page p;
+		try {
+			p = getPageLatched(parentId, latch);
+		} catch(RuntimeException e) {
+			return false;
+		}
+		if(p == null) {
+			return false;
+		}
+		try {
+			if(restructures.get() != seen) {
+				return false;
+			}
+			if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+				return pid.equals(((BTreeRootPtrPage) p).getRootId());
+			}
+			BTreeInternalPage parent = (BTreeInternalPage) p;
+			return !isAboveHighKey(parent, f) && pid.equals(parent.findChild(f));
+		} finally {
+			latch.unlock();
+		}
+	}
+
+	// whether f belongs to a page to the right of page p on its level
+	private static boolean isAboveHighKey(BTreeInternalPage p, Field f) {
+		Field high = p.getHighKey();
+		return f != null && high != null && f.compare(Op.GREATER_THAN, high);
+	}
+
+	/**
+	 * Fetch page pid without a transaction lock and take its read latch,
+	 * waiting for it only briefly, since the page may be write-latched by an
+	 * insert or delete that is itself waiting for a lock.
+	 * 
+	 * @return the page, with its latch held, or null if the latch stayed taken
+	 */
+	private Page getPageLatched(BTreePageId pid, Lock latch) throws DbException {
+		Page p = Database.getBufferPool().getPageUnlocked(pid);
+		try {
+			if(latch.tryLock(LATCH_WAIT_MICROS, TimeUnit.MICROSECONDS)) {
+				return p;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * The latch of the root pointer page or of internal page pid.  The root
+	 * pointer page is page 0, so page numbers tell them apart.
+	 */
+	private ReentrantReadWriteLock latch(BTreePageId pid) {
+		ReentrantReadWriteLock latch = latches.get(pid.getPageNumber());
+		if(latch == null) {
+			latches.putIfAbsent(pid.getPageNumber(), new ReentrantReadWriteLock());
+			latch = latches.get(pid.getPageNumber());
+		}
+		return latch;
+	}
+
+	// only pages descents read without a transaction lock are latched
+	private static boolean isLatched(PageId pid) {
+		int categ = ((BTreePageId) pid).pgcateg();
+		return categ == BTreePageId.ROOT_PTR || categ == BTreePageId.INTERNAL;
+	}
+
+	/**
+	 * Take the write latch on a page this insert or delete is about to change,
+	 * unless it holds it already.  It holds the page's write lock, so only
+	 * descents reading the page can hold the latch, and only briefly.
+	 */
+	private void latchForWrite(BTreePageId pid) {
+		if(isLatched(pid)) {
+			ReentrantReadWriteLock latch = latch(pid);
+			if(!latch.isWriteLockedByCurrentThread()) {
+				latch.writeLock().lock();
+			}
+		}
+	}
+
+	/**
+	 * Release the write latches an insert or delete took on the pages it
+	 * fetched to change, once it is done with them.
+	 */
+	private void unlatchAll(HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			if(isLatched(pid)) {
+				ReentrantReadWriteLock latch = latch((BTreePageId) pid);
+				if(latch.isWriteLockedByCurrentThread()) {
+					latch.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of leaf pages found by descending without transaction
+	 * locks on the internal pages since this file was opened.
+	 */
+	public long getOptimisticDescents() {
+		return optimisticDescents.get();
+	}
+
+	/**
+	 * Returns the number of leaf pages found by lock-coupling from the root since
+	 * this file was opened, after a descent without locks failed.
+	 */
+	public long getCoupledDescents() {
+		return coupledDescents.get();
+	}
+
+	/**
+	 * Returns the number of levels of the tree, counting the leaves: the number of
+	 * pages an index search reads to reach its first leaf.  The pages on the
+	 * left-most path are locked as when findLeafPage lock-couples, each only until the one below
+	 * it is.  Returns 0 for an empty file.
+	 *
+	 * @param tid - the transaction id
+	 */
+	public int height(TransactionId tid) throws DbException, TransactionAbortedException {
+		if(numPages() == 0) {
+			return 0;
+		}
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		int height = -1; // not counting the root pointer page
+		BTreePageId coupled = null;
+		while(pid != null) {
+			boolean held = Database.getBufferPool().holdsLock(tid, pid);
+			Page p = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			releaseCoupled(tid, dirtypages, coupled);
+			height++;
+			coupled = held ? null : pid;
+			if(pid.pgcateg() == BTreePageId.ROOT_PTR) {
+				pid = ((BTreeRootPtrPage) p).getRootId();
+			}
+			else if(pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = ((BTreeInternalPage) p).findChild(null);
+			}
+			else {
+				pid = null;
+			}
+		}
+		releaseCoupled(tid, dirtypages, coupled);
+		return height;
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -239,16 +631,41 @@ public class BTreeFile implements DbFile {
 	 */
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page, on the right
+		int moving = page.getNumTuples() / 2;
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while(tuples.size() < moving && it.hasNext()) {
+			tuples.add(it.next());
+		}
+		for(Tuple t : tuples) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent
+		Field key = newPage.iterator().next().getField(keyField);
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN_OR_EQ, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -276,16 +693,40 @@ public class BTreeFile implements DbFile {
 	protected BTreeInternalPage splitInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, on the right; the
+		// entry before them is pushed up into the parent
+		int moving = page.getNumEntries() / 2;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(entries.size() <= moving && it.hasNext()) {
+			entries.add(it.next());
+		}
+		BTreeEntry middle = entries.remove(entries.size() - 1);
+		for(BTreeEntry e : entries) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		// link the new page in to the right of the page, so that a descent that
+		// read the parent before the split still finds the keys that moved
+		newPage.setRightSibling(page.getRightSiblingId(), page.getHighKey());
+		page.setRightSibling(newPage.getId(), middle.getKey());
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -397,7 +838,9 @@ public class BTreeFile implements DbFile {
 	 * presumably they will soon be dirtied by this transaction.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
-	 * accessed multiple times.
+	 * accessed multiple times.  Internal pages and the root pointer page fetched with
+	 * read-write permission are also write-latched until the insert or delete is done,
+	 * since descents read them without a lock.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -417,6 +860,7 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				latchForWrite(pid);
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -436,20 +880,43 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		try {
+			return insertTuple(tid, dirtypages, t);
+		} catch(TransactionAbortedException | DbException | IOException | RuntimeException e) {
+			if(discardUnfinished(dirtypages) && !(e instanceof TransactionAbortedException)) {
+				TransactionAbortedException abort = new TransactionAbortedException();
+				abort.initCause(e);
+				throw abort;
+			}
+			throw e;
+		} finally {
+			unlatchAll(dirtypages);
 		}
+	}
 
+	private ArrayList<Page> insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// locking only the leaf if nothing gets in the way
+		BTreeLeafPage leafPage = findLeafPageOptimistic(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+		if(leafPage == null) {
+			// get a read lock on the root pointer page and use it to locate the root page;
+			// the lock is released once the root is locked
+			BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+			boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
+			leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField),
+					held ? null : rootPtrId);
+		}
+
+		// split the leaf page if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
@@ -576,11 +1043,21 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void stealFromLeafPage(BTreeLeafPage page, BTreeLeafPage sibling,
 			BTreeInternalPage parent, BTreeEntry entry, boolean isRightSibling) throws DbException {
-		// some code goes here
-        //
-        // Move some of the tuples from the sibling to the page so
-		// that the tuples are evenly distributed. Be sure to update
-		// the corresponding parent entry.
+		int moving = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		while(tuples.size() < moving && it.hasNext()) {
+			tuples.add(it.next());
+		}
+		for(Tuple t : tuples) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the parent's key is the first key of the right-hand page
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(right.iterator().next().getField(keyField));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -656,11 +1133,26 @@ public class BTreeFile implements DbFile {
 	protected void stealFromLeftInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage leftSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the left sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int moving = leftSibling.getNumEntries() - (page.getNumEntries() + leftSibling.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
+		while(entries.size() < moving && it.hasNext()) {
+			entries.add(it.next());
+		}
+
+		// rotate each entry through the parent: the parent's key comes down in
+		// front of the page's entries, the sibling's last key goes up.  Keys
+		// move left to right, which a right link cannot recover from
+		restructures.incrementAndGet();
+		for(BTreeEntry e : entries) {
+			BTreePageId first = page.iterator().next().getLeftChild();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), e.getRightChild(), first));
+			parentEntry.setKey(e.getKey());
+			leftSibling.deleteKeyAndRightChild(e);
+		}
+		parent.updateEntry(parentEntry);
+		leftSibling.setHighKey(parentEntry.getKey());
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -684,11 +1176,26 @@ public class BTreeFile implements DbFile {
 	protected void stealFromRightInternalPage(TransactionId tid, HashMap<PageId, Page> dirtypages, 
 			BTreeInternalPage page, BTreeInternalPage rightSibling, BTreeInternalPage parent,
 			BTreeEntry parentEntry) throws DbException, IOException, TransactionAbortedException {
-		// some code goes here
-        // Move some of the entries from the right sibling to the page so
-		// that the entries are evenly distributed. Be sure to update
-		// the corresponding parent entry. Be sure to update the parent
-		// pointers of all children in the entries that were moved.
+		int moving = rightSibling.getNumEntries() - (page.getNumEntries() + rightSibling.getNumEntries()) / 2;
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightSibling.iterator();
+		while(entries.size() < moving && it.hasNext()) {
+			entries.add(it.next());
+		}
+
+		// rotate each entry through the parent: the parent's key comes down after
+		// the page's entries, the sibling's first key goes up.  A descent that
+		// read the parent before could miss keys now in the page
+		restructures.incrementAndGet();
+		for(BTreeEntry e : entries) {
+			BTreePageId last = page.reverseIterator().next().getRightChild();
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last, e.getLeftChild()));
+			parentEntry.setKey(e.getKey());
+			rightSibling.deleteKeyAndLeftChild(e);
+		}
+		parent.updateEntry(parentEntry);
+		page.setHighKey(parentEntry.getKey());
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -713,12 +1220,26 @@ public class BTreeFile implements DbFile {
 			BTreeLeafPage leftPage, BTreeLeafPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 
-		// some code goes here
-        //
-		// Move all the tuples from the right page to the left page, update
-		// the sibling pointers, and make the right page available for reuse.
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		for(Tuple t : tuples) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		// unlink the right page
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+		leftPage.setRightSiblingId(rightId);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -745,13 +1266,27 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage leftPage, BTreeInternalPage rightPage, BTreeInternalPage parent, BTreeEntry parentEntry) 
 					throws DbException, IOException, TransactionAbortedException {
 		
-		// some code goes here
-        //
-        // Move all the entries from the right page to the left page, update
-		// the parent pointers of the children in the entries that were moved, 
-		// and make the right page available for reuse
-		// Delete the entry in the parent corresponding to the two pages that are merging -
-		// deleteParentEntry() will be useful here
+		// pull the parent's key down between the entries of the two pages; the
+		// right page goes away, so its right link cannot be followed any more
+		restructures.incrementAndGet();
+		BTreePageId last = leftPage.reverseIterator().next().getRightChild();
+		BTreePageId first = rightPage.iterator().next().getLeftChild();
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), last, first));
+
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			entries.add(it.next());
+		}
+		for(BTreeEntry e : entries) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		leftPage.setRightSibling(rightPage.getRightSiblingId(), rightPage.getHighKey());
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -815,7 +1350,22 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		try {
+			return deleteTuple(tid, dirtypages, t);
+		} catch(TransactionAbortedException | DbException | IOException | RuntimeException e) {
+			if(discardUnfinished(dirtypages) && !(e instanceof TransactionAbortedException)) {
+				TransactionAbortedException abort = new TransactionAbortedException();
+				abort.initCause(e);
+				throw abort;
+			}
+			throw e;
+		} finally {
+			unlatchAll(dirtypages);
+		}
+	}
 
+	private ArrayList<Page> deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -833,6 +1383,28 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Clean up after an insert or delete that failed partway through, e.g. as a
+	 * deadlock victim halfway through a split.  Its pages may be half changed,
+	 * and descents read internal pages without a lock, so all of them are
+	 * dropped from the buffer pool before their latches are released.  tid holds
+	 * their write locks, and pages of a BTreeFile are not written out before
+	 * their transaction commits, so the next reader loads the committed image
+	 * from disk.  Pages that were dirty lose the changes of earlier inserts and
+	 * deletes of tid too, so the caller must then have tid abort.
+	 * 
+	 * @return true if tid must abort
+	 */
+	private boolean discardUnfinished(HashMap<PageId, Page> dirtypages) {
+		boolean mustAbort = false;
+		for(Page p : dirtypages.values()) {
+			if(p.isDirty() != null)
+				mustAbort = true;
+			Database.getBufferPool().discardPage(p.getId());
+		}
+		return mustAbort;
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -846,15 +1418,10 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(channel().size() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				write(0, BTreeRootPtrPage.createEmptyPageData());
+				writePageData(1, BTreeLeafPage.createEmptyPageData());
 			}
 		}
 
@@ -908,15 +1475,8 @@ public class BTreeFile implements DbFile {
 		// at this point if headerId is null, either there are no header pages 
 		// or there are no free slots
 		if(headerId == null) {		
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
-			}
+			// create the new page, out of the preallocated tail of the file
+			emptyPageNo = extents.allocate(channel()) + 1;
 		}
 
 		return emptyPageNo; 
@@ -945,16 +1505,14 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		writePageData(emptyPageNo, BTreePage.createEmptyPageData());
 		
-		// make sure the page is not in the buffer pool	or in the local cache		
+		// make sure the page is not in the buffer pool, and replace it in the local cache
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
-		
-		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
+		Page p = Database.getBufferPool().getPage(tid, newPageId, Permissions.READ_WRITE);
+		latchForWrite(newPageId);
+		dirtypages.put(newPageId, p);
+		return p;
 	}
 
 	/**
@@ -972,6 +1530,8 @@ public class BTreeFile implements DbFile {
 	 */
 	protected void setEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int emptyPageNo) 
 			throws DbException, IOException, TransactionAbortedException {
+		// a descent may still get to the page through a stale parent
+		restructures.incrementAndGet();
 
 		// if this is the last page in the file (and not the only page), just 
 		// truncate the file
@@ -1096,10 +1656,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		it = curp.iterator();
 	}
 
@@ -1181,17 +1738,15 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
+			it = curp.iterator(ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -23,6 +23,8 @@ public class BTreeHeaderPage implements Page {
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
+	// image as of the last setBeforeImage(), taken just before the first
+	// change after it; null while the page is unchanged
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
 
@@ -61,13 +63,13 @@ public class BTreeHeaderPage implements Page {
 
 		dis.close();
 
-		setBeforeImage();
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
+		captureBeforeImage();
 		for (int i=0; i<header.length; i++)
 			header[i] = (byte) 0xFF;
 	}
@@ -95,7 +97,7 @@ public class BTreeHeaderPage implements Page {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
@@ -109,7 +111,19 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Snapshot the page unless it already changed since the last
+	 * setBeforeImage().  Called before every change to the page.
+	 */
+	private void captureBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
 		}
 	}
 
@@ -211,6 +225,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setPrevPageId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			prevPage = 0;
 		}
@@ -231,6 +246,7 @@ public class BTreeHeaderPage implements Page {
 	 * @throws DbException
 	 */
 	public void setNextPageId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			nextPage = 0;
 		}
@@ -250,6 +266,7 @@ public class BTreeHeaderPage implements Page {
 	 * that did the dirtying
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) captureBeforeImage();
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -277,6 +294,7 @@ public class BTreeHeaderPage implements Page {
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
+		captureBeforeImage();
 		int headerbit = i % 8;
 		int headerbyte = (i - headerbit) / 8;
 
@@ -20,6 +20,8 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // 0 if this is the right-most page of its level
+	private Field highKey; // upper bound of the keys below this page; null if no right sibling
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -36,6 +38,9 @@ public class BTreeInternalPage extends BTreePage {
 			assert(prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 		}
 
+		// the high key is the separator the parent keeps for this page
+		assert(null == upperBound ? null == highKey : upperBound.equals(highKey));
+
 		if (checkOccupancy && depth > 0) {
 			assert (getNumEntries() >= getMaxEntries() / 2);
 		}
@@ -46,8 +51,11 @@ public class BTreeInternalPage extends BTreePage {
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
 	 * the slots of the page that are in use, some number of entry slots, and extra
 	 * bytes for the parent pointer, one extra child pointer (a node with m entries 
-	 * has m+1 pointers to children), and the category of all child pages (either 
-	 * leaf or internal).
+	 * has m+1 pointers to children), the category of all child pages (either 
+	 * leaf or internal), and the right link: the page number of the right sibling
+	 * on the same level and the high key, the upper bound of the keys below this
+	 * page.  A descent that reads a page after it was split follows the right
+	 * link to the page holding its key.
 	 *  Specifically, the number of entries is equal to: <p>
 	 *          floor((BufferPool.getPageSize()*8 - extra bytes*8) / (entry size * 8 + 1))
 	 * <p> where entry size is the size of entries in this index node
@@ -81,6 +89,16 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		// read the right link: the right sibling, then the high key, which is
+		// only meaningful if there is a right sibling
+		rightSibling = dis.readInt();
+		try {
+			Field f = td.getFieldType(keyField).parse(dis);
+			highKey = rightSibling == 0 ? null : f;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -108,7 +126,6 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
 	}
 
 	/** 
@@ -118,8 +135,9 @@ public class BTreeInternalPage extends BTreePage {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// the right sibling pointer and the high key
+		int extraBits = 3 * INDEX_SIZE * 8 + keySize * 8 + 8 + 1; 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -140,12 +158,7 @@ public class BTreeInternalPage extends BTreePage {
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,beforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -154,13 +167,6 @@ public class BTreeInternalPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read keys from the source file.
 	 */
@@ -252,6 +258,17 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the right link
+		try {
+			dos.writeInt(rightSibling);
+			if (highKey == null)
+				dos.write(new byte[td.getFieldType(keyField).getLen()]);
+			else
+				highKey.serialize(dos);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -315,8 +332,8 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+		int zerolen = BufferPool.getPageSize() - (2 * INDEX_SIZE + 1 + header.length + 
+				td.getFieldType(keyField).getLen() * keys.length + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -345,6 +362,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *        delete the left child
 	 */
 	private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+		captureBeforeImage();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete entry with null rid");
@@ -365,6 +383,7 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 		e.setRecordId(null);
+		keysChanged();
 	}
 
 	/**
@@ -402,6 +421,7 @@ public class BTreeInternalPage extends BTreePage {
 	 *         order on the page
 	 */
 	public void updateEntry(BTreeEntry e) throws DbException {
+		captureBeforeImage();
 		RecordId rid = e.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to update entry with null rid");
@@ -431,6 +451,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
+		keysChanged();
 	}
 
 	/**
@@ -441,6 +462,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
+		captureBeforeImage();
 		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
 			throw new DbException("key field type mismatch, in insertEntry");
 
@@ -464,6 +486,7 @@ public class BTreeInternalPage extends BTreePage {
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
+			keysChanged();
 			return;
 		}
 
@@ -543,6 +566,7 @@ public class BTreeInternalPage extends BTreePage {
 		keys[goodSlot] = e.getKey();
 		children[goodSlot] = e.getRightChild().getPageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
+		keysChanged();
 	}
 
 	/**
@@ -558,6 +582,101 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	protected SortedKeys buildSortedKeys() {
+		int[] slots = new int[numSlots];
+		Field[] sorted = new Field[numSlots];
+		int n = 0;
+		// start from 1 because the first key slot is not used
+		for(int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				slots[n] = i;
+				sorted[n++] = keys[i];
+			}
+		}
+		return new SortedKeys(n, slots, sorted);
+	}
+
+	/**
+	 * Find the child to descend into to reach the left-most leaf page possibly
+	 * containing f: the left child of the first entry whose key is greater
+	 * than or equal to f, or the right child of the last entry if there is
+	 * none.  Binary searches the keys instead of iterating the entries.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		SortedKeys k = sortedKeys();
+		if(k.size == 0)
+			return null;
+		int pos = f == null ? 0 : k.search(f, true);
+		// the left child of an entry is the child pointer of the used slot
+		// before it, which for the first entry is slot 0
+		int slot = pos == k.size ? k.slots[k.size - 1] : (pos == 0 ? 0 : k.slots[pos - 1]);
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Get the id of the right sibling of this page, the next page on the same
+	 * level of the tree, whether or not it has the same parent
+	 * @return the id of the right sibling, or null for the right-most page
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Get the high key of this page: every key below it is less than or equal
+	 * to the high key, and keys greater than it are found through the right
+	 * sibling.
+	 * @return the high key, or null for the right-most page of its level
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the right link of this page: its right sibling and its high key,
+	 * the key in the parent that separates the two pages
+	 * @param id - the new right sibling id, or null for the right-most page
+	 * @param highKey - the new high key; ignored if id is null
+	 * @throws DbException if the id or key is not valid
+	 */
+	public void setRightSibling(BTreePageId id, Field highKey) throws DbException {
+		captureBeforeImage();
+		if(id == null) {
+			rightSibling = 0;
+			this.highKey = null;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSibling");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			if(highKey == null || !highKey.getType().equals(td.getFieldType(keyField))) {
+				throw new DbException("high key type mismatch in setRightSibling");
+			}
+			rightSibling = id.getPageNumber();
+			this.highKey = highKey;
+		}
+	}
+
+	/**
+	 * Set the high key of this page, keeping its right sibling
+	 * @param highKey - the new high key
+	 * @throws DbException if the page has no right sibling or the key is not valid
+	 */
+	public void setHighKey(Field highKey) throws DbException {
+		if(rightSibling == 0) {
+			throw new DbException("the right-most page of a level has no high key");
+		}
+		setRightSibling(getRightSiblingId(), highKey);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
@@ -761,8 +880,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null)
+					continue;
+				// the left child is in the closest used slot before this
+				// entry, which deletions may have left some slots behind
+				BTreePageId childId = null;
+				for(int i = entry - 1; i >= 0 && childId == null; i--)
+					childId = p.getChildId(i);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -103,7 +103,6 @@ public class BTreeLeafPage extends BTreePage {
 		}
 		dis.close();
 
-		setBeforeImage();
 	}
 
 	/** 
@@ -132,12 +131,7 @@ public class BTreeLeafPage extends BTreePage {
         -- used by recovery */
 	public BTreeLeafPage getBeforeImage(){
 		try {
-			byte[] oldDataRef = null;
-			synchronized(oldDataLock)
-			{
-				oldDataRef = oldData;
-			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,beforeImageData(),keyField);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -146,13 +140,6 @@ public class BTreeLeafPage extends BTreePage {
 		return null;
 	}
 
-	public void setBeforeImage() {
-		synchronized(oldDataLock)
-		{
-			oldData = getPageData().clone();
-		}
-	}
-
 	/**
 	 * Read tuples from the source file.
 	 */
@@ -287,6 +274,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to delete
 	 */
 	public void deleteTuple(Tuple t) throws DbException {
+		captureBeforeImage();
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -296,6 +284,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete null tuple.");
 		markSlotUsed(rid.getTupleNumber(), false);
 		t.setRecordId(null);
+		keysChanged();
 	}
 
 	/**
@@ -307,6 +296,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
+		captureBeforeImage();
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -323,16 +313,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		SortedKeys k = sortedKeys();
+		int pos = k.search(t.getField(keyField), false);
+		int lessOrEqKey = pos == 0 ? -1 : k.slots[pos - 1];
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -356,6 +339,7 @@ public class BTreeLeafPage extends BTreePage {
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
 		tuples[goodSlot] = t;
+		keysChanged();
 	}
 
 	/**
@@ -372,6 +356,19 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	protected SortedKeys buildSortedKeys() {
+		int[] slots = new int[numSlots];
+		Field[] keys = new Field[numSlots];
+		int n = 0;
+		for(int i=0; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				slots[n] = i;
+				keys[n++] = tuples[i].getField(keyField);
+			}
+		}
+		return new SortedKeys(n, slots, keys);
+	}
+
 	/**
 	 * Get the id of the left sibling of this page
 	 * @return the id of the left sibling
@@ -400,6 +397,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -420,6 +418,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws DbException if the id is not valid
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
+		captureBeforeImage();
 		if(id == null) {
 			rightSibling = 0;
 		}
@@ -483,6 +482,17 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page whose key is greater than
+	 * or equal to f, found by binary search of the keys (calling remove on this
+	 * iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		SortedKeys k = sortedKeys();
+		int pos = k.search(f, true);
+		return new BTreeLeafPageIterator(this, pos == k.size ? numSlots : k.slots[pos]);
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -529,6 +539,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
+		this.p = p;
+		this.curTuple = start;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
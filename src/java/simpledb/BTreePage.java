@@ -21,8 +21,12 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// image as of the last setBeforeImage(), taken just before the first
+	// change after it; null while the page is unchanged
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	// keys of the used slots, built on the first lookup after a change
+	private volatile SortedKeys sortedKeys;
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -101,6 +105,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		captureBeforeImage();
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -109,11 +114,42 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	public void setBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			oldData = null;
+		}
+	}
+
+	/**
+	 * Snapshot the page unless it already changed since the last
+	 * setBeforeImage().  Every mutator calls this before touching the page.
+	 */
+	protected void captureBeforeImage() {
+		synchronized(oldDataLock)
+		{
+			if (oldData == null)
+				oldData = getPageData();
+		}
+	}
+
+	/**
+	 * @return the bytes of the before image: the snapshot, or the current
+	 * image if the page has not changed
+	 */
+	protected byte[] beforeImageData() {
+		synchronized(oldDataLock)
+		{
+			return oldData != null ? oldData : getPageData();
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty) captureBeforeImage();
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -128,6 +164,32 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	/**
+	 * @return the keys of the used slots of this page, in slot order, for
+	 * binary search; rebuilt after the page changes
+	 */
+	protected SortedKeys sortedKeys() {
+		SortedKeys k = sortedKeys;
+		if(k == null) {
+			k = buildSortedKeys();
+			sortedKeys = k;
+		}
+		return k;
+	}
+
+	/**
+	 * Drop the cached sorted keys.  Every mutator that adds, removes, moves
+	 * or rekeys a slot calls this once it is done.
+	 */
+	protected void keysChanged() {
+		sortedKeys = null;
+	}
+
+	/**
+	 * @return the keys of the used slots of this page, in slot order
+	 */
+	protected abstract SortedKeys buildSortedKeys();
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -138,5 +200,60 @@ public abstract class BTreePage implements Page {
 	 */
 	public abstract boolean isSlotUsed(int i);
 
-}
+	/**
+	 * The keys of the used slots of a page, in slot order and so in key
+	 * order, next to the slots they are in.  INT keys are also kept as
+	 * primitive ints, so searching them compares no Field objects.
+	 */
+	protected static final class SortedKeys {
+		final int size;
+		final int[] slots;
+		final Field[] keys;
+		final int[] ints; // null unless the keys are INT_TYPE
+
+		SortedKeys(int size, int[] slots, Field[] keys) {
+			this.size = size;
+			this.slots = slots;
+			this.keys = keys;
+			boolean allInts = true;
+			for(int i = 0; i < size && allInts; i++)
+				allInts = keys[i] instanceof IntField;
+			if(allInts) {
+				ints = new int[size];
+				for(int i = 0; i < size; i++)
+					ints[i] = ((IntField) keys[i]).getValue();
+			}
+			else {
+				ints = null;
+			}
+		}
 
+		/**
+		 * @return the position of the first key greater than or equal to f
+		 * (if inclusive) or greater than f (if not), or size if there is none
+		 */
+		int search(Field f, boolean inclusive) {
+			int lo = 0, hi = size;
+			if(ints != null && f instanceof IntField) {
+				int v = ((IntField) f).getValue();
+				while(lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if(ints[mid] < v || (!inclusive && ints[mid] == v))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+				return lo;
+			}
+			Predicate.Op below = inclusive ? Predicate.Op.LESS_THAN : Predicate.Op.LESS_THAN_OR_EQ;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(keys[mid].compare(below, f))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+}
@@ -10,7 +10,13 @@ import java.io.*;
  */
 public class BTreeRootPtrPage implements Page {
 	// size of this page
-	public final static int PAGE_SIZE = 9;
+	public final static int PAGE_SIZE = 10;
+
+	/**
+	 * Version of the file format, kept in the root pointer page.  Version 1
+	 * added the right link (right sibling and high key) of internal pages.
+	 */
+	public final static int FORMAT_VERSION = 1;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -21,6 +27,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private int version;
 
 	private byte[] oldData;
 
@@ -31,7 +38,7 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page and a byte for the version of the file format
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,6 +50,8 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
+
+		version = (int) dis.readByte();
 		
 		setBeforeImage();
 	}
@@ -103,6 +112,13 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
+		// write out the file format version
+		try{
+			dos.writeByte((byte) version);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+
 		try {
 			dos.flush();
 		}catch(IOException e) {
@@ -117,13 +133,15 @@ public class BTreeRootPtrPage implements Page {
 	 * BTreeRootPtrPage.
 	 * Used to add new, empty pages to the file. Passing the results of
 	 * this method to the BTreeRootPtrPage constructor will create a BTreeRootPtrPage with
-	 * no valid entries in it.
+	 * no valid entries in it, for the current version of the file format.
 	 *
 	 * @return The returned ByteArray.
 	 */
 	public static byte[] createEmptyPageData() {
 		int len = PAGE_SIZE;
-		return new byte[len]; //all 0
+		byte[] data = new byte[len]; //all 0
+		data[len - 1] = (byte) FORMAT_VERSION;
+		return data;
 	}
 
 	public void markDirty(boolean dirty, TransactionId tid){
@@ -214,6 +232,15 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * Get the version of the file format this page was written with
+	 * @return the format version
+	 * @see #FORMAT_VERSION
+	 */
+	public int getFormatVersion() {
+		return version;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
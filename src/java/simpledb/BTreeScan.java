@@ -60,6 +60,20 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the transaction this scan is running as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index predicate the scan matches, or null if it returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -82,17 +96,7 @@ public class BTreeScan implements OpIterator {
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
-		myTd = Database.getCatalog().getTupleDesc(tableid);
-		String[] newNames = new String[myTd.numFields()];
-		Type[] newTypes = new Type[myTd.numFields()];
-		for (int i = 0; i < myTd.numFields(); i++) {
-			String name = myTd.getFieldName(i);
-			Type t = myTd.getFieldType(i);
-
-			newNames[i] = tableAlias + "." + name;
-			newTypes[i] = t;
-		}
-		myTd = new TupleDesc(newTypes, newNames);
+		myTd = TupleDesc.alias(Database.getCatalog().getTupleDesc(tableid), tableAlias);
 	}
 
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
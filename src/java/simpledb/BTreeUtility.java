@@ -323,8 +323,9 @@ public class BTreeUtility {
 	 */
 	public static int getNumEntriesPerPage() {
 		int nentrybytes = Type.INT_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE;
-		// pointerbytes: one extra child pointer, parent pointer, child page category
-		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		// pointerbytes: one extra child pointer, parent pointer, child page category,
+		// right sibling pointer, high key
+		int internalpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE + 1 + Type.INT_TYPE.getLen(); 
 		int entriesPerPage = (BufferPool.getPageSize() * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
 		return entriesPerPage;
 	}
@@ -536,15 +537,16 @@ public class BTreeUtility {
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
-				synchronized(elock) {
-					error = e;
-				}
-
+				// abort before reporting the error: the caller may rerun this
+				// object, which replaces tid, as soon as it sees the error
 				try {
 					Database.getBufferPool().transactionComplete(tid, false);
 				} catch (java.io.IOException e2) {
 					e2.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 
@@ -623,15 +625,16 @@ public class BTreeUtility {
 
 			} catch (Exception e) {
 				e.printStackTrace();
-				synchronized(elock) {
-					error = e;
-				}
-
+				// abort before reporting the error: the caller may rerun this
+				// object, which replaces tid, as soon as it sees the error
 				try {
 					Database.getBufferPool().transactionComplete(tid, false);
 				} catch (java.io.IOException e2) {
 					e2.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 
@@ -695,15 +698,16 @@ public class BTreeUtility {
 				if(!(e instanceof TransactionAbortedException)) {
 					e.printStackTrace();
 				}
-				synchronized(elock) {
-					error = e;
-				}
-
+				// abort before reporting the error: the caller may rerun this
+				// object, which replaces tid, as soon as it sees the error
 				try {
 					Database.getBufferPool().transactionComplete(tid, false);
 				} catch (java.io.IOException e2) {
 					e2.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 		
@@ -794,18 +798,19 @@ public class BTreeUtility {
 				if(!(e instanceof TransactionAbortedException)) {
 					e.printStackTrace();
 				}
-				synchronized(elock) {
-					error = e;
-				}
-
+				// abort before reporting the error: the caller may rerun this
+				// object, which replaces tid, as soon as it sees the error
 				try {
-					insertedTuples.put(tuple);
 					Database.getBufferPool().transactionComplete(tid, false);
+					insertedTuples.put(tuple);
 				} catch (java.io.IOException e2) {
 					e2.printStackTrace();
 				} catch (InterruptedException e3) {
 					e3.printStackTrace();
 				}
+				synchronized(elock) {
+					error = e;
+				}
 			}
 		}
 		
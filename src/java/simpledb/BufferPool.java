@@ -1,17 +1,17 @@
 package simpledb;
 
 import java.io.*;
-import java.nio.channels.WritePendingException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.Random;
-import java.util.Vector;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import com.sun.prism.paint.Stop;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -35,12 +35,39 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    //private ConcurrentHashMap<PageId, Page> cache;
+    /** Number of stripes used to serialize concurrent misses on the same page. */
+    private static final int LOAD_STRIPES = 64;
+
+    private static volatile boolean tupleLogging = true;
+
+    // the background writer exits after this long without pages to write
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
     private int numPages;
-    private PageNode header,tail;
-    private ConcurrentHashMap<PageId, PageNode> cache;
+    // page table: a buffer hit is one lock-free lookup plus setting the
+    // frame's reference bit, no pool-wide lock is taken (the page lock
+    // still goes through the LockManager and its latch)
+    private ConcurrentHashMap<PageId, Frame> cache;
+    // CLOCK ring of resident frames, guarded by clockLock; only misses,
+    // installs and discards touch it
+    private final Frame[] ring;
+    private int hand;
+    private final Object clockLock=new Object();
+    // a frame is only filled or unlinked under the load lock of its page
+    private final ReentrantLock[] loadLocks;
+    private final LongAdder hits=new LongAdder();
+    private final LongAdder misses=new LongAdder();
     private LockManager pageLockman;
-    private HashMap<TransactionId, ArrayList<PageId>> trandirtypage;
+    // pages each transaction dirtied through insertTuple/deleteTuple
+    private ConcurrentHashMap<TransactionId, Set<PageId>> trandirtypage;
+    // held by a transaction while it changes pages and logs the changes in
+    // insertTuple/deleteTuple, so the background writer never sees a page
+    // with a change not logged yet
+    private ConcurrentHashMap<TransactionId, ReentrantLock> opLocks;
+    // pages for the background writer; the writer is started and stopped
+    // under the queue's monitor
+    private final LinkedBlockingQueue<PageId> writeBackQueue=new LinkedBlockingQueue<PageId>();
+    private Thread writer;
     
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -50,13 +77,15 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // some code goes here
     	this.numPages=numPages;
-    	cache=new ConcurrentHashMap<PageId, PageNode>();
-    	header=new PageNode(null);
-    	tail=new PageNode(null);
-    	header.next=tail;
-    	tail.pre=header;
+    	cache=new ConcurrentHashMap<PageId, Frame>();
+    	ring=new Frame[numPages];
+    	hand=0;
+    	loadLocks=new ReentrantLock[LOAD_STRIPES];
+    	for(int i=0;i<LOAD_STRIPES;++i)
+    		loadLocks[i]=new ReentrantLock();
     	this.pageLockman=new LockManager();
-    	trandirtypage=new HashMap<TransactionId, ArrayList<PageId>>();
+    	trandirtypage=new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    	opLocks=new ConcurrentHashMap<TransactionId, ReentrantLock>();
     }
     
     public static int getPageSize() {
@@ -73,6 +102,15 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * Set whether inserts and deletes on HeapFiles are logged as INSERT and
+     * DELETE records of the tuple (the default), or like any other change,
+     * as before and after images of the page when it is flushed.
+     */
+    public static void setTupleLogging(boolean on) {
+    	tupleLogging = on;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -91,34 +129,58 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-    	int thisType=1;
-    	if(perm==Permissions.READ_WRITE)
-    		thisType=0;
-    	long start = System.currentTimeMillis();
-        long timeout = new Random().nextInt(2000) + 1000;
-    	while(!pageLockman.acquire(pid, tid, thisType)) {
-    		 long now = System.currentTimeMillis();
-             if(now-start > timeout){
-                 // TransactionAbortedException means detect a deadlock
-                 // after upper caller catch TransactionAbortedException
-                 // will call transactionComplete to abort this transition
-                 // give someone else a chance: abort the transaction
-                 throw new TransactionAbortedException();
-             }
+    	//blocks until granted; throws TransactionAbortedException if tid is
+    	//picked as the victim of a deadlock
+    	pageLockman.acquire(pid, tid, perm);
+    	return getPageUnlocked(pid);
+    }
+
+    /**
+     * Retrieve the specified page like getPage, but without acquiring a lock.
+     * The page may hold changes of transactions that have not committed, and
+     * may be changed while it is read: the caller must synchronize with the
+     * writers of the page itself, as BTreeFile does with its page latches,
+     * and must check what it read before relying on it.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getPageUnlocked(PageId pid) throws DbException {
+    	Frame frame=cache.get(pid);
+    	if(frame!=null) {
+    		hits.increment();
+    		frame.referenced=true;
+    		return frame.page;
     	}
-    	//System.out.println("time");
-    	if(!cache.containsKey(pid)) {
-    		DbFile dbfile=Database.getCatalog().getDatabaseFile(pid.getTableId());
-    		Page pg=dbfile.readPage(pid);
-    		PageNode pagenode=new PageNode(pg,null,null);
-    		addFirst(pagenode);
-    		cache.put(pid, pagenode);
-    		evictPage();
-    		return pg;
+    	//miss: only threads loading a page of the same stripe wait on each other
+    	ReentrantLock load=loadLock(pid);
+    	load.lock();
+    	try {
+    		frame=cache.get(pid);
+    		if(frame==null) {
+    			misses.increment();
+    			DbFile dbfile=Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			frame=allocFrame(dbfile.readPage(pid));
+    		}
+    	} finally {
+    		load.unlock();
     	}
-    	PageNode pagenode=cache.get(pid);
-    	moveTohead(pagenode);
-        return pagenode.page;
+    	frame.referenced=true;
+        return frame.page;
+    }
+
+    /** Returns the lock manager, e.g. to read its lock-wait statistics. */
+    public LockManager getLockManager() {
+    	return pageLockman;
+    }
+
+    /**
+     * Returns the fraction of getPage() calls that were served from the pool
+     * since it was created.
+     */
+    public double getHitRate() {
+    	long h=hits.sum();
+    	long total=h+misses.sum();
+    	return total==0?0.0:(double)h/total;
     }
 
     /**
@@ -151,7 +213,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return this.pageLockman.holdslock(p, tid);
+        return this.pageLockman.holdsLock(p, tid);
     }
 
     /**
@@ -167,15 +229,26 @@ public class BufferPool {
         // not necessary for lab1|lab2
     	if(commit) {
     		flushPages(tid);
+    		//the next transaction's changes are relative to the committed image
+    		for(PageId pid:pagesTouched(tid)) {
+    			Frame frame=cache.get(pid);
+    			if(frame!=null)
+    				frame.page.setBeforeImage();
+    		}
     	}else {
+    		//the background writer may have written pages with tid's changes
+    		//back to disk, and only the log can undo those
+    		LogFile log=Database.getLogFile();
+    		if(log.isActive(tid))
+    			log.logAbort(tid);
     		restorePages(tid);
     	}
+    	trandirtypage.remove(tid);
+    	opLocks.remove(tid);
     	
-    	for(PageId pid:cache.keySet()) {
-    		if(holdsLock(tid, pid)) {
-    			releasePage(tid, pid);
-    		}
-    	}
+    	//also covers locks on pages that were evicted meanwhile, a waiter
+    	//would block on those forever
+    	pageLockman.releaseAll(tid);
     }
 
     /**
@@ -198,13 +271,17 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	DbFile dbfile=Database.getCatalog().getDatabaseFile(tableId);
-    	ArrayList<Page> res=dbfile.insertTuple(tid, t);
-    	for(Page pg:res) {
-    		pg.markDirty(true, tid);
-    		PageNode pagenode=cache.get(pg.getId());
-    		moveTohead(pagenode);
-    		cache.put(pg.getId(), pagenode);
-    		evictPage();
+    	ReentrantLock op=opLock(tid);
+    	op.lock();
+    	try {
+    		ArrayList<Page> res=dbfile.insertTuple(tid, t);
+    		long lsn=LogFile.NO_LSN;
+    		boolean logged=tupleLogging&&dbfile instanceof HeapFile;
+    		if(logged)
+    			lsn=Database.getLogFile().logInsert(tid, t.getRecordId(), TupleLogRecord.serialize(t));
+    		installDirtied(tid, res, logged?t.getRecordId().getPageId():null, lsn);
+    	} finally {
+    		op.unlock();
     	}
     }
 
@@ -225,14 +302,40 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-    	DbFile dbfile=Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-    	ArrayList<Page> res=dbfile.deleteTuple(tid, t);
+    	RecordId rid=t.getRecordId();
+    	DbFile dbfile=Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+    	ReentrantLock op=opLock(tid);
+    	op.lock();
+    	try {
+    		ArrayList<Page> res=dbfile.deleteTuple(tid, t);
+    		long lsn=LogFile.NO_LSN;
+    		boolean logged=tupleLogging&&dbfile instanceof HeapFile;
+    		if(logged)
+    			lsn=Database.getLogFile().logDelete(tid, rid, TupleLogRecord.serialize(t));
+    		installDirtied(tid, res, logged?rid.getPageId():null, lsn);
+    	} finally {
+    		op.unlock();
+    	}
+    }
+
+    /**
+     * Mark the pages an insert or delete dirtied as dirty and cache them.
+     * The change to page logged, if not null, is the log record at LSN lsn;
+     * any other page is logged as page images when it is flushed.
+     */
+    private void installDirtied(TransactionId tid, ArrayList<Page> res, PageId logged, long lsn)
+    		throws DbException {
+    	Set<PageId> dirtied=dirtiedBy(tid);
     	for(Page pg:res) {
     		pg.markDirty(true, tid);
-    		PageNode pagenode=new PageNode(pg);
-    		moveTohead(pagenode);
-    		cache.put(pg.getId(), pagenode);
-    		evictPage();
+    		dirtied.add(pg.getId());
+    		Frame frame=installPage(pg);
+    		if(pg.getId().equals(logged)) {
+    			frame.pageLsn=Math.max(frame.pageLsn, lsn);
+    			if(frame.recLsn==LogFile.NO_LSN)
+    				frame.recLsn=lsn;
+    		}else
+    			frame.imageLog=true;
     	}
     }
 
@@ -250,6 +353,110 @@ public class BufferPool {
     	}
     }
 
+    /**
+     * The dirty page table, for checkpoints: each cached page with logged
+     * changes not yet written to disk, and the LSN of the first of them.
+     * Reads the frames without locking the pool, so it may miss changes
+     * made while it runs.
+     */
+    public Map<PageId, Long> dirtyPages() {
+    	Map<PageId, Long> dirty=new HashMap<PageId, Long>();
+    	for(Frame frame:cache.values()) {
+    		long recLsn=frame.recLsn;
+    		if(recLsn!=LogFile.NO_LSN&&frame.page.isDirty()!=null)
+    			dirty.put(frame.page.getId(), recLsn);
+    	}
+    	return dirty;
+    }
+
+    /**
+     * Have the background writer write pids back to disk, one at a time
+     * and without holding up transactions: a page is skipped if it is no
+     * longer dirty, if it has changes only page images can log, or if the
+     * transaction that dirtied it is changing a page right now.  The pages
+     * may belong to running transactions (STEAL); they can be written since
+     * their changes are logged, and an abort undoes them from the log.  A
+     * page is only written if its transaction began in the log, so that
+     * rollback can find its changes.
+     */
+    public void writeBack(Collection<PageId> pids) {
+    	writeBackQueue.addAll(pids);
+    	synchronized(writeBackQueue) {
+    		if(writer==null) {
+    			writer=new Thread(new Runnable() {
+    				public void run() { writeBackPages(); }
+    			}, "BufferPool writer");
+    			writer.setDaemon(true);
+    			writer.start();
+    		}
+    	}
+    }
+
+    /** Body of the background writer: write back queued pages until none
+        come for a while. */
+    private void writeBackPages() {
+    	ArrayList<PageId> batch=new ArrayList<PageId>();
+    	while(true) {
+    		try {
+    			PageId pid=writeBackQueue.poll(WRITER_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+    			if(pid!=null) {
+    				batch.add(pid);
+    				writeBackQueue.drainTo(batch);
+    			}
+    		} catch (InterruptedException e) {
+    		}
+    		if(batch.isEmpty()) {
+    			synchronized(writeBackQueue) {
+    				if(writeBackQueue.isEmpty()) {
+    					writer=null;
+    					return;
+    				}
+    			}
+    			continue;
+    		}
+    		try {
+    			//one log force covers the whole batch
+    			Database.getLogFile().forceAll();
+    			for(PageId pid:batch)
+    				writeBackPage(pid);
+    		} catch (IOException e) {
+    			//left dirty, they are written at commit
+    		}
+    		batch.clear();
+    	}
+    }
+
+    private void writeBackPage(PageId pid) throws IOException {
+    	Frame frame=cache.get(pid);
+    	if(frame==null||frame.imageLog||frame.recLsn==LogFile.NO_LSN)
+    		return;
+    	TransactionId dirtier=frame.page.isDirty();
+    	ReentrantLock op=dirtier==null?null:opLocks.get(dirtier);
+    	if(op==null||!op.tryLock())
+    		return;
+    	try {
+    		//the page cannot change while op is held; force the log past
+    		//it before taking the pool's monitor
+    		Database.getLogFile().forceTo(frame.pageLsn);
+    		synchronized(this) {
+    			if(cache.get(pid)==frame&&!frame.imageLog&&dirtier.equals(frame.page.isDirty())
+    					&&Database.getLogFile().isActive(dirtier))
+    				flushPage(pid);
+    		}
+    	} finally {
+    		op.unlock();
+    	}
+    }
+
+    private ReentrantLock opLock(TransactionId tid) {
+    	ReentrantLock op=opLocks.get(tid);
+    	if(op==null) {
+    		opLocks.putIfAbsent(tid, new ReentrantLock());
+    		op=opLocks.get(tid);
+    	}
+    	return op;
+    }
+
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
@@ -258,14 +465,20 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-    	if(!cache.containsKey(pid))
-    		return;
-    	PageNode pgno=cache.get(pid);
-    	remove(pgno);
-    	cache.remove(pid);
+    	ReentrantLock load=loadLock(pid);
+    	load.lock();
+    	try {
+    		synchronized(clockLock) {
+    			Frame frame=cache.remove(pid);
+    			if(frame!=null&&ring[frame.slot]==frame)
+    				ring[frame.slot]=null;
+    		}
+    	} finally {
+    		load.unlock();
+    	}
     }
 
     /**
@@ -275,22 +488,55 @@ public class BufferPool {
     private synchronized  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	Page pg=cache.get(pid).page;
-    	if(pg.isDirty()!=null) {
+    	Frame frame=cache.get(pid);
+    	if(frame==null)
+    		return;
+    	Page pg=frame.page;
+    	TransactionId dirtier=pg.isDirty();
+    	if(dirtier!=null) {
+    		//write-ahead: the log must be on disk up to the page's last change
+    		LogFile log=Database.getLogFile();
+    		long lsn=frame.pageLsn;
+    		if(frame.imageLog)
+    			lsn=log.logWrite(dirtier, pg.getBeforeImage(), pg);
+    		log.forceTo(lsn);
     		Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pg);
     		pg.markDirty(false, null);
+    		frame.imageLog=false;
+    		frame.recLsn=LogFile.NO_LSN;
     	}
     	
     }
 
+    /**
+     * Log tid's changes that only page images can log, e.g. to B+ tree
+     * pages, as UPDATE records, ahead of its commit record.  Otherwise
+     * they would be logged only when the pages are flushed, after the
+     * commit record, and lost in a crash in between.  The pages are then
+     * flushed like tuple-logged ones, without logging them again.
+     */
+    public synchronized void logPageImages(TransactionId tid) throws IOException {
+    	LogFile log=Database.getLogFile();
+    	for(PageId pid:pagesTouched(tid)) {
+    		Frame frame=cache.get(pid);
+    		if(frame==null||!frame.imageLog||!tid.equals(frame.page.isDirty()))
+    			continue;
+    		long lsn=log.logWrite(tid, frame.page.getBeforeImage(), frame.page);
+    		frame.pageLsn=Math.max(frame.pageLsn, lsn);
+    		if(frame.recLsn==LogFile.NO_LSN)
+    			frame.recLsn=lsn;
+    		frame.imageLog=false;
+    	}
+    }
+
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-    	for(PageId pid:cache.keySet()) {
-    		Page pg=cache.get(pid).page;
-    		if(pg.isDirty()==tid) {
+    	for(PageId pid:pagesTouched(tid)) {
+    		Frame frame=cache.get(pid);
+    		if(frame!=null&&tid.equals(frame.page.isDirty())) {
     			flushPage(pid);
     		}
     	}
@@ -300,203 +546,155 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
     	//System.out.println("restore Page id is "+pid.toString());
-    	PageNode pgnode=cache.get(pid);
-    	if(pgnode.page.isDirty()!=null) {
+    	Frame frame=cache.get(pid);
+    	if(frame!=null&&frame.page.isDirty()!=null) {
     		Page pg=Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-    		//byte data[]=pg.getPageData();
-    		//System.out.println(Arrays.toString(data));
-    		pgnode.page=pg;
-    		cache.put(pid, pgnode);
     		pg.markDirty(false, null);
+    		frame.page=pg;
+    		frame.imageLog=false;
+    		frame.recLsn=LogFile.NO_LSN;
     	}
     	
     }
     
-    public synchronized  void restorePages(TransactionId tid) throws IOException  {
+    public void restorePages(TransactionId tid) throws IOException  {
         // some code goes here
         // not necessary for lab1|lab2
-    	for(PageId pid:cache.keySet()) {
-    		Page pg=cache.get(pid).page;
-    		if(pg.isDirty()==tid) {
+    	for(PageId pid:pagesTouched(tid)) {
+    		Frame frame=cache.get(pid);
+    		if(frame!=null&&tid.equals(frame.page.isDirty())) {
     			restorePage(pid);
     		}
     	}
     }
 
+    private Set<PageId> dirtiedBy(TransactionId tid) {
+    	Set<PageId> dirtied=trandirtypage.get(tid);
+    	if(dirtied==null) {
+    		trandirtypage.putIfAbsent(tid, ConcurrentHashMap.<PageId>newKeySet());
+    		dirtied=trandirtypage.get(tid);
+    	}
+    	return dirtied;
+    }
+
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The pages tid may have dirtied: the ones it dirtied through
+     * insertTuple/deleteTuple, plus the ones it holds a lock on, which
+     * covers callers that mark pages dirty themselves.  Commit and abort
+     * only look at these instead of scanning the whole pool.
      */
-    private synchronized  void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-    	if(cache.size()<=numPages) 
-    		return;
-    	PageNode evict=evictNoDirty(); //不把dirty page移出
-    	cache.remove(evict.page.getId());
+    private Set<PageId> pagesTouched(TransactionId tid) {
+    	Set<PageId> pids=pageLockman.getLockedPages(tid);
+    	Set<PageId> dirtied=trandirtypage.get(tid);
+    	if(dirtied!=null)
+    		pids.addAll(dirtied);
+    	return pids;
     }
 
-    //lru有关函数如下
-    //Lru cache Node
-    public class PageNode{
-    	public PageNode next;
-    	public PageNode pre;
-    	public Page page;
-    	
-    	PageNode(Page page){
-    		this.page=page;
-    		next=null;
-    		pre=null;
-    	}
-    	
-    	PageNode(Page page,PageNode next,PageNode pre){
-    		this.page=page;
-    		this.next=next;
-    		this.pre=pre;
-    	}
-    }
-    
-    public void printLruNode() {
-    	PageNode tmp=header;
-    	while(tmp.next!=tail) {
-    		tmp=tmp.next;
-    		System.out.print(tmp.page.getId().toString());
-    		if(tmp.next!=tail)
-    			System.out.print("->");
-    	}
-    	System.out.print("\n");
-    }
-    
-    public void moveTohead(PageNode pagenode) {
-    	this.remove(pagenode);
-    	this.addFirst(pagenode);
-    }
-    
-    public void remove(PageNode pagenode) {
-    	pagenode.next.pre=pagenode.pre;
-    	pagenode.pre.next=pagenode.next;
-    }
-    
-    public PageNode evictNoDirty() throws DbException {
-    	//System.out.println("evict");
-    	PageNode old=tail.pre;
-    	while(old.page.isDirty()!=null) {
-    		old=old.pre;
-    		if(old==header) {
-    			throw new DbException("no thing can be exicted");
+    /**
+     * Makes pg the cached version of its page, replacing any version that is
+     * already resident, or loading it into a free frame otherwise.
+     */
+    private Frame installPage(Page pg) throws DbException {
+    	PageId pid=pg.getId();
+    	ReentrantLock load=loadLock(pid);
+    	load.lock();
+    	try {
+    		Frame frame=cache.get(pid);
+    		if(frame!=null) {
+    			frame.page=pg;
+    			frame.referenced=true;
+    			return frame;
     		}
+    		return allocFrame(pg);
+    	} finally {
+    		load.unlock();
     	}
-    	this.remove(old);
-    	return old;
     }
-    
-    public PageNode popTail() {
-    	PageNode old=tail.pre;
-    	this.remove(old);
-    	return old;
-    }
-    
-    public void addFirst(PageNode pagenode) {
-    	pagenode.next=header.next;
-    	pagenode.next.pre=pagenode;
-    	pagenode.pre=header;
-    	header.next=pagenode;
-    }
-    
-    public boolean empty() {
-    	return header.next==tail;
+
+    private ReentrantLock loadLock(PageId pid) {
+    	return loadLocks[(pid.hashCode()&0x7fffffff)%LOAD_STRIPES];
     }
-    
-    
-    
-    //lock有关函数如下
-    public class Lock{
-    	int lockType;
-    	TransactionId tid;
-    	
-    	Lock(int lockType,TransactionId tid){
-    		this.lockType=lockType;
-    		this.tid=tid;
+
+    /**
+     * Puts pg into a free frame of the clock, evicting a page first if the
+     * pool is full. Caller must hold the load lock of pg's id.
+     */
+    private Frame allocFrame(Page pg) throws DbException {
+    	synchronized(clockLock) {
+    		int slot=evictPage();
+    		Frame frame=new Frame(pg, slot);
+    		ring[slot]=frame;
+    		cache.put(pg.getId(), frame);
+    		return frame;
     	}
     }
-    
-    public class LockManager{
-    	ConcurrentHashMap<PageId, Vector<Lock>> p2locks;
-    	
-    	public LockManager() {
-			// TODO Auto-generated constructor stub
-    		p2locks=new ConcurrentHashMap<>();
-		}
-    	
-    	public synchronized Boolean acquire(PageId pid,TransactionId tid,int lockType) {
-    		if((!p2locks.containsKey(pid))||p2locks.get(pid)==null) {
-    			Lock lc=new Lock(lockType, tid);
-    			Vector<Lock> ve=new Vector<BufferPool.Lock>();
-    			ve.add(lc);
-    			p2locks.put(pid, ve);
-    			return true;
-    		}
-    		
-    		//System.out.println(2);
-    		Vector<Lock> ve=p2locks.get(pid);
-    		int thisType=1;
-    		if(ve.size()==1&&ve.get(0).lockType==0)
-    			thisType=0;
-    		
-    		//遍历ve，判断是否有相同事务已经得到锁
-    		for(Lock lc:ve) {
-    			if(lc.tid.equals(tid)) {
-    				if(thisType==0||1==lockType)
-    					return true;
-    				else {
-    					if(ve.size()==1) {
-    						lc.lockType=0;
-    						return true;
-    					}
-    					return false;
-    				}
-    			}
-    		}
-    		
-    		//之前没有相同事务得到锁，且page有锁，如果有一个是写锁，return false
-    		if(lockType==0||thisType==0)
-    			return false;
-    		
-    		//都是读锁，可以进去
-    		Lock newSlock=new Lock(1,tid);
-    		ve.add(newSlock);
-    		return true;
-    	}
-    	
-    	public synchronized void release(PageId pid,TransactionId tid) {
-    		if(!p2locks.containsKey(pid)) {
-    			return;
+
+    /**
+     * Discards a page from the buffer pool.
+     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     *
+     * CLOCK with second chance: the hand sweeps the ring, clearing reference
+     * bits, and evicts the first clean page whose bit is already clear.  Dirty
+     * pages are never evicted; pages of running transactions only reach disk
+     * through the background writer (see writeBack), after which they are
+     * clean and can be evicted.  Caller must hold clockLock.
+     * <p>
+     * installPage swaps a dirty page into a resident frame under the load
+     * lock only, so a victim is checked and unlinked under its load lock;
+     * a frame whose load lock is busy is passed over, since waiting for it
+     * under clockLock could deadlock with a thread loading a page.
+     *
+     * @return the index of a free slot in the ring
+     */
+    private int evictPage() throws DbException {
+        // some code goes here
+        // not necessary for lab1
+    	for(int scanned=0;scanned<2*ring.length;++scanned) {
+    		int slot=hand;
+    		hand=(hand+1)%ring.length;
+    		Frame frame=ring[slot];
+    		if(frame==null)
+    			return slot;
+    		if(frame.page.isDirty()!=null)
+    			continue; //不把dirty page移出
+    		if(frame.referenced) {
+    			frame.referenced=false;
+    			continue;
     		}
-    		Vector<Lock> ve=p2locks.get(pid);
-    		for(int i=0;i<ve.size();++i) {
-    			Lock lc=ve.get(i);
-    			
-    			if(lc.tid.equals(tid)) {
-    				ve.remove(lc);
-    				if(ve.isEmpty()) {
-    					p2locks.remove(pid);
-    				}
-    				return;
-    			}
+    		ReentrantLock load=loadLock(frame.page.getId());
+    		if(!load.tryLock())
+    			continue;
+    		try {
+    			if(frame.page.isDirty()!=null)
+    				continue;
+    			cache.remove(frame.page.getId(), frame);
+    			ring[slot]=null;
+    			return slot;
+    		} finally {
+    			load.unlock();
     		}
     	}
-    	
-    	public synchronized Boolean holdslock(PageId pid,TransactionId tid) {
-    		if(!p2locks.containsKey(pid)) {
-    			return false;
-    		}
-    		Vector<Lock> ve=p2locks.get(pid);
-    		for(Lock lc:ve) {
-    			if(lc.tid.equals(tid)) {
-    				return true;
-    			}
-    		}
-    		return false;
+    	throw new DbException("no thing can be exicted");
+    }
+
+    //clock有关函数如下
+    //a resident page and its slot in the clock ring
+    private static class Frame{
+    	volatile Page page;
+    	volatile boolean referenced;
+    	final int slot;
+    	//LSN of the last tuple record of the page and of the first one since
+    	//it was last written (its recLSN), and whether it has changes only
+    	//page images can log
+    	volatile long pageLsn=LogFile.NO_LSN;
+    	volatile long recLsn=LogFile.NO_LSN;
+    	volatile boolean imageLog;
+
+    	Frame(Page page,int slot){
+    		this.page=page;
+    		this.slot=slot;
+    		this.referenced=true;
     	}
     }
 }
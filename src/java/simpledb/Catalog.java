@@ -132,6 +132,16 @@ public class Catalog {
     
     /** Delete all tables from the catalog */
     public void clear() {
+    	for(Table t:id2table.values()) {
+    		try {
+    			if(t.file instanceof HeapFile)
+    				((HeapFile)t.file).close();
+    			else if(t.file instanceof BTreeFile)
+    				((BTreeFile)t.file).close();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
     	id2table.clear();
     	name2id.clear();
         // some code goes here
@@ -148,7 +158,9 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap] [fsm]
+                //"mmap" reads the table through memory-mapped windows, "fsm"
+                //keeps its free-space map in name.fsm between runs
             	//System.out.println(line);
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -181,7 +193,22 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean mapped = false;
+                boolean fsm = false;
+                for (String opt : options.split("\\s+")) {
+                    if (opt.toLowerCase().equals("mmap"))
+                        mapped = true;
+                    else if (opt.toLowerCase().equals("fsm"))
+                        fsm = true;
+                    else if (opt.length() > 0) {
+                        System.out.println("Unknown table option " + opt);
+                        System.exit(0);
+                    }
+                }
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
+                if (fsm)
+                    tabHf.setFreeSpaceMapFile(new File(baseFolder+"/"+name + ".fsm"));
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
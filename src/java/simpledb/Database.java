@@ -75,7 +75,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // close the old catalog's files, which gives back their
+        // preallocated tails
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * ExtentAllocator grows a paged file in extents instead of one page at a
+ * time.  When a new page is needed past the end of the file, a whole extent
+ * is zero-filled with a few large positional writes, and the following
+ * allocations are handed out of it without touching the file.
+ * <p>
+ * It keeps the logical page count apart from the physical length of the
+ * file, so callers see only the pages they allocated or wrote.  A file that
+ * grows behind its back (e.g. another writer appending pages) is picked up
+ * the next time the page count is asked for; the preallocated tail is then
+ * counted as pages, which are empty.  {@link #trim} gives the unused tail
+ * back when the file is closed.  If it never was, e.g. because the process
+ * stopped first, {@link #open} finds the zeroed tail the next time the file
+ * is opened and leaves it out of the page count.
+ * <p>
+ * Page i starts at byte base + i * page size.
+ *
+ * @Threadsafe
+ */
+public class ExtentAllocator {
+
+    /** Default extent size: 1MB. */
+    public static final int DEFAULT_EXTENT_BYTES = 1 << 20;
+    private static final int ZERO_CHUNK = 1 << 20;
+
+    private static volatile int extentBytes = DEFAULT_EXTENT_BYTES;
+    private static final ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_CHUNK);
+
+    private final long base;
+    // length of the file as we last saw or made it, -1 before the first look
+    private long physical = -1;
+    private int pages;
+
+    /**
+     * @param base number of bytes in front of the first page
+     */
+    public ExtentAllocator(long base) {
+        this.base = base;
+    }
+
+    /**
+     * Set the number of bytes files grow by when they run out of pages.
+     * Rounded to whole pages; at most one page is allocated at a time if
+     * smaller than a page.
+     */
+    public static void setExtentBytes(int bytes) {
+        extentBytes = bytes;
+    }
+
+    public static int getExtentBytes() {
+        return extentBytes;
+    }
+
+    /**
+     * Take the length of the file behind ch, which was just opened, unless
+     * that was done before.  All-zero pages at the end of the file, at most
+     * an extent of them, are taken for the unused tail of an extent and not
+     * counted; an all-zero page is an empty page to the files using this
+     * class.  The first keep pages are counted anyway, for a file whose
+     * empty pages may be referenced from elsewhere in it.
+     */
+    public synchronized void open(FileChannel ch, int keep) throws IOException {
+        if (physical >= 0)
+            return;
+        physical = ch.size();
+        pages = (int) Math.max(0, (physical - base) / BufferPool.getPageSize());
+        int limit = Math.max(1, extentBytes / BufferPool.getPageSize());
+        int used = pages;
+        while (used > 0 && pages - used < limit && isZeroPage(ch, used - 1))
+            used--;
+        pages = Math.max(used, Math.min(keep, pages));
+    }
+
+    private boolean isZeroPage(FileChannel ch, int pgno) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        long pos = base + (long) pgno * buf.capacity();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, pos + buf.position()) < 0)
+                break;
+        }
+        for (int i = 0; i < buf.position(); i++) {
+            if (buf.get(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Returns the number of pages of the file behind ch. */
+    public synchronized int numPages(FileChannel ch) throws IOException {
+        open(ch, 0);
+        long size = ch.size();
+        if (size != physical) {
+            physical = size;
+            pages = (int) Math.max(0, (size - base) / BufferPool.getPageSize());
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the page count as of the last call to any method, or -1 if
+     * the file was never looked at.
+     */
+    public synchronized int cachedNumPages() {
+        return physical < 0 ? -1 : pages;
+    }
+
+    /**
+     * Adds an empty (all zero) page to the end of the file, extending the
+     * file by an extent if the preallocated tail is used up.
+     *
+     * @return the number of the new page
+     */
+    public synchronized int allocate(FileChannel ch) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int pgno = numPages(ch);
+        long end = base + (long) (pgno + 1) * pageSize;
+        if (end > physical) {
+            int extentPages = Math.max(1, extentBytes / pageSize);
+            long target = Math.max(end, base + (long) (pgno + extentPages) * pageSize);
+            long pos = physical;
+            while (pos < target) {
+                ByteBuffer buf = zeros.duplicate();
+                buf.limit((int) Math.min(ZERO_CHUNK, target - pos));
+                while (buf.hasRemaining())
+                    pos += ch.write(buf, pos);
+            }
+            physical = target;
+        }
+        pages = pgno + 1;
+        return pgno;
+    }
+
+    /** Record that page pgno was written to the file. */
+    public synchronized void written(int pgno, FileChannel ch) throws IOException {
+        if (pgno >= pages)
+            pages = pgno + 1;
+        long end = base + (long) pages * BufferPool.getPageSize();
+        if (end > physical)
+            physical = ch.size();
+    }
+
+    /**
+     * Cut the preallocated tail off the file, unless the file changed
+     * behind our back since we last looked at it.
+     */
+    public synchronized void trim(FileChannel ch) throws IOException {
+        if (physical < 0 || ch.size() != physical)
+            return;
+        long end = base + (long) pages * BufferPool.getPageSize();
+        if (physical > end) {
+            ch.truncate(end);
+            physical = end;
+        }
+    }
+}
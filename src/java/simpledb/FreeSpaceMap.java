@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one free
+ * slot, so inserts can go straight to such a page instead of reading and
+ * locking the file from the start.
+ * <p>
+ * The map is only a hint.  It is updated whenever a page is read from disk,
+ * written, or changed by an insert or delete, but a transaction that aborts
+ * or a page appended behind the file's back can make it stale.  Inserters
+ * always check the page itself once they hold its lock.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    // bit i is set if page i is believed to have a free slot
+    private final BitSet free = new BitSet();
+
+    /** Record that page pgno has freeSlots empty slots. */
+    public synchronized void update(int pgno, int freeSlots) {
+        free.set(pgno, freeSlots > 0);
+    }
+
+    /**
+     * Returns the first page at or after from believed to have a free slot,
+     * or -1 if there is none.
+     */
+    public synchronized int nextWithSpace(int from) {
+        return free.nextSetBit(from);
+    }
+
+    /** Returns the number of pages believed to have a free slot. */
+    public synchronized int pagesWithSpace() {
+        return free.cardinality();
+    }
+
+    /**
+     * Write the map to f, for a HeapFile of numPages pages.
+     */
+    public synchronized void save(File f, int numPages) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numPages);
+            long[] words = free.toLongArray();
+            out.writeInt(words.length);
+            for (long w : words)
+                out.writeLong(w);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a map written by save.
+     *
+     * @return the map, or null if f is not a saved map or was saved for a
+     *   file of a different number of pages
+     */
+    public static FreeSpaceMap load(File f, int numPages) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != numPages)
+                return null;
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++)
+                words[i] = in.readLong();
+            FreeSpaceMap fsm = new FreeSpaceMap();
+            fsm.free.or(BitSet.valueOf(words));
+            return fsm;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+}
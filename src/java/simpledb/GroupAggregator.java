@@ -0,0 +1,461 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Computes several aggregates at once over tuples grouped by a key of zero
+ * or more fields, in a single pass: one {@link GroupTable} numbers the
+ * groups, and every aggregate keeps its running value per group number in an
+ * array of longs.
+ * <p>
+ * Aggregates over int fields support MIN, MAX, SUM, AVG and COUNT;
+ * aggregates over string fields support only COUNT.
+ * <p>
+ * When there are more groups than fit in {@link Aggregate#getMemoryBudget()},
+ * the partial groups in memory are split on the hash of their key into
+ * partition files and memory starts over empty.  Each partition is then
+ * re-aggregated on its own by merging the partial groups, repartitioning it
+ * with a different hash if it is still too large.
+ */
+public class GroupAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of partitions the groups are split into when spilling. */
+    public static final int PARTITIONS = 32;
+    // deepest repartitioning; a partition still too large there (only if
+    // many distinct keys share a hash) is aggregated in memory regardless
+    private static final int MAX_LEVEL = 4;
+
+    private final int[] gbfields;
+    private final Type[] gbfieldtypes;
+    private final int[] afields;
+    private final Op[] what;
+    // group-by key -> group number; null without grouping, where every
+    // tuple is in group 0
+    private GroupTable groups;
+    // per aggregate and group number: the running min, max or sum (null
+    // for COUNT), and per group number the number of tuples
+    private long[][] acc;
+    private long[] count;
+    private int numGroups;
+
+    // groups kept in memory before spilling, and the partitioning level:
+    // 0 for the aggregator over the input, n+1 for one merging a partition
+    // of level n
+    private final long maxGroups;
+    private final int level;
+    // where spill statistics are counted: the level 0 aggregator
+    private final GroupAggregator root;
+    private int spills;
+    private long spilledBytes;
+    // partition files, their number of partial groups, and their writers
+    // while the input is still coming
+    transient private File[] parts;
+    transient private int[] partCounts;
+    transient private DataOutputStream[] out;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple,
+     *            one per aggregate
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param what
+     *            the aggregation operators, one per aggregate
+     * @throws IllegalArgumentException
+     *             if an operator is not supported over its field's type
+     */
+    public GroupAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields,
+            Type[] afieldtypes, Op[] what) {
+        if (gbfields.length != gbfieldtypes.length)
+            throw new IllegalArgumentException("need one type per group-by field");
+        if (afields.length == 0 || afields.length != afieldtypes.length || afields.length != what.length)
+            throw new IllegalArgumentException("need a type and an operator per aggregate field");
+        for (int a = 0; a < what.length; a++) {
+            if (what[a] == Op.SUM_COUNT || what[a] == Op.SC_AVG)
+                throw new IllegalArgumentException("Agg Op " + what[a] + " is not supported");
+            if (afieldtypes[a] != Type.INT_TYPE && what[a] != Op.COUNT)
+                throw new IllegalArgumentException("String Agg Op is not equle to COUNT");
+        }
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.what = what.clone();
+        maxGroups = Math.max(2, Aggregate.getMemoryBudget() / groupBytes(gbfieldtypes, what));
+        level = 0;
+        root = this;
+        init();
+    }
+
+    /** An aggregator merging the partial groups of a partition of parent. */
+    private GroupAggregator(GroupAggregator parent) {
+        gbfields = new int[parent.gbfields.length];
+        for (int j = 0; j < gbfields.length; j++)
+            gbfields[j] = j;
+        gbfieldtypes = parent.gbfieldtypes;
+        afields = parent.afields;
+        what = parent.what;
+        maxGroups = parent.level + 1 < MAX_LEVEL ? parent.maxGroups : Long.MAX_VALUE;
+        level = parent.level + 1;
+        root = parent.root;
+        init();
+    }
+
+    private void init() {
+        if (gbfields.length > 0)
+            groups = new GroupTable(gbfieldtypes);
+        acc = new long[what.length][];
+        for (int a = 0; a < what.length; a++)
+            if (what[a] != Op.COUNT)
+                acc[a] = new long[16];
+        count = new long[16];
+    }
+
+    /**
+     * @return an estimate of the bytes of memory a group takes: its hash
+     *         table slots, its key and its running aggregates
+     */
+    static long groupBytes(Type[] gbfieldtypes, Op[] what) {
+        long bytes = 32 + 8;
+        if (gbfieldtypes.length == 1 && gbfieldtypes[0] == Type.INT_TYPE)
+            bytes += 4;
+        else
+            for (Type t : gbfieldtypes)
+                bytes += t.getLen() + 32;
+        for (Op op : what)
+            if (op != Op.COUNT)
+                bytes += 8;
+        return bytes;
+    }
+
+    /** @return the number of times groups were written out to partition files */
+    public int getSpillCount() {
+        return spills;
+    }
+
+    /** @return the number of bytes written to partition files */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = 0;
+        if (groups != null) {
+            TupleDesc td = tup.getTupleDesc();
+            for (int j = 0; j < gbfields.length; j++)
+                if (td.getFieldType(gbfields[j]) != gbfieldtypes[j])
+                    throw new IllegalArgumentException("Given Tuple is error tuple");
+            // one probe per tuple, for all the aggregates
+            g = groups.group(tup, gbfields);
+        }
+        if (g == numGroups)
+            addGroup();
+
+        boolean first = count[g]++ == 0;
+        for (int a = 0; a < what.length; a++)
+            if (acc[a] != null)
+                merge(a, g, tup.getInt(afields[a]), first);
+        if (numGroups >= maxGroups)
+            spill();
+    }
+
+    /** Merge a partial group read back from a partition file. */
+    private void mergePartial(Tuple key, long[] values, long n) {
+        int g = groups.group(key, gbfields);
+        if (g == numGroups)
+            addGroup();
+        boolean first = count[g] == 0;
+        count[g] += n;
+        for (int a = 0; a < what.length; a++)
+            if (acc[a] != null)
+                merge(a, g, values[a], first);
+        if (numGroups >= maxGroups)
+            spill();
+    }
+
+    private void addGroup() {
+        int g = numGroups++;
+        if (g == count.length) {
+            count = Arrays.copyOf(count, g * 2);
+            for (int a = 0; a < acc.length; a++)
+                if (acc[a] != null)
+                    acc[a] = Arrays.copyOf(acc[a], g * 2);
+        }
+    }
+
+    // merge value, a single value or a partial min, max or sum, into
+    // aggregate a of group g
+    private void merge(int a, int g, long value, boolean first) {
+        long[] ac = acc[a];
+        if (first) {
+            ac[g] = value;
+            return;
+        }
+        switch (what[a]) {
+        case MIN:
+            if (value < ac[g])
+                ac[g] = value;
+            break;
+        case MAX:
+            if (value > ac[g])
+                ac[g] = value;
+            break;
+        default:
+            ac[g] += value;
+        }
+    }
+
+    /**
+     * Write the groups in memory to the partition files, opening them the
+     * first time, and start over with no groups.
+     */
+    private void spill() {
+        try {
+            if (parts == null) {
+                parts = new File[PARTITIONS];
+                partCounts = new int[PARTITIONS];
+                out = new DataOutputStream[PARTITIONS];
+                for (int p = 0; p < PARTITIONS; p++) {
+                    parts[p] = File.createTempFile("aggregate", ".part");
+                    parts[p].deleteOnExit();
+                    out[p] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(parts[p]), 1 << 16));
+                }
+            }
+            for (int g = 0; g < numGroups; g++) {
+                int p = partitionOf(groups.hash(g), level);
+                DataOutputStream o = out[p];
+                for (int j = 0; j < gbfields.length; j++)
+                    groups.key(g, j).serialize(o);
+                for (int a = 0; a < what.length; a++)
+                    if (acc[a] != null)
+                        o.writeLong(acc[a][g]);
+                o.writeLong(count[g]);
+                partCounts[p]++;
+            }
+        } catch (IOException e) {
+            dropPartitions();
+            throw new RuntimeException("aggregate could not spill", e);
+        }
+        root.spills++;
+        root.spilledBytes += (long) numGroups * recordBytes();
+        Arrays.fill(count, 0, numGroups, 0);
+        numGroups = 0;
+        groups.clear();
+    }
+
+    private int recordBytes() {
+        int bytes = 8;
+        for (Type t : gbfieldtypes)
+            bytes += t.getLen();
+        for (int a = 0; a < what.length; a++)
+            if (acc[a] != null)
+                bytes += 8;
+        return bytes;
+    }
+
+    // each level partitions on different bits of the key hash than the
+    // levels above it and than the GroupTable slots
+    private static int partitionOf(int h, int level) {
+        h = (h ^ level * 0x85EBCA6B) * 0x9E3779B9;
+        h ^= h >>> 15;
+        h *= 0xC2B2AE35;
+        return h >>> 27;    // PARTITIONS is 32
+    }
+
+    /** Write out what is still in memory once the input has ended. */
+    private void finishSpill() throws DbException {
+        if (out == null)
+            return;
+        spill();
+        try {
+            for (DataOutputStream o : out)
+                o.close();
+        } catch (IOException e) {
+            dropPartitions();
+            throw new DbException("aggregate could not spill: " + e);
+        }
+        out = null;
+    }
+
+    /** Aggregate the partial groups in partition p. */
+    private GroupAggregator reaggregate(int p) throws DbException {
+        GroupAggregator sub = new GroupAggregator(this);
+        TupleDesc keyTd = new TupleDesc(gbfieldtypes);
+        long[] values = new long[what.length];
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(parts[p]), 1 << 16));
+            for (int r = 0; r < partCounts[p]; r++) {
+                Tuple key = new Tuple(keyTd);
+                for (int j = 0; j < gbfieldtypes.length; j++)
+                    key.setField(j, gbfieldtypes[j].parse(in));
+                for (int a = 0; a < what.length; a++)
+                    if (acc[a] != null)
+                        values[a] = in.readLong();
+                sub.mergePartial(key, values, in.readLong());
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot read aggregate partition: " + e);
+        } catch (ParseException e) {
+            throw new DbException("cannot read aggregate partition: " + e);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException e) {
+                // nothing was written, nothing is lost
+            }
+        }
+        sub.finishSpill();
+        return sub;
+    }
+
+    private void dropPartitions() {
+        if (parts == null)
+            return;
+        if (out != null)
+            for (DataOutputStream o : out) {
+                try {
+                    o.close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+            }
+        for (File f : parts)
+            if (f != null)
+                f.delete();
+        parts = null;
+        out = null;
+    }
+
+    /** @return the result of aggregate a for group g, which must fit in an int */
+    private int result(int a, int g) {
+        long r;
+        switch (what[a]) {
+        case COUNT:
+            r = count[g];
+            break;
+        case AVG:
+            r = acc[a][g] / count[g];
+            break;
+        default:
+            r = acc[a][g];
+        }
+        if (r != (int) r)
+            throw new ArithmeticException(what[a] + " of group " + g + " overflows an int: " + r);
+        return (int) r;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.  If the groups were
+     * spilled, closing the iterator deletes the partition files.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the value of each aggregate, in the order given to the
+     *         constructor.
+     */
+    public OpIterator iterator() {
+        return new GroupAggregatorIterator();
+    }
+
+    public class GroupAggregatorIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td;
+        // next group to return, and the number of groups when opened
+        private int next = -1;
+        private int end;
+        // once spilled: the partition being returned, and the results of
+        // re-aggregating it
+        private int part;
+        private OpIterator partIt;
+
+        public GroupAggregatorIterator() {
+            Type[] types = new Type[gbfields.length + what.length];
+            String[] names = new String[types.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = i < gbfields.length ? gbfieldtypes[i] : Type.INT_TYPE;
+                names[i] = "";
+            }
+            td = new TupleDesc(types, names);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            finishSpill();
+            closePart();
+            next = 0;
+            end = numGroups;
+            part = -1;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (next < 0)
+                return false;
+            if (next < end)
+                return true;
+            if (parts == null)
+                return false;
+            while (partIt == null || !partIt.hasNext()) {
+                closePart();
+                if (part + 1 >= PARTITIONS)
+                    return false;
+                partIt = reaggregate(++part).iterator();
+                partIt.open();
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (next >= end)
+                return partIt.next();
+            int g = next++;
+            Tuple res = new Tuple(td);
+            for (int j = 0; j < gbfields.length; j++)
+                res.setField(j, groups.key(g, j));
+            for (int a = 0; a < what.length; a++)
+                res.setField(gbfields.length + a, new IntField(result(a, g)));
+            return res;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            next = -1;
+            closePart();
+            dropPartitions();
+        }
+
+        private void closePart() {
+            if (partIt != null)
+                partIt.close();
+            partIt = null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * GroupTable numbers the distinct group-by values an aggregator sees: each
+ * new value gets the next group number, 0, 1, 2, ..., so per-group state can
+ * live in plain arrays indexed by group.
+ * <p>
+ * It is an open-addressing hash table with linear probing, kept at most half
+ * full.  Int keys are stored as primitives; for any other key, including a
+ * composite key over several fields, the slot holds its hash, so a probe
+ * only calls equals() on a hash match.
+ * Looking up a value and adding it if it is new is a single probe sequence.
+ */
+public class GroupTable {
+
+    private final boolean intType;
+    // number of fields in a key
+    private final int width;
+    // slot -> (key or hash) << 32 | group number + 1, or 0 if empty; one
+    // word per slot so a probe touches a single cache line
+    private long[] slots;
+    // group number -> key; fieldKeys holds width fields per group
+    private int[] intKeys;
+    private Field[] fieldKeys;
+    private int size;
+
+    /**
+     * @param type
+     *            the type of the group-by values
+     */
+    public GroupTable(Type type) {
+        this(new Type[] { type });
+    }
+
+    /**
+     * @param types
+     *            the types of the fields of a composite group-by key
+     */
+    public GroupTable(Type[] types) {
+        if (types.length == 0)
+            throw new IllegalArgumentException("a group-by key needs at least one field");
+        width = types.length;
+        intType = width == 1 && types[0] == Type.INT_TYPE;
+        slots = new long[16];
+        if (intType)
+            intKeys = new int[8];
+        else
+            fieldKeys = new Field[8 * width];
+    }
+
+    /** @return the number of fields in a key */
+    public int width() {
+        return width;
+    }
+
+    /** @return the number of distinct values seen */
+    public int size() {
+        return size;
+    }
+
+    /** @return the group number of int value key, numbering it if it is new */
+    public int group(int key) {
+        int mask = slots.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == 0) {
+                if (size == intKeys.length)
+                    intKeys = Arrays.copyOf(intKeys, size * 2);
+                intKeys[size] = key;
+                return add(i, key);
+            }
+            if ((int) (slot >>> 32) == key)
+                return (int) slot - 1;
+        }
+    }
+
+    /**
+     * @return the group number of value key, numbering it if it is new; the
+     *         key must be a single field
+     */
+    public int group(Field key) {
+        if (intType)
+            return group(((IntField) key).getValue());
+        if (width != 1)
+            throw new IllegalArgumentException("key has " + width + " fields");
+        int h = key.hashCode();
+        int mask = slots.length - 1;
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == 0) {
+                if (size == fieldKeys.length)
+                    fieldKeys = Arrays.copyOf(fieldKeys, size * 2);
+                fieldKeys[size] = key;
+                return add(i, h);
+            }
+            if ((int) (slot >>> 32) == h && fieldKeys[(int) slot - 1].equals(key))
+                return (int) slot - 1;
+        }
+    }
+
+    /**
+     * @return the group number of the key made of the given fields of t,
+     *         numbering it if it is new
+     */
+    public int group(Tuple t, int[] fields) {
+        if (intType)
+            return group(t.getInt(fields[0]));
+        if (width == 1)
+            return group(t.getField(fields[0]));
+        int h = 1;
+        for (int f : fields)
+            h = 31 * h + t.getField(f).hashCode();
+        int mask = slots.length - 1;
+        for (int i = mix(h) & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == 0) {
+                if ((size + 1) * width > fieldKeys.length)
+                    fieldKeys = Arrays.copyOf(fieldKeys, fieldKeys.length * 2);
+                for (int j = 0; j < width; j++)
+                    fieldKeys[size * width + j] = t.getField(fields[j]);
+                return add(i, h);
+            }
+            if ((int) (slot >>> 32) == h && keyEquals((int) slot - 1, t, fields))
+                return (int) slot - 1;
+        }
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] fields) {
+        for (int j = 0; j < width; j++)
+            if (!fieldKeys[g * width + j].equals(t.getField(fields[j])))
+                return false;
+        return true;
+    }
+
+    /** @return the value numbered g; the key must be a single field */
+    public Field key(int g) {
+        return key(g, 0);
+    }
+
+    /** @return field j of the key numbered g */
+    public Field key(int g, int j) {
+        if (g >= size || j >= width)
+            throw new IndexOutOfBoundsException("no group " + g + " field " + j);
+        return intType ? new IntField(intKeys[g]) : fieldKeys[g * width + j];
+    }
+
+    /** @return the hash of the key numbered g */
+    public int hash(int g) {
+        return intType ? intKeys[g] : hashOf(g);
+    }
+
+    /** Forget every key, keeping the space allocated for them. */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        if (fieldKeys != null)
+            Arrays.fill(fieldKeys, 0, size * width, null);
+        size = 0;
+    }
+
+    // number the next group, at slot i under key (or hash) k
+    private int add(int i, int k) {
+        int g = size++;
+        slots[i] = entry(k, g);
+        if (size * 2 > slots.length)
+            rehash();
+        return g;
+    }
+
+    private void rehash() {
+        slots = new long[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int g = 0; g < size; g++) {
+            int k = hash(g);
+            int i = mix(k) & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = entry(k, g);
+        }
+    }
+
+    private int hashOf(int g) {
+        if (width == 1)
+            return fieldKeys[g].hashCode();
+        int h = 1;
+        for (int j = 0; j < width; j++)
+            h = 31 * h + fieldKeys[g * width + j].hashCode();
+        return h;
+    }
+
+    private static long entry(int k, int g) {
+        return ((long) k << 32) | (g + 1L);
+    }
+
+    // IntField hashes to its value, so spread dense runs of keys (and the
+    // low bits of string hashes) over the table
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,13 +1,32 @@
 package simpledb;
 
+import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin builds a hash table on the join field of child1 and probes it
+ * with each tuple of child2.  If child1 does not fit in the memory budget,
+ * it becomes a grace hash join: both inputs are split on the hash of their
+ * join field into partition files, and the partitions are then joined pair
+ * by pair, so each input is read from its child once and from disk once.  A
+ * partition that is still too large for the budget (e.g. one very common
+ * key) is joined a budget-sized chunk at a time, rescanning only its probe
+ * partition.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for the hash table, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /** Number of partitions the inputs are split into when spilling. */
+    public static final int PARTITIONS = 32;
+
+    private static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
     private JoinPredicate pred;
     private OpIterator child1, child2;
     private TupleDesc comboTD;
@@ -17,7 +36,7 @@ public class HashEquiJoin extends Operator {
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -32,6 +51,18 @@ public class HashEquiJoin extends Operator {
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * Set the number of bytes of build tuples a HashEquiJoin keeps in memory
+     * before it spills to partition files.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -39,7 +70,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -49,33 +80,56 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
+
+    /** Returns true if the last open() had to partition its inputs to disk. */
+    public boolean isSpilled() {
+        return buildParts != null;
+    }
+
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    // build tuples that fit in the memory budget
+    private int maxBuildTuples;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
+    // spill state: partition files of each input, the partition being
+    // joined, and the readers over its build and probe files
+    transient private File[] buildParts, probeParts;
+    transient private int[] buildCounts, probeCounts;
+    transient private int part;
+    transient private TupleReader buildIn, probeIn;
+
+    /**
+     * Fill the map with tuples of src, up to maxBuildTuples.
+     * @return true if src has tuples left
+     */
+    private boolean loadMap(TupleSource src) throws DbException, TransactionAbortedException {
         int cnt = 0;
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
+        while (cnt < maxBuildTuples) {
+            t1 = src.next();
+            if (t1 == null)
+                return false;
             ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
             if (list == null) {
                 list = new ArrayList<Tuple>();
                 map.put(t1.getField(pred.getField1()), list);
             }
+            // the map must not pin the pages its tuples were read from
+            t1.materialize();
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            cnt++;
         }
-        return cnt > 0;
-
+        return src.hasMore();
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        dropPartitions();
         child1.open();
         child2.open();
-        loadMap();
+        long tupleBytes = Tuple.heapSize(child1.getTupleDesc());
+        maxBuildTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / tupleBytes));
+        if (loadMap(childSource(child1)))
+            spill();
         super.open();
     }
 
@@ -87,11 +141,18 @@ public class HashEquiJoin extends Operator {
         this.t2=null;
         this.listIt=null;
         this.map.clear();
+        dropPartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
-        child2.rewind();
+        listIt = null;
+        if (buildParts == null) {
+            child2.rewind();
+            return;
+        }
+        closeReaders();
+        part = -1;
+        nextBuildChunk();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -110,7 +171,7 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
@@ -131,32 +192,138 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+
+            // loop around the probe side
+            Tuple probe = nextProbe();
+            if (probe != null) {
+                // if match, create a combined tuple and fill it with the
+                // values from both tuples
+                ArrayList<Tuple> l = map.get(probe.getField(pred.getField2()));
+                if (l != null) {
+                    t2 = probe;
+                    listIt = l.iterator();
+                }
+                continue;
+            }
+
+            // probe side is done: move on to the next chunk of the build side
+            listIt = null;
+            if (!nextBuildChunk())
+                return null;
         }
+    }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (buildParts == null)
+            return child2.hasNext() ? child2.next() : null;
+        return probeIn.next();
+    }
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+    /**
+     * Load the next chunk of build tuples and restart the probe side on it.
+     * @return false if the build side is exhausted
+     */
+    private boolean nextBuildChunk() throws DbException, TransactionAbortedException {
+        if (buildParts == null)
+            return false;   // everything fit in the map the first time
+        if (buildIn == null || !buildIn.hasMore()) {
+            closeReaders();
+            if (++part >= PARTITIONS) {
+                map.clear();
+                return false;
+            }
+            buildIn = new TupleReader(buildParts[part], buildCounts[part], child1.getTupleDesc());
+        }
+        loadMap(buildIn);
+        if (probeIn != null)
+            probeIn.close();
+        probeIn = new TupleReader(probeParts[part], probeCounts[part], child2.getTupleDesc());
+        return true;
+    }
 
-            return processList();
+    /**
+     * Write both inputs to partition files: what is in the map, the rest of
+     * child1, then all of child2.
+     */
+    private void spill() throws DbException, TransactionAbortedException {
+        try {
+            buildParts = new File[PARTITIONS];
+            probeParts = new File[PARTITIONS];
+            buildCounts = new int[PARTITIONS];
+            probeCounts = new int[PARTITIONS];
+            TupleWriter[] out = openPartitions(buildParts, buildCounts);
+            for (ArrayList<Tuple> list : map.values())
+                for (Tuple t : list)
+                    out[partitionOf(t.getField(pred.getField1()))].write(t);
+            map.clear();
+            while (child1.hasNext()) {
+                Tuple t = child1.next();
+                out[partitionOf(t.getField(pred.getField1()))].write(t);
+            }
+            closeAll(out);
 
+            out = openPartitions(probeParts, probeCounts);
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                out[partitionOf(t.getField(pred.getField2()))].write(t);
+            }
+            closeAll(out);
+        } catch (IOException e) {
+            dropPartitions();
+            throw new DbException("hash join could not spill: " + e);
         }
+        part = -1;
+        nextBuildChunk();
+    }
+
+    static int partitionOf(Field key) {
+        // the high bits of the scrambled hash depend on all bits of the key,
+        // while the in-memory map of a partition buckets on the low bits;
+        // taking low bits here would leave each partition's map with keys
+        // that agree in their low bits, i.e. on 1/PARTITIONS of its buckets
+        int h = key.hashCode() * 0x9E3779B9;
+        return h >>> 27;    // PARTITIONS is 32
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+    private static TupleWriter[] openPartitions(File[] files, int[] counts) throws IOException {
+        TupleWriter[] out = new TupleWriter[files.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("hashjoin", ".part");
+            files[i].deleteOnExit();
+            out[i] = new TupleWriter(files[i], counts, i);
         }
+        return out;
+    }
+
+    private static void closeAll(TupleWriter[] out) throws IOException {
+        for (TupleWriter w : out)
+            w.close();
+    }
+
+    private void closeReaders() {
+        if (buildIn != null)
+            buildIn.close();
+        if (probeIn != null)
+            probeIn.close();
+        buildIn = null;
+        probeIn = null;
+    }
 
-        return null;
+    private void dropPartitions() {
+        closeReaders();
+        for (File[] files : new File[][]{buildParts, probeParts}) {
+            if (files == null)
+                continue;
+            for (File f : files)
+                if (f != null)
+                    f.delete();
+        }
+        buildParts = null;
+        probeParts = null;
     }
 
     @Override
@@ -169,5 +336,97 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
+    /** Tuples one at a time, null at the end. */
+    private interface TupleSource {
+        Tuple next() throws DbException, TransactionAbortedException;
+        boolean hasMore() throws DbException, TransactionAbortedException;
+    }
+
+    private static TupleSource childSource(final OpIterator child) {
+        return new TupleSource() {
+            public Tuple next() throws DbException, TransactionAbortedException {
+                return child.hasNext() ? child.next() : null;
+            }
+            public boolean hasMore() throws DbException, TransactionAbortedException {
+                return child.hasNext();
+            }
+        };
+    }
+
+    /** Appends tuples to a partition file in their serialized form. */
+    private static class TupleWriter {
+        private final DataOutputStream out;
+        private final int[] counts;
+        private final int slot;
+
+        // counts[slot] is kept up to date with the number of tuples written
+        TupleWriter(File f, int[] counts, int slot) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+            this.counts = counts;
+            this.slot = slot;
+        }
+
+        void write(Tuple t) throws IOException {
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                t.getField(i).serialize(out);
+            counts[slot]++;
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Reads back the tuples of a partition file. */
+    private static class TupleReader implements TupleSource {
+        private final DataInputStream in;
+        private final TupleDesc td;
+        private int left;
+        private Tuple next;
+
+        TupleReader(File f, int count, TupleDesc td) throws DbException {
+            this.td = td;
+            this.left = count;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            } catch (IOException e) {
+                throw new DbException("cannot open hash join partition: " + e);
+            }
+        }
+
+        public boolean hasMore() throws DbException {
+            if (next == null)
+                next = read();
+            return next != null;
+        }
+
+        public Tuple next() throws DbException {
+            Tuple t = hasMore() ? next : null;
+            next = null;
+            return t;
+        }
+
+        private Tuple read() throws DbException {
+            if (left == 0)
+                return null;
+            try {
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+                left--;
+                return t;
+            } catch (ParseException e) {
+                throw new DbException("cannot read hash join partition: " + e);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written, nothing is lost
+            }
+        }
+    }
 }
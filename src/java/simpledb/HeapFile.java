@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,6 +20,24 @@ public class HeapFile implements DbFile {
 
 	private File f;
 	private TupleDesc td;
+	// kept open for the lifetime of the table; all I/O is positional so
+	// concurrent readers never share a file pointer
+	private volatile FileChannel channel;
+	// page count, and growth of the file an extent at a time
+	private final ExtentAllocator extents=new ExtentAllocator(0);
+
+	/** Size of the windows a memory-mapped HeapFile maps its file in. */
+	static final int MAP_WINDOW_BYTES=64<<20;
+	// read-mostly tables can read pages straight out of read-only mapped
+	// windows of the file; writes still go through the channel, which the
+	// shared mapping sees
+	private final boolean mapped;
+	private volatile MappedByteBuffer[] windows=new MappedByteBuffer[0];
+	private int windowPageSize;
+	// pages with a free slot, built on the first insert
+	private volatile FreeSpaceMap freeSpace;
+	// where the free-space map is kept while the table is closed, or null
+	private File freeSpaceFile;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -25,10 +46,43 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            if true, pages are read from memory-mapped windows of the
+     *            file instead of with a read call per page.  Meant for
+     *            read-mostly tables.
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
         // some code goes here
-    	//System.out.println("origin f.size is :"+f.length());
     	this.f=f;
     	this.td=td;
+    	this.mapped=mapped;
+    }
+
+    /**
+     * Returns true if pages of this file are read through memory-mapped
+     * windows.
+     */
+    public boolean isMapped() {
+    	return mapped;
+    }
+
+    /**
+     * Keep the free-space map in side file fsm while the table is closed, so
+     * opening a large table does not read every page header to rebuild it.
+     * The side file is removed when it is loaded, so after a crash the map
+     * is rebuilt rather than trusted.
+     */
+    public synchronized void setFreeSpaceMapFile(File fsm) {
+    	this.freeSpaceFile=fsm;
     }
 
     /**
@@ -68,63 +122,206 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid){
         // some code goes here
-    	//int tableid=pid.getTableId();
     	int pgno=pid.getPageNumber();
-    	
-    	RandomAccessFile rf=null;
-    	
+    	int pageSize=BufferPool.getPageSize();
     	try {
-			rf=new RandomAccessFile(f,"r");
-			if((pgno+1)*BufferPool.getPageSize()>rf.length()) {
-				rf.close();
-				throw new IllegalArgumentException(String.format("read pgno %d but file has only %d pages", pgno,numPages()));
-			}
-			byte bytes[]=new byte[BufferPool.getPageSize()];
-			rf.seek(pgno*BufferPool.getPageSize());
-			int res=rf.read(bytes,0,BufferPool.getPageSize());
-			if(res!=BufferPool.getPageSize())
-				throw new IllegalArgumentException();
-			HeapPageId id=new HeapPageId(pid.getTableId(), pid.getPageNumber());
-			return new HeapPage(id, bytes);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}finally {
-			try {
-				rf.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-        throw new IllegalArgumentException();
+    		if(mapped) {
+    			ByteBuffer page=mappedPage(pgno);
+    			if(page!=null)
+    				return noteFreeSpace(new HeapPage(new HeapPageId(pid.getTableId(), pgno), page));
+    		}
+    		byte bytes[]=new byte[pageSize];
+    		ByteBuffer buf=ByteBuffer.wrap(bytes);
+    		long pos=(long)pgno*pageSize;
+    		while(buf.hasRemaining()) {
+    			int res=channel().read(buf, pos+buf.position());
+    			if(res<0)
+    				throw new IllegalArgumentException(String.format("read pgno %d but file has only %d pages", pgno,numPages()));
+    		}
+    		return noteFreeSpace(new HeapPage(new HeapPageId(pid.getTableId(), pgno), bytes));
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		throw new IllegalArgumentException(e);
+    	}
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-    	//System.out.println("write page :"+page.getId().getPageNumber());
     	int pgno=page.getId().getPageNumber();
-    	byte[] data=page.getPageData();
-    	
-    	RandomAccessFile rf=new RandomAccessFile(f, "rw");
-    	if(pgno>numPages()) {
-    		rf.close();
+    	if(pgno>cachedNumPages()&&pgno>numPages()) {
     		throw new IllegalArgumentException();
     	}
-    	rf.seek(pgno*BufferPool.getPageSize());
-    	rf.write(data, 0, BufferPool.getPageSize());
-    	rf.close();
-    } 
+    	writePageData(pgno, page.getPageData());
+    	if(page instanceof HeapPage)
+    		noteFreeSpace((HeapPage)page);
+    }
+
+    private HeapPage noteFreeSpace(HeapPage pg) {
+    	FreeSpaceMap fsm=freeSpace;
+    	if(fsm!=null)
+    		fsm.update(pg.getId().getPageNumber(), pg.getNumEmptySlots());
+    	return pg;
+    }
+
+    /**
+     * Returns the free-space map, loading it from the side file or, failing
+     * that, rebuilding it from the page headers on first use.
+     */
+    FreeSpaceMap freeSpaceMap() throws IOException {
+    	FreeSpaceMap fsm=freeSpace;
+    	if(fsm!=null)
+    		return fsm;
+    	synchronized(this) {
+    		if(freeSpace!=null)
+    			return freeSpace;
+    		int n=numPages();
+    		if(freeSpaceFile!=null&&freeSpaceFile.exists()) {
+    			fsm=FreeSpaceMap.load(freeSpaceFile, n);
+    			freeSpaceFile.delete();
+    		}
+    		if(fsm==null)
+    			fsm=buildFreeSpaceMap(n);
+    		freeSpace=fsm;
+    		return fsm;
+    	}
+    }
+
+    // reads just the header of every page
+    private FreeSpaceMap buildFreeSpaceMap(int n) throws IOException {
+    	FreeSpaceMap fsm=new FreeSpaceMap();
+    	int pageSize=BufferPool.getPageSize();
+    	int slots=pageSize*8/(td.getSize()*8+1);
+    	ByteBuffer header=ByteBuffer.allocate((slots+7)/8);
+    	for(int pgno=0;pgno<n;pgno++) {
+    		header.clear();
+    		long pos=(long)pgno*pageSize;
+    		while(header.hasRemaining()) {
+    			if(channel().read(header, pos+header.position())<0)
+    				break;
+    		}
+    		int used=0;
+    		for(int i=0;i<header.position();i++)
+    			used+=Integer.bitCount(header.get(i)&0xFF);
+    		fsm.update(pgno, slots-used);
+    	}
+    	return fsm;
+    }
+
+    private void writePageData(int pgno, byte[] data) throws IOException {
+    	int pageSize=BufferPool.getPageSize();
+    	ByteBuffer buf=ByteBuffer.wrap(data, 0, pageSize);
+    	long pos=(long)pgno*pageSize;
+    	while(buf.hasRemaining())
+    		channel().write(buf, pos+buf.position());
+    	extents.written(pgno, channel());
+    }
+
+    /**
+     * Returns the channel of the backing file, opening it on first use or if
+     * it was closed (e.g. by an interrupted thread).
+     */
+    private FileChannel channel() throws IOException {
+    	FileChannel ch=channel;
+    	if(ch!=null&&ch.isOpen())
+    		return ch;
+    	synchronized(this) {
+    		if(channel==null||!channel.isOpen()) {
+    			channel=new RandomAccessFile(f, "rw").getChannel();
+    			// page 0 stays, even if empty: files are created with it
+    			extents.open(channel, 1);
+    		}
+    		return channel;
+    	}
+    }
+
+    /**
+     * Returns page pgno as a view of a mapped window of the file, mapping or
+     * remapping the window if the file has grown, or null if the page is
+     * past the end of the file.
+     */
+    private ByteBuffer mappedPage(int pgno) throws IOException {
+    	int pageSize=BufferPool.getPageSize();
+    	int perWindow=Math.max(1, MAP_WINDOW_BYTES/pageSize);
+    	int w=pgno/perWindow;
+    	int off=(pgno%perWindow)*pageSize;
+    	MappedByteBuffer[] ws=windows;
+    	MappedByteBuffer win=w<ws.length?ws[w]:null;
+    	if(win==null||win.capacity()<off+pageSize||windowPageSize!=pageSize) {
+    		win=remap(w, perWindow, pageSize);
+    		if(win==null||win.capacity()<off+pageSize)
+    			return null;
+    	}
+    	ByteBuffer page=win.duplicate();
+    	page.limit(off+pageSize);
+    	page.position(off);
+    	return page;
+    }
+
+    private synchronized MappedByteBuffer remap(int w, int perWindow, int pageSize) throws IOException {
+    	if(windowPageSize!=pageSize) {
+    		windows=new MappedByteBuffer[0];
+    		windowPageSize=pageSize;
+    	}
+    	long start=(long)w*perWindow*pageSize;
+    	long size=Math.min((long)perWindow*pageSize, channel().size()-start);
+    	if(size<=0)
+    		return null;
+    	MappedByteBuffer[] ws=windows;
+    	if(w<ws.length&&ws[w]!=null&&ws[w].capacity()>=size)
+    		return ws[w];
+    	MappedByteBuffer win=channel().map(FileChannel.MapMode.READ_ONLY, start, size);
+    	ws=Arrays.copyOf(ws, Math.max(ws.length, w+1));
+    	ws[w]=win;
+    	windows=ws;
+    	return win;
+    }
+
+    /**
+     * Closes the backing file.  It is reopened if the table is used again.
+     */
+    public synchronized void close() throws IOException {
+    	if(freeSpaceFile!=null&&freeSpace!=null)
+    		freeSpace.save(freeSpaceFile, numPages());
+    	freeSpace=null;
+    	windows=new MappedByteBuffer[0];
+    	if(channel!=null) {
+    		extents.trim(channel);
+    		channel.close();
+    	}
+    	channel=null;
+    }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
-    	//System.out.println("file.size is :"+f.length());
-        return (int)Math.floor(f.length()*1.0/BufferPool.getPageSize());
+    	//asks the open channel, also picks up pages appended behind our back
+    	try {
+    		return extents.numPages(channel());
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+
+    /**
+     * Returns the page count cached in memory, without touching the file.
+     * May lag behind pages appended to the file by someone else.
+     */
+    int cachedNumPages() {
+    	int n=extents.cachedNumPages();
+    	return n<0?numPages():n;
+    }
+
+    /**
+     * Appends an empty page to the file.  The file grows an extent at a time
+     * (see {@link ExtentAllocator}); an all-zero page is an empty HeapPage.
+     * @return the number of the new page
+     */
+    private int appendEmptyPage() throws IOException {
+    	return extents.allocate(channel());
     }
 
     // see DbFile.java for javadocs
@@ -133,29 +330,31 @@ public class HeapFile implements DbFile {
     	// some code goes here
     	if(!t.getTupleDesc().equals(td))
     		throw  new DbException("tupeldesc is not fit");
+        BufferPool bp=Database.getBufferPool();
+        LockManager lockman=bp.getLockManager();
+        FreeSpaceMap fsm=freeSpaceMap();
         HeapPage pg=null;
-        int i=0;
-        while(i<numPages()) {
-        	//System.out.println(numPages()+":"+i);
+        for(int i=fsm.nextWithSpace(0);i>=0;i=fsm.nextWithSpace(i+1)) {
         	PageId pid=new HeapPageId(getId(), i);
-        	pg=(HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-        	//Database.getBufferPool().printLruNode(); 
-        	if(pg.getNumEmptySlots()>0) {
+        	//another transaction is inserting here: go to the next page rather than queue behind it
+        	if(!lockman.isAvailable(pid, tid, Permissions.READ_WRITE))
+        		continue;
+        	boolean held=lockman.holdsLock(pid, tid);
+        	HeapPage p=(HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
+        	if(p.getNumEmptySlots()>0) {
+        		pg=p;
         		break;
         	}
-        	Database.getBufferPool().releasePage(tid, pid); //检查完之后，释放锁
-        	i++;
+        	fsm.update(i, 0);
+        	if(!held)
+        		bp.releasePage(tid, pid); //检查完之后，释放锁
         }
-        if(pg==null||pg.getNumEmptySlots()==0) {	//注意如果循环结束，pg不为空，但是没有空间
-        	BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f,true));
-            byte[] emptyData = HeapPage.createEmptyPageData();
-            bw.write(emptyData);
-            bw.close();
-        	pg=(HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);//再读一次，得到锁
-        	//System.out.println("pid is"+pg.getId().toString());
-        	//Database.getBufferPool().printLruNode();
+        if(pg==null) {	//没有空闲的页，或者都被别的事务占着
+        	int i=appendEmptyPage();
+        	pg=(HeapPage)bp.getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);//再读一次，得到锁
         }
         pg.insertTuple(t);
+        fsm.update(pg.getId().getPageNumber(), pg.getNumEmptySlots());
     	ArrayList<Page> res=new ArrayList<Page>();
     	res.add(pg);
         return res;
@@ -170,6 +369,9 @@ public class HeapFile implements DbFile {
     		throw  new DbException("tupeldesc is not fit");
     	HeapPage pg=(HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         pg.deleteTuple(t);
+        FreeSpaceMap fsm=freeSpace;
+        if(fsm!=null)
+        	fsm.update(pg.getId().getPageNumber(), pg.getNumEmptySlots());
         ArrayList<Page> res=new ArrayList<Page>();
     	res.add(pg);
         return res;
@@ -188,6 +390,7 @@ public class HeapFile implements DbFile {
     	private final TransactionId tid;
     	private Iterator<Tuple> iter;
     	private int WhichPage;
+    	private int numPages;
     	
     	public HeapFileIterator(HeapFile hf,TransactionId td) {
 			// TODO Auto-generated constructor stub
@@ -200,12 +403,13 @@ public class HeapFile implements DbFile {
 		public void open() throws DbException, TransactionAbortedException {
 			// TODO Auto-generated method stub
 			WhichPage=0;
+			numPages=hpfile.numPages();
 			iter=getPageTuples(WhichPage);
 		}
 		
 		public Iterator<Tuple> getPageTuples(int WhichPage) throws TransactionAbortedException, DbException{
 			//System.out.println("heapfile size is:"+hpfile.numPages());
-			if(WhichPage>=0&&WhichPage<hpfile.numPages()) {
+			if(WhichPage>=0&&WhichPage<numPages) {
 				PageId pid=new HeapPageId(hpfile.getId(), WhichPage);
 				return ((HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY)).iterator();
 			}else
@@ -218,13 +422,14 @@ public class HeapFile implements DbFile {
 			// TODO Auto-generated method stub
 			if(iter==null)
 				return false;
-			if(!iter.hasNext()) {
-				if(WhichPage<(hpfile.numPages()-1)) {
-					WhichPage++;
-					iter=getPageTuples(WhichPage);
-					return iter.hasNext();
-				}
-				return false;
+			while(!iter.hasNext()) {
+				//only look at the file again once the known pages are used up
+				if(WhichPage>=numPages-1)
+					numPages=hpfile.cachedNumPages();
+				if(WhichPage>=numPages-1)
+					return false;
+				WhichPage++;
+				iter=getPageTuples(WhichPage);
 			}
 			return true;
 		}
@@ -1,10 +1,8 @@
 package simpledb;
 
 import java.util.*;
-
-import com.sun.org.apache.bcel.internal.generic.ISUB;
-
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,11 +16,22 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    byte[] oldData;
+    final int headerSize;
+    final int[] fieldOffsets;
+    // the page image: header bits and tuple bytes are read straight out of
+    // it, nothing is decoded up front
+    private ByteBuffer data;
+    // data is a view we must not write to (the caller's array, a mapped
+    // window of the file, or the bytes that Tuples handed out decode from);
+    // the first modification copies it
+    private boolean shared;
+
+    // page image as of the last setBeforeImage(), captured just before the
+    // first modification after it; null means the page has not changed since,
+    // so the before image is the current image and read-only pages carry no
+    // second copy
+    ByteBuffer oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId dirtyId;
@@ -43,29 +52,28 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from the page image between data's position and
+     * limit, e.g. a slice of a memory-mapped file.  The page keeps a view of
+     * the buffer and decodes tuples from it on access; the buffer is never
+     * written to, the first modification of the page works on a copy.  A
+     * buffer without a backing array, i.e. a mapped one, is copied before
+     * the first tuple is handed out.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        //System.out.println(this.numSlots+" "+id.getPageNumber());
+        this.headerSize = getHeaderSize();
         this.dirtyId=null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-        }
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.data=data.slice();
+        this.shared=true;
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -92,12 +100,16 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                // unmodified: our own array is written in place once we
+                // change, so the image must not share it
+                if (oldDataRef == null)
+                    return new HeapPage(pid, shared ? (ByteBuffer) data.duplicate().clear() : ByteBuffer.wrap(getPageData()));
             }
-            return new HeapPage(pid,oldDataRef);
+            return new HeapPage(pid,(ByteBuffer) oldDataRef.duplicate().clear());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -109,7 +121,25 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = null;
+        }
+    }
+
+    /**
+     * Remember the current image as the before image, unless one was already
+     * taken since the last setBeforeImage().  Must run before data changes.
+     */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock) {
+            if (oldData != null)
+                return;
+            // a shared heap array is never written (the first write copies
+            // it), so it can serve as the image as is; a mapped window can
+            // change under us when the page is flushed, so copy that
+            if (shared && data.hasArray())
+                oldData = data;
+            else
+                oldData = ByteBuffer.wrap(getPageData());
         }
     }
 
@@ -121,42 +151,52 @@ public class HeapPage implements Page {
     	return pid;
     }
 
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple stored in slot slotId, backed by the page image so its
+     * fields are only decoded when read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-    	if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-    	
-        
-        // read fields in the tuple
+    private Tuple tupleAt(int slotId) {
+        // a mapped window of the file changes whenever the page is written
+        // back, even in the middle of a transaction, and the tuple may be
+        // held for longer than that (sort and join buffers), so tuples of a
+        // mapped page read a private copy of it
+        if (!data.hasArray())
+            data = ByteBuffer.wrap(getPageData());
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
+        t.setRecordId(new RecordId(pid, slotId));
+        t.setSource(data, slotOffset(slotId), fieldOffsets);
+        // the tuple now reads data, so data must stay as it is; the page
+        // keeps no reference to the tuple
+        shared = true;
         return t;
     }
 
+    /**
+     * Make data writable, copying it if it is still a shared view.  Tuples
+     * handed out so far keep reading the old bytes, which no longer change.
+     */
+    private void ensureWritable() {
+        captureBeforeImage();
+        if (!shared)
+            return;
+        data = ByteBuffer.wrap(getPageData());
+        shared = false;
+    }
+
+    /**
+     * Overwrite the bytes of slot slotId.
+     */
+    private void writeSlot(int slotId, byte[] bytes) {
+        ensureWritable();
+        int off = slotOffset(slotId);
+        for (int i=0; i<bytes.length; i++)
+            data.put(off+i, bytes[i]);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -169,64 +209,12 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // the page image is kept up to date, serializing is one copy
+        byte[] res = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(res, 0, Math.min(res.length, src.remaining()));
+        return res;
     }
 
     /**
@@ -261,6 +249,8 @@ public class HeapPage implements Page {
     		throw new DbException("the tuple slot is already empty");
     	}
     	markSlotUsed(tpno, false);
+    	//empty slots are all zeroes on disk
+    	writeSlot(tpno, new byte[td.getSize()]);
     }
 
     /**
@@ -283,9 +273,40 @@ public class HeapPage implements Page {
     			break;
     		}
     	}
+    	writeSlot(rid.getTupleNumber(), serialize(t));
     	t.setRecordId(rid);
     	markSlotUsed(rid.getTupleNumber(), true);
-    	this.tuples[rid.getTupleNumber()]=t;
+    }
+
+    /**
+     * Store the serialized tuple bytes in slot slotId and mark it used,
+     * whatever the slot held before; redoes an insert or undoes a delete.
+     */
+    void putSlot(int slotId, byte[] bytes) {
+        writeSlot(slotId, bytes);
+        markSlotUsed(slotId, true);
+    }
+
+    /**
+     * Empty slot slotId, whatever it held before; redoes a delete or undoes
+     * an insert.
+     */
+    void clearSlot(int slotId) {
+        markSlotUsed(slotId, false);
+        writeSlot(slotId, new byte[td.getSize()]);
+    }
+
+    private byte[] serialize(Tuple t) throws DbException {
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+    	DataOutputStream dos = new DataOutputStream(baos);
+    	try {
+    		for (int j=0; j<td.numFields(); j++)
+    			t.getField(j).serialize(dos);
+    		dos.flush();
+    	} catch (IOException e) {
+    		throw new DbException("could not serialize tuple: "+e);
+    	}
+    	return baos.toByteArray();
     }
 
     /**
@@ -296,6 +317,7 @@ public class HeapPage implements Page {
         // some code goes here
 	// not necessary for lab1
     	if(dirty) {
+    		captureBeforeImage();
     		dirtyId=tid;
     	}else
     		dirtyId=null;
@@ -315,13 +337,14 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int res=0;
-        for(int i=0;i<tuples.length;++i) {
-        	if(!isSlotUsed(i)) {
-        		res++;
-        	}
+        int used=0;
+        for(int i=0;i<numSlots/8;++i)
+        	used+=Integer.bitCount(data.get(i)&0xff);
+        for(int i=numSlots/8*8;i<numSlots;++i) {
+        	if(isSlotUsed(i))
+        		used++;
         }
-    	return res;
+    	return numSlots-used;
     }
 
     /**
@@ -329,7 +352,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-    	int res=(int)header[i/8];
+    	int res=(int)data.get(i/8);
     	int number=i%8;
     	res=(int)((res>>number)&0x1);
         return res==1;
@@ -343,10 +366,11 @@ public class HeapPage implements Page {
         // not necessary for lab1
     	boolean isUsed=isSlotUsed(i);
     	if(isUsed!=value) {
-    		int res=(int)header[i/8];
+    		ensureWritable();
+    		int res=(int)data.get(i/8);
         	int number=i%8;
         	res^=(0x1<<number);
-        	header[i/8]=(byte)res;
+        	data.put(i/8, (byte)res);
     	}
     }
 
@@ -356,15 +380,36 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> res=new ArrayList<Tuple>();
-        for(int i=0;i<tuples.length;++i) {
-        	if(isSlotUsed(i)) {
-        		//System.out.println("add"+i);
-        		res.add(tuples[i]);
+        //slots in use when the iterator was created, like the old snapshot
+        //list: tuples inserted while iterating are not returned
+        final byte[] used=new byte[headerSize];
+        for(int i=0;i<headerSize;++i)
+        	used[i]=data.get(i);
+        return new Iterator<Tuple>() {
+        	private int next=advance(0);
+
+        	private int advance(int from) {
+        		while(from<numSlots&&(((used[from/8]>>(from%8))&0x1)==0||!isSlotUsed(from)))
+        			from++;
+        		return from;
         	}
-        }
-        return res.iterator();
+
+        	public boolean hasNext() {
+        		return next<numSlots;
+        	}
+
+        	public Tuple next() {
+        		if(next>=numSlots)
+        			throw new NoSuchElementException();
+        		Tuple t=tupleAt(next);
+        		next=advance(next+1);
+        		return t;
+        	}
+
+        	public void remove() {
+        		throw new UnsupportedOperationException();
+        	}
+        };
     }
 
 }
-
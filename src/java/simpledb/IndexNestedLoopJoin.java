@@ -0,0 +1,238 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins child1 to a B+ tree table on equality with the
+ * table's key, looking each tuple of child1 up in the index instead of
+ * reading the table.  child2 is the plan that would otherwise read the
+ * table: a SeqScan or BTreeScan of it, possibly under Filters.  It is not
+ * run; its index predicate and filters are applied to the tuples the
+ * lookups find.
+ * <p>
+ * child1 is read a batch at a time, and each batch is sorted on the join
+ * field before it is looked up, so successive lookups descend through the
+ * same internal pages and read the leaves left to right, and tuples with the
+ * same key share one lookup.  The output is in that order.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples of child1 sorted and looked up together. */
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private static volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // the index child2 reads and what it applies to the table's tuples
+    transient private BTreeFile file;
+    transient private TransactionId tid;
+    transient private IndexPredicate innerIpred;
+    transient private ArrayList<Predicate> innerPreds;
+
+    transient private ArrayList<Tuple> batch = new ArrayList<Tuple>();
+    transient private int batchPos;
+    transient private Tuple outer;
+    // the tuples of the table matching key, and the next one to return
+    transient private ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    transient private Field key;
+    transient private int matchPos;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to join on: equality of a field of child1 and
+     *            the key of the B+ tree child2 reads
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            The plan reading the right(inner) table
+     * @throws IllegalArgumentException if {@link #canLookUp} is false
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canLookUp(p, child2))
+            throw new IllegalArgumentException("join is not an equality on the key of a B+ tree scanned by " + child2);
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * Return true if the join p with inner side plan can look tuples up in an
+     * index: p is an equality, plan is a scan under zero or more Filters,
+     * and the table it scans is a B+ tree keyed on p's second field.
+     */
+    public static boolean canLookUp(JoinPredicate p, OpIterator plan) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            return false;
+        OpIterator scan = baseScan(plan);
+        if (scan == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId(scan));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    /** The scan under the Filters of plan, or null if there is none. */
+    private static OpIterator baseScan(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        return plan instanceof SeqScan || plan instanceof BTreeScan ? plan : null;
+    }
+
+    private static int tableId(OpIterator scan) {
+        String name = scan instanceof SeqScan ? ((SeqScan) scan).getTableName()
+                : ((BTreeScan) scan).getTableName();
+        return Database.getCatalog().getTableId(name);
+    }
+
+    /**
+     * Set the number of tuples of child1 an IndexNestedLoopJoin sorts and
+     * looks up together.
+     */
+    public static void setBatchSize(int tuples) {
+        batchSize = tuples;
+    }
+
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        OpIterator scan = baseScan(child2);
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId(scan));
+        if (scan instanceof SeqScan) {
+            tid = ((SeqScan) scan).getTransactionId();
+            innerIpred = null;
+        } else {
+            tid = ((BTreeScan) scan).getTransactionId();
+            innerIpred = ((BTreeScan) scan).getIndexPredicate();
+        }
+        innerPreds = new ArrayList<Predicate>();
+        for (OpIterator it = child2; it instanceof Filter; it = ((Filter) it).getChildren()[0])
+            innerPreds.add(((Filter) it).getPredicate());
+        child1.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        batch.clear();
+        batchPos = 0;
+        outer = null;
+        matches.clear();
+        key = null;
+    }
+
+    /**
+     * Read the next batch of child1 and sort it on the join field.
+     * @return false if child1 has no tuples left
+     */
+    private boolean nextBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        batchPos = 0;
+        while (batch.size() < batchSize && child1.hasNext()) {
+            Tuple t = child1.next();
+            // the batch must not pin the pages its tuples were read from
+            t.materialize();
+            batch.add(t);
+        }
+        Collections.sort(batch, new OrderByComparator(pred.getField1(), true));
+        return !batch.isEmpty();
+    }
+
+    /** Fill matches with the tuples of the table whose key is k. */
+    private void lookUp(Field k) throws DbException, TransactionAbortedException {
+        matches.clear();
+        key = k;
+        DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, k));
+        it.open();
+        try {
+            next: while (it.hasNext()) {
+                Tuple t = it.next();
+                if (innerIpred != null
+                        && !t.getField(file.keyField()).compare(innerIpred.getOp(), innerIpred.getField()))
+                    continue;
+                for (Predicate p : innerPreds)
+                    if (!p.filter(t))
+                        continue next;
+                matches.add(t);
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a tuple of child1 and a tuple of the
+     * table with a key equal to its join field.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && matchPos < matches.size()) {
+                Tuple t2 = matches.get(matchPos++);
+                int td1n = outer.getTupleDesc().numFields();
+                int td2n = t2.getTupleDesc().numFields();
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, outer.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            if (batchPos == batch.size() && !nextBatch())
+                return null;
+            outer = batch.get(batchPos++);
+            Field k = outer.getField(pred.getField1());
+            if (key == null || !k.equals(key))
+                lookUp(k);
+            matchPos = 0;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] {this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
@@ -68,7 +68,12 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj.indexLookup && IndexNestedLoopJoin.canLookUp(p, plan2))
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        else if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
@@ -111,11 +116,80 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
+            if (j.p == Predicate.Op.EQUALS) {
+                // hash join (see instantiateJoin): each side is read once,
+                // the left side is built into the hash table and the right
+                // side probes it; an insert costs twice a probe, so the
+                // smaller side should be the left one
+                double cost = cost1 + cost2 + 2.0 * card1 + card2;
+                TupleDesc td1 = aliasTupleDesc(j.t1Alias);
+                if (td1 != null && (double) card1 * Tuple.heapSize(td1) > HashEquiJoin.getMemoryBudget()) {
+                    // grace hash join: both sides are written out to
+                    // partition files and read back once
+                    cost += 2 * (spillPages(td1, card1)
+                            + spillPages(aliasTupleDesc(j.t2Alias), card2)) * TableStats.IOCOSTPERPAGE;
+                }
+                return cost;
+            }
         	double cost = cost1 + card1 * cost2 + card1 * card2;
             return cost;
         }
     }
 
+    /**
+     * Returns the schema of the table behind alias, or null if the plan has
+     * no such alias.  For the left side of a join of several tables this is
+     * only one of them, so sizes estimated from it are lower bounds.
+     */
+    private TupleDesc aliasTupleDesc(String alias) {
+        Integer tableId = p.getTableId(alias);
+        return tableId == null ? null : Database.getCatalog().getTupleDesc(tableId);
+    }
+
+    /** Pages that card tuples of schema td fill in a partition file. */
+    private static double spillPages(TupleDesc td, int card) {
+        if (td == null)
+            return 0;
+        return Math.ceil((double) card * td.getSize() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Estimate the cost of an index nested-loop join (see
+     * {@link IndexNestedLoopJoin}): the left-hand side is read once and the
+     * join field of each of its tuples is looked up in the B+ tree of the
+     * table on the right-hand side, which must be a base table rather than a
+     * join.  Each lookup costs one predicate application on top of the pages
+     * it reads.
+     * 
+     * @param j
+     *            A LogicalJoinNode representing the join operation being
+     *            performed.
+     * @param card1
+     *            Estimated cardinality of the left-hand side of the query
+     * @param cost1
+     *            Estimated cost of one full scan of the table on the left-hand
+     *            side of the query
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return An estimate of the cost of this join, or
+     *         Double.POSITIVE_INFINITY if it is not an equality on the key of
+     *         a B+ tree table
+     */
+    public double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            double cost1, Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS)
+            return Double.POSITIVE_INFINITY;
+        int tableId = p.getTableId(j.t2Alias);
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null || s.indexedField() < 0)
+            return Double.POSITIVE_INFINITY;
+        // catalogs may name fields either way
+        String key = Database.getCatalog().getTupleDesc(tableId).getFieldName(s.indexedField());
+        if (!j.f2PureName.equals(key) && !j.f2QuantifiedName.equals(key))
+            return Double.POSITIVE_INFINITY;
+        return cost1 + s.estimateIndexLookupCost(card1, IndexNestedLoopJoin.getBatchSize()) + card1;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -321,6 +395,8 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // whether each side is a base table, which an index join can look up
+        boolean t1base = true, t2base = j.t2Alias != null;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -356,6 +432,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1base = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -372,6 +449,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2base = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -386,19 +464,37 @@ public class JoinOptimizer {
 
         // case where prevbest is left
         double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        boolean lookup1 = false;
+        if (t2base) {
+            double c = estimateIndexJoinCost(j, t1card, t1cost, stats);
+            lookup1 = c < cost1;
+            cost1 = Math.min(cost1, c);
+        }
 
         LogicalJoinNode j2 = j.swapInnerOuter();
         double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        boolean lookup2 = false;
+        if (t1base && !(j instanceof LogicalSubplanJoinNode)) {
+            double c = estimateIndexJoinCost(j2, t2card, t2cost, stats);
+            lookup2 = c < cost2;
+            cost2 = Math.min(cost2, c);
+        }
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            lookup1 = lookup2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (lookup1) {
+            // a copy, since j may be in other subplans as another kind of join
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            j.indexLookup = true;
+        }
 
         CostCard cc = new CostCard();
 
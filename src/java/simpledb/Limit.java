@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT ... OFFSET: it skips the first
+ * offset tuples of its child and returns at most limit of the rest.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final long limit, offset;
+    private long returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the largest number of tuples to return
+     * @param offset
+     *            the number of tuples of child to skip first
+     * @param child
+     *            The child operator
+     */
+    public Limit(long limit, long offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        returned = -offset;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        returned = -offset;
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (returned < limit && child.hasNext()) {
+            Tuple t = child.next();
+            if (returned++ >= 0)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the page-level shared/exclusive locks handed out by the
+ * BufferPool.
+ * <p>
+ * A transaction that cannot be granted a lock parks on the condition queue of
+ * that page instead of spinning.  While it waits, it has an edge in the
+ * wait-for graph to every transaction holding a conflicting lock on the page.
+ * Each new edge is checked for a cycle right away; if one is found, the
+ * youngest transaction of the cycle (the one with the highest id, so the one
+ * that has usually done the least work) is picked as victim and its acquire
+ * throws TransactionAbortedException.
+ * <p>
+ * A transaction asking for a shared lock waits behind transactions queued for
+ * an exclusive lock on the page, unless it already holds a lock there, so a
+ * steady stream of readers cannot starve a writer.
+ * <p>
+ * All state is guarded by one short-held latch; waiting happens outside it.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Number of buckets of the lock-wait histogram; bucket i counts waits of [2^i, 2^(i+1)) microseconds. */
+    public static final int WAIT_BUCKETS = 32;
+
+    private final ReentrantLock latch = new ReentrantLock();
+    private final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    // pages each transaction holds a lock on, so releasing a transaction's
+    // locks costs its footprint rather than the size of the lock table
+    private final HashMap<TransactionId, Set<PageId>> held = new HashMap<TransactionId, Set<PageId>>();
+    // wait-for graph: a waiting transaction -> transactions it waits on
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+    // page each blocked transaction is parked on
+    private final HashMap<TransactionId, PageLock> waitingOn = new HashMap<TransactionId, PageLock>();
+    private final Set<TransactionId> victims = new HashSet<TransactionId>();
+
+    private final long[] waitHistogram = new long[WAIT_BUCKETS];
+    private long deadlocks = 0;
+
+    private class PageLock {
+        final Set<TransactionId> holders = new HashSet<TransactionId>();
+        TransactionId exclusive = null;
+        final Set<TransactionId> waiters = new HashSet<TransactionId>();
+        // the waiters that want an exclusive lock
+        final Set<TransactionId> writers = new HashSet<TransactionId>();
+        final PageId pid;
+        final Condition released = latch.newCondition();
+
+        PageLock(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    /**
+     * Acquire a lock on pid for tid, blocking while a conflicting lock is held.
+     * Re-acquiring a held lock is a no-op, and a shared lock held alone is
+     * upgraded in place.
+     *
+     * @throws TransactionAbortedException if waiting for the lock would
+     *   deadlock and tid was chosen as the victim
+     */
+    public void acquire(PageId pid, TransactionId tid, Permissions perm)
+        throws TransactionAbortedException {
+        latch.lock();
+        try {
+            PageLock pl = locks.get(pid);
+            if (pl == null) {
+                pl = new PageLock(pid);
+                locks.put(pid, pl);
+            }
+            if (grant(pl, tid, perm))
+                return;
+
+            long start = System.nanoTime();
+            pl.waiters.add(tid);
+            if (perm == Permissions.READ_WRITE && pl.writers.add(tid) && pl.waiters.size() > 1)
+                // readers parked here now wait on tid too; have them
+                // recompute their wait-for edges so a cycle through tid is seen
+                pl.released.signalAll();
+            waitingOn.put(tid, pl);
+            try {
+                while (true) {
+                    waitsFor.put(tid, conflicts(pl, tid, perm));
+                    TransactionId victim = findVictim(tid);
+                    if (victim != null) {
+                        deadlocks++;
+                        victims.add(victim);
+                        if (!victim.equals(tid))
+                            waitingOn.get(victim).released.signalAll();
+                    }
+                    if (victims.remove(tid))
+                        throw new TransactionAbortedException();
+                    pl.released.awaitUninterruptibly();
+                    if (victims.remove(tid))
+                        throw new TransactionAbortedException();
+                    if (grant(pl, tid, perm))
+                        return;
+                }
+            } finally {
+                pl.waiters.remove(tid);
+                // readers queued behind tid may go ahead now
+                if (pl.writers.remove(tid))
+                    pl.released.signalAll();
+                waitingOn.remove(tid);
+                waitsFor.remove(tid);
+                recordWait(System.nanoTime() - start);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Release whatever lock tid holds on pid.
+     */
+    public void release(PageId pid, TransactionId tid) {
+        latch.lock();
+        try {
+            PageLock pl = locks.get(pid);
+            if (pl == null || !pl.holders.remove(tid))
+                return;
+            Set<PageId> mine = held.get(tid);
+            if (mine != null) {
+                mine.remove(pid);
+                if (mine.isEmpty())
+                    held.remove(tid);
+            }
+            if (tid.equals(pl.exclusive))
+                pl.exclusive = null;
+            // waiters no longer wait on tid for this page; dropping the edges
+            // now keeps the graph from reporting cycles that no longer exist
+            for (TransactionId w : pl.waiters) {
+                Set<TransactionId> out = waitsFor.get(w);
+                if (out != null)
+                    out.remove(tid);
+            }
+            if (pl.holders.isEmpty() && pl.waiters.isEmpty())
+                locks.remove(pid);
+            else
+                pl.released.signalAll();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Release every lock held by tid, including locks on pages that have
+     * since been evicted from the buffer pool.
+     */
+    public void releaseAll(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<PageId> mine = held.remove(tid);
+            if (mine == null)
+                return;
+            for (PageId pid : mine.toArray(new PageId[0]))
+                release(pid, tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Returns the pages tid currently holds a lock on. */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        latch.lock();
+        try {
+            Set<PageId> mine = held.get(tid);
+            return mine == null ? new HashSet<PageId>() : new HashSet<PageId>(mine);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Return true if tid holds any lock on pid. */
+    public boolean holdsLock(PageId pid, TransactionId tid) {
+        latch.lock();
+        try {
+            PageLock pl = locks.get(pid);
+            return pl != null && pl.holders.contains(tid);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if tid could be granted perm on pid right now without
+     * waiting.  Only a hint, the lock may be taken as soon as this returns.
+     */
+    public boolean isAvailable(PageId pid, TransactionId tid, Permissions perm) {
+        latch.lock();
+        try {
+            PageLock pl = locks.get(pid);
+            return pl == null || conflicts(pl, tid, perm).isEmpty();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the lock-wait latency histogram.  Only acquires that
+     * had to wait are counted.
+     */
+    public long[] getWaitHistogram() {
+        latch.lock();
+        try {
+            return waitHistogram.clone();
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Returns the number of deadlocks detected so far. */
+    public long getDeadlockCount() {
+        latch.lock();
+        try {
+            return deadlocks;
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    /** Print the non-empty buckets of the lock-wait histogram. */
+    public void printWaitHistogram() {
+        long[] h = getWaitHistogram();
+        for (int i = 0; i < h.length; i++) {
+            if (h[i] != 0)
+                System.out.printf("  [%8dus, %8dus): %d%n", 1L << i, 1L << (i + 1), h[i]);
+        }
+    }
+
+    // caller holds latch
+    private boolean grant(PageLock pl, TransactionId tid, Permissions perm) {
+        if (tid.equals(pl.exclusive))
+            return true;
+        if (perm == Permissions.READ_ONLY) {
+            if (pl.holders.contains(tid))
+                return true;
+            if (pl.exclusive != null || hasOtherWriters(pl, tid))
+                return false;
+            addHolder(pl, tid);
+            return true;
+        }
+        if (pl.holders.isEmpty() || (pl.holders.size() == 1 && pl.holders.contains(tid))) {
+            addHolder(pl, tid);
+            pl.exclusive = tid;
+            return true;
+        }
+        return false;
+    }
+
+    // caller holds latch
+    private void addHolder(PageLock pl, TransactionId tid) {
+        if (!pl.holders.add(tid))
+            return;
+        Set<PageId> mine = held.get(tid);
+        if (mine == null) {
+            mine = new HashSet<PageId>();
+            held.put(tid, mine);
+        }
+        mine.add(pl.pid);
+    }
+
+    // caller holds latch
+    private boolean hasOtherWriters(PageLock pl, TransactionId tid) {
+        return pl.writers.size() > (pl.writers.contains(tid) ? 1 : 0);
+    }
+
+    // transactions whose locks on pl, or whose queued exclusive requests,
+    // keep tid from getting perm; caller holds latch
+    private Set<TransactionId> conflicts(PageLock pl, TransactionId tid, Permissions perm) {
+        Set<TransactionId> res = new HashSet<TransactionId>();
+        if (perm == Permissions.READ_ONLY) {
+            if (pl.exclusive != null && !pl.exclusive.equals(tid))
+                res.add(pl.exclusive);
+            if (!pl.holders.contains(tid)) {
+                res.addAll(pl.writers);
+                res.remove(tid);
+            }
+        } else {
+            res.addAll(pl.holders);
+            res.remove(tid);
+        }
+        return res;
+    }
+
+    /**
+     * Depth-first search of the wait-for graph from tid.  Returns the
+     * youngest transaction on a cycle through tid, or null if there is none.
+     * Caller holds latch.
+     */
+    private TransactionId findVictim(TransactionId tid) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(tid);
+        ArrayList<TransactionId> cycle = findCycle(tid, path, new HashSet<TransactionId>());
+        if (cycle == null)
+            return null;
+        TransactionId victim = tid;
+        for (TransactionId t : cycle) {
+            // a transaction already chosen as victim will break the cycle
+            if (victims.contains(t))
+                return null;
+            if (t.getId() > victim.getId())
+                victim = t;
+        }
+        return victim;
+    }
+
+    private ArrayList<TransactionId> findCycle(TransactionId start, ArrayList<TransactionId> path,
+                                               Set<TransactionId> visited) {
+        TransactionId cur = path.get(path.size() - 1);
+        Set<TransactionId> out = waitsFor.get(cur);
+        if (out == null)
+            return null;
+        for (TransactionId next : out) {
+            if (next.equals(start))
+                return path;
+            if (visited.add(next)) {
+                path.add(next);
+                ArrayList<TransactionId> res = findCycle(start, path, visited);
+                if (res != null)
+                    return res;
+                path.remove(path.size() - 1);
+            }
+        }
+        return null;
+    }
+
+    // caller holds latch
+    private void recordWait(long nanos) {
+        long us = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = us <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(us);
+        waitHistogram[Math.min(bucket, WAIT_BUCKETS - 1)]++;
+    }
+}
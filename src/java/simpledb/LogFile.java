@@ -1,9 +1,11 @@
-
 package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -17,8 +19,8 @@ two-phase locking discipline are followed.  <p>
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+log records (on page flushed) and the log file writes BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -32,6 +34,62 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Log records are appended to an in-memory log buffer, which is written
+to the file when the log is forced or read.  A committing thread does
+not force the log itself: it waits, outside the LogFile monitor, until
+the log is durable up to its commit record.  A flusher thread forces
+the log for all the commits waiting at once, after at most the group
+commit delay or as soon as a full batch of commits is waiting, so
+concurrent committers share an fsync instead of queueing for one each.
+
+<u> Checkpoints: </u>
+<p>
+
+Checkpoints are fuzzy: they neither flush the BufferPool nor hold its
+monitor, so transactions run on while one is taken.  A CHECKPOINT_BEGIN
+record marks the start; the dirty page table is then read from the
+BufferPool without locking it, and the CHECKPOINT record that ends the
+checkpoint holds it and the active transactions.  Pages changed in
+between are dirtied by records after the begin record, which is where
+recovery starts reading, so they are not missed.  The BufferPool then
+writes the pages that were dirty back in the background, which moves
+the next checkpoint's recLSNs, and so the start of recovery, forward.
+
+<u> Segments: </u>
+<p>
+
+The log is kept in segment files of a fixed size next to the log file,
+which holds only the checkpoint pointer.  A segment is named after,
+and begins with, the LSN of its first byte, and records run on from
+one segment into the next.  Truncation deletes the segments wholly
+before the oldest LSN recovery may still read, without copying what
+is left.
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES.  Every record is named by its LSN, its
+position in the log counted from the start of the log ever written,
+which truncation does not change.  The BufferPool keeps for each
+cached page the LSN of the last record that changed it, which the log
+must be forced past before the page is written, and of the first one
+since it was last written (its recLSN).  A checkpoint records the
+active transactions and the dirty pages with their recLSNs.  recover()
+scans the log from the last checkpoint to rebuild both tables
+(analysis), repeats history from the smallest recLSN, splitting the
+pages among several threads (redo), and rolls back the transactions
+that never finished (undo).  Undoing a change, in rollback() or in
+recovery, logs a compensation record (CLR) that redoes the undo, so
+history repeated after a crash includes the rollbacks too.  <p>
+
+Page LSNs are kept in the BufferPool, not on the pages: page formats
+have no room for them.  Redo does not need them, since applying an
+INSERT, DELETE or UPDATE record to a page that already has it leaves
+the page as it is.
 */
 
 /**
@@ -39,33 +97,57 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a long integer: the LSN of the last written
+checkpoint, or -1 if there are no checkpoints.
+
+<li> The records are in segment files named after the log file, a dot
+and the LSN of the segment's first byte as 16 hex digits.  Each
+segment begins with that LSN as a long integer, followed by up to the
+segment size of log data; the record at LSN l is in the last segment
+starting at or before l, l minus that start bytes into its data.  Only
+the last segment may be shorter than the segment size.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> All data in the segments consists of log records.  Log records are
+variable length, and may run on into the next segment.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN of the record:
+its position in the log, where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are nine record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT_BEGIN, CHECKPOINT, INSERT, DELETE and CLR
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, BEGIN and CHECKPOINT_BEGIN records contain no
+additional data.  The checkpoint LSN in the header is that of a
+CHECKPOINT_BEGIN record, the CHECKPOINT record ending the checkpoint
+follows it
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> INSERT and DELETE records log one tuple put into or taken out of
+one slot of a HeapPage.  They consist of the table id, page number and
+slot as integers, then the integer length and bytes of the serialized
+tuple; see {@link TupleLogRecord}.  Changes to HeapPages made through
+the BufferPool are logged this way, other pages as UPDATE records.
+
+<li> CLR records log the undo of an INSERT, DELETE or UPDATE record.
+They consist of an integer record type and the body of a record of
+that type which redoes the undo: an INSERT or DELETE record of the
+opposite change, or for an UPDATE a single page image, the before
+image of the change.  CLRs are redone but never undone.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record, then the dirty
+pages and their recLSNs.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction
+id and a long integer first record LSN for each active transaction,
+then an integer count of the number of dirty pages, as well as a page
+id (see LogFile.writePageId()) and a long integer recLSN for each.
 
 </ul>
 
@@ -74,7 +156,12 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
+    // the checkpoint pointer
     private RandomAccessFile raf;
+    // the segments by first LSN, and the last one, appended to; protected
+    // by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment current;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,12 +169,62 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int CLR_RECORD = 8;
+    static final int CHECKPOINT_BEGIN_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    // the checkpoint LSN
+    final static int HEADER_SIZE = LONG_SIZE;
+    // a segment's first LSN
+    final static int SEGMENT_HEADER_SIZE = LONG_SIZE;
+
+    /** Default size, in bytes, of the log data in a segment. */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    long currentOffset = -1;//LSN of the next record, protected by this
+    private long segmentSize = DEFAULT_SEGMENT_SIZE; // protected by this
+    // log records not yet written to the current segment, which is
+    // positioned at its end whenever this is not empty; protected by this
+    private final LogBuffer logBuffer = new LogBuffer();
+    private final DataOutputStream logOut = new DataOutputStream(logBuffer);
+
+    /** Default longest time, in milliseconds, the flusher holds a commit
+        back for others to share its force. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    /** Default number of waiting commits that makes the flusher force at once. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+    // the flusher exits after this long without commits
+    private static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    /** Default number of threads recover() redoes the log on. */
+    public static final int DEFAULT_REDO_THREADS =
+        Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    // records read ahead for each redo thread
+    private static final int REDO_QUEUE = 1024;
+
+    // group commit state, protected by this.  The log is written out to
+    // the segments up to LSN writtenLsn, and forced to disk up to
+    // durableLsn.  commitsWaiting commits (or forceTo calls) wait for the
+    // next force; forcing is set while the flusher forces the current
+    // segment outside the monitor
+    private long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    private int groupCommitBatch = DEFAULT_GROUP_COMMIT_BATCH;
+    private long writtenLsn = 0;
+    private long durableLsn = 0;
+    private int commitsWaiting = 0;
+    private boolean forcing = false;
+    private Thread flusher = null;
+    private IOException flushError = null;
+    private boolean closed = false;
+    private long forces = 0;
+    private int redoThreads = DEFAULT_REDO_THREADS;
+    // one checkpoint at a time
+    private final Object checkpointLock = new Object();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -127,18 +264,131 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
         }
     }
 
+    // throw out the log file contents and start an empty log
+    private void startLog() throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        for (Segment seg : openSegments().values())
+            seg.delete();
+        segments.clear();
+        currentOffset = writtenLsn = durableLsn = 0;
+        current = createSegment(0);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
+    /** Set how commits share log forces: the flusher forces the log once
+        maxBatch commits are waiting, or once the first of them has waited
+        maxDelay milliseconds.  With no delay, a commit only waits for
+        the force in progress, if any.
+    */
+    public synchronized void setGroupCommit(long maxDelay, int maxBatch) {
+        if (maxDelay < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("bad group commit delay " + maxDelay + " or batch " + maxBatch);
+        groupCommitDelay = maxDelay;
+        groupCommitBatch = maxBatch;
+        notifyAll();
+    }
+
+    /** Set the number of threads recover() redoes the log on.  The pages
+        are split among them, and each page's records are redone in log
+        order by one thread.
+    */
+    public synchronized void setRedoThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("bad number of redo threads " + n);
+        redoThreads = n;
+    }
+
+    /** Set the size of the log data in a segment.  Segments already
+        written keep their size; the next one started has this one.
+    */
+    public synchronized void setSegmentSize(long bytes) {
+        if (bytes < 1)
+            throw new IllegalArgumentException("bad segment size " + bytes);
+        segmentSize = bytes;
+    }
+
+    /** Return the number of times the log has been forced to disk. */
+    public synchronized long getForceCount() {
+        return forces;
+    }
+
+    // LSN of the next byte appended
+    private long appendLsn() {
+        return writtenLsn + logBuffer.size();
+    }
+
+    // write the log buffer out to the segments, without forcing it
+    private void writeBuffer() throws IOException {
+        for (int off = 0; off < logBuffer.size(); ) {
+            long room = current.start + segmentSize - writtenLsn;
+            if (room <= 0) {
+                // the full segment is forced now, so forcing the last
+                // one makes the whole log durable
+                current.channel().force(true);
+                current = createSegment(writtenLsn);
+                continue;
+            }
+            int n = (int) Math.min(room, logBuffer.size() - off);
+            logBuffer.writeTo(current.raf(), off, n);
+            off += n;
+            writtenLsn += n;
+        }
+        logBuffer.reset();
+    }
+
+    // the file of the segment beginning at LSN start
+    private File segmentFile(long start) {
+        return new File(logFile.getAbsoluteFile().getParentFile(),
+                        logFile.getName() + "." + String.format("%016x", start));
+    }
+
+    // start a new, last segment at LSN start
+    private Segment createSegment(long start) throws IOException {
+        Segment seg = new Segment(start, segmentFile(start));
+        RandomAccessFile f = seg.raf();
+        f.setLength(0);
+        f.writeLong(start);
+        segments.put(start, seg);
+        return seg;
+    }
+
+    /** Return the segment files there are, by first LSN.  A file whose
+        header does not match its name, left by a crash while it was
+        created, is deleted. */
+    private TreeMap<Long, Segment> openSegments() throws IOException {
+        TreeMap<Long, Segment> found = new TreeMap<Long, Segment>();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        for (File f : files == null ? new File[0] : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || name.length() != prefix.length() + 16)
+                continue;
+            long start;
+            try {
+                start = Long.parseLong(name.substring(prefix.length()), 16);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment seg = new Segment(start, f);
+            if (f.length() >= SEGMENT_HEADER_SIZE && seg.raf().readLong() == start) {
+                seg.close();
+                found.put(start, seg);
+            } else {
+                seg.delete();
+            }
+        }
+        return found;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -158,32 +408,158 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendAbort(tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
+    private void appendAbort(long tid) throws IOException {
+        logOut.writeInt(ABORT_RECORD);
+        logOut.writeLong(tid);
+        logOut.writeLong(currentOffset);
+        currentOffset = appendLsn();
+    }
+
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  Returns once the commit record is
+        durable, forced together with the other commits waiting.
+        The changes of tid that only page images can log are logged
+        first, so the same force covers them.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        // takes the buffer pool's lock, so not while holding this
+        Database.getBufferPool().logPageImages(tid);
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            lsn = currentOffset;
+            logOut.writeInt(COMMIT_RECORD);
+            logOut.writeLong(tid.getId());
+            logOut.writeLong(currentOffset);
+            currentOffset = appendLsn();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        forceTo(lsn);
+    }
+
+    /** Return whether tid has begun and not yet committed or aborted,
+        i.e. whether rollback can still undo its changes from the log.
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Return the LSN just past the last record appended.  LSNs count
+        bytes from the start of the log, so the difference of two is the
+        number of bytes logged in between.
+    */
+    public synchronized long logEnd() {
+        return writtenLsn + logBuffer.size();
+    }
+
+    /** Return once the log record at LSN lsn is on disk, forcing it
+        together with any commits waiting.
+    */
+    public void forceTo(long lsn) throws IOException {
+        synchronized (this) {
+            if (durableLsn > lsn)
+                return;
+            commitsWaiting++;
+            if (flusher == null) {
+                flusher = new Thread(new Runnable() {
+                        public void run() { flushCommits(); }
+                    }, "LogFile flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            notifyAll();
+        }
+        waitDurable(lsn);
+    }
+
+    /** Wait until the record at LSN lsn is on disk. */
+    private synchronized void waitDurable(long lsn) throws IOException {
+        while (durableLsn <= lsn) {
+            if (flushError != null)
+                throw new IOException("log force failed: " + flushError.getMessage());
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for the log force");
+            }
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Body of the flusher thread: force the log for each batch of
+        waiting commits, until the log is closed or no commit comes. */
+    private void flushCommits() {
+        while (true) {
+            long end;
+            FileChannel channel;
+            synchronized (this) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    while (commitsWaiting == 0) {
+                        long idle = System.currentTimeMillis() - idleSince;
+                        if (closed || idle >= FLUSHER_IDLE_MILLIS) {
+                            flusher = null;
+                            return;
+                        }
+                        wait(FLUSHER_IDLE_MILLIS - idle);
+                    }
+                    // let more commits join the batch
+                    long deadline = System.currentTimeMillis() + groupCommitDelay;
+                    long left;
+                    while (commitsWaiting < groupCommitBatch && !closed
+                           && (left = deadline - System.currentTimeMillis()) > 0)
+                        wait(left);
+                    if (closed)
+                        throw new IOException("log file is shut down");
+                    writeBuffer();
+                    channel = current.channel();
+                } catch (IOException e) {
+                    flushError = e;
+                    flusher = null;
+                    notifyAll();
+                    return;
+                } catch (InterruptedException e) {
+                    flusher = null;
+                    return;
+                }
+                end = writtenLsn;
+                commitsWaiting = 0;
+                forcing = true;
+            }
+
+            // other threads keep appending while the force runs
+            IOException error = null;
+            try {
+                channel.force(true);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                forcing = false;
+                forces++;
+                if (error != null)
+                    flushError = error;
+                else if (end > durableLsn)
+                    durableLsn = end;
+                notifyAll();
+                if (error != null) {
+                    flusher = null;
+                    return;
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,12 +568,13 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        @return the LSN of the record, to pass to forceTo()
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -207,75 +584,113 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        long lsn = currentOffset;
+        logOut.writeInt(UPDATE_RECORD);
+        logOut.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(logOut,before);
+        writePageData(logOut,after);
+        logOut.writeLong(currentOffset);
+        currentOffset = appendLsn();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write an INSERT record for a tuple tid inserted into a HeapPage.
+        @param tid The transaction performing the insert
+        @param rid The slot the tuple went into
+        @param tuple The serialized tuple
+        @return the LSN of the record, to pass to forceTo()
+    */
+    public long logInsert(TransactionId tid, RecordId rid, byte[] tuple)
+        throws IOException {
+        return logTuple(tid, new TupleLogRecord(INSERT_RECORD, rid, tuple));
+    }
+
+    /** Write a DELETE record for a tuple tid deleted from a HeapPage.
+        @param tid The transaction performing the delete
+        @param rid The slot the tuple was in
+        @param tuple The serialized tuple, needed to undo the delete
+        @return the LSN of the record, to pass to forceTo()
+    */
+    public long logDelete(TransactionId tid, RecordId rid, byte[] tuple)
+        throws IOException {
+        return logTuple(tid, new TupleLogRecord(DELETE_RECORD, rid, tuple));
+    }
+
+    private synchronized long logTuple(TransactionId tid, TupleLogRecord r)
+        throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        logOut.writeInt(r.type);
+        logOut.writeLong(tid.getId());
+        r.write(logOut);
+        logOut.writeLong(currentOffset);
+        currentOffset = appendLsn();
+        return lsn;
+    }
 
+    /** Write a CLR undoing the change of record r. */
+    private void logCompensation(LogRecord r) throws IOException {
+        preAppend();
+        logOut.writeInt(CLR_RECORD);
+        logOut.writeLong(r.tid);
+        if (r.tuple != null) {
+            TupleLogRecord inverse = r.tuple.inverse();
+            logOut.writeInt(inverse.type);
+            inverse.write(logOut);
+        } else {
+            logOut.writeInt(UPDATE_RECORD);
+            writePageData(logOut, r.before);
+        }
+        logOut.writeLong(currentOffset);
+        currentOffset = appendLsn();
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
         // page class name
-        // id class name
-        // id class bytes
-        // id class data
+        // page id (see writePageId)
         // page class bytes
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(raf, p.getId());
         byte[] pageData = p.getPageData();
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
+    Page readPageData(DataInput raf) throws IOException {
         PageId pid;
         Page newPage = null;
 
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        pid = readPageId(raf);
 
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageConstructor(pageClass);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
-            Object[] pageArgs = new Object[2];
+            Object[] pageArgs = new Object[pageConst.getParameterTypes().length];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
+            if (pageArgs.length == 3) {
+                // B+ tree leaf and internal pages also take the key field
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs[2] = ((BTreeFile) f).keyField();
+            }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +710,59 @@ public class LogFile {
 
     }
 
+    /** Write a page id: its class name, then the integer count and the
+        integers of PageId.serialize(). */
+    void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
+
+    PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = new Integer(in.readInt());
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("no page id class " + idClassName);
+        } catch (InstantiationException e) {
+            throw new IOException(e);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Return the (PageId, byte[]) constructor every Page class must have,
+        or for B+ tree leaf and internal pages the (PageId, byte[], int key
+        field) one; page classes may declare other constructors too. */
+    static Constructor<?> pageConstructor(Class<?> pageClass) throws IOException {
+        Constructor<?> keyed = null;
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length < 2 || !PageId.class.isAssignableFrom(params[0])
+                || params[1] != byte[].class)
+                continue;
+            if (params.length == 2)
+                return c;
+            if (params.length == 3 && params[2] == int.class)
+                keyed = c;
+        }
+        if (keyed != null)
+            return keyed;
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +775,144 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        logOut.writeInt(BEGIN_RECORD);
+        logOut.writeLong(tid.getId());
+        logOut.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = appendLsn();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: transactions keep running while it is taken, and the
+        pages dirty at the time are written back in the background.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            long begin;
+            synchronized (this) {
+                preAppend();
+                begin = currentOffset;
+                logOut.writeInt(CHECKPOINT_BEGIN_RECORD);
+                logOut.writeLong(-1); //no tid , but leave space for convenience
+                logOut.writeLong(currentOffset);
+                currentOffset = appendLsn();
+            }
+
+            // changes made while it is read are logged after begin
+            Map<PageId, Long> dirty = Database.getBufferPool().dirtyPages();
+
+            long end, min = begin;
+            FileChannel channel;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+                end = currentOffset;
+                logOut.writeInt(CHECKPOINT_RECORD);
+                logOut.writeLong(-1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                logOut.writeInt(tidToFirstLogRecord.size());
+                for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    logOut.writeLong(e.getKey());
+                    logOut.writeLong(e.getValue());
+                    min = Math.min(min, e.getValue());
                 }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                //and the dirty page table
+                logOut.writeInt(dirty.size());
+                for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                    writePageId(logOut, e.getKey());
+                    logOut.writeLong(e.getValue());
+                    min = Math.min(min, e.getValue());
+                }
+                logOut.writeLong(currentOffset);
+                currentOffset = appendLsn();
+                channel = raf.getChannel();
             }
-        }
 
-        logTruncate();
+            //once the CP is on disk, make sure the CP location in the
+            // log file is updated; both forces run outside the monitor,
+            // so records are appended meanwhile
+            forceTo(end);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(begin).flip();
+            channel.write(header, 0);
+            channel.force(false);
+            //Debug.log("CP OFFSET = " + currentOffset);
+
+            synchronized (this) {
+                truncate(min);
+            }
+            Database.getBufferPool().writeBack(dirty.keySet());
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+    public void logTruncate() throws IOException {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                preAppend();
+                writeBuffer();
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                if (cpLoc == NO_CHECKPOINT_ID)
+                    return;
+
+                LogReader in = new LogReader(cpLoc);
+                LogRecord cp = readRecord(in);
+                if (cp == null || cp.type != CHECKPOINT_BEGIN_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
                 }
+                while ((cp = readRecord(in)) != null && cp.type != CHECKPOINT_RECORD)
+                    ;
+                if (cp == null)
+                    throw new RuntimeException("Checkpoint has no end record");
+
+                long min = cpLoc;
+                for (long lsn : cp.active.values())
+                    min = Math.min(min, lsn);
+                for (long lsn : cp.dirty.values())
+                    min = Math.min(min, lsn);
+                truncate(min);
             }
         }
+    }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+    /** Drop the segments wholly before LSN min, or the first record of
+        a live transaction if that comes first.  The checkpoint recovery
+        reads from, the first record of the transactions active at it
+        and the recLSN of the pages dirty at it are all at or after min.
+        Caller holds checkpointLock and this.
+    */
+    private void truncate(long min) throws IOException {
+        long minLogRecord = min;
+        for (long lsn : tidToFirstLogRecord.values())
+            minLogRecord = Math.min(minLogRecord, lsn);
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+        // the flusher may be forcing a segment that has filled since
+        while (forcing) {
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for the log force");
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // records keep their LSNs, so the rest of the log stays as it is
+        Long keep = segments.floorKey(minLogRecord);
+        if (keep == null)
+            return;
+        Iterator<Segment> it = segments.headMap(keep).values().iterator();
+        while (it.hasNext()) {
+            Segment seg = it.next();
+            Debug.log("TRUNCATING LOG SEGMENT " + seg.file + "; NEW START : " + keep);
+            seg.delete();
+            it.remove();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,19 +928,67 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    return; // not live, e.g. rolled back already
+
+                // the transaction's changes, undone last first
+                writeBuffer();
+                ArrayList<LogRecord> changes = new ArrayList<LogRecord>();
+                LogReader in = new LogReader(first);
+                for (LogRecord r; (r = readRecord(in)) != null; )
+                    if (r.tid == tid.getId() && r.isUndoable())
+                        changes.add(r);
+                Map<PageId, Page> pages = undo(changes);
+
+                // write-ahead: the CLRs go to disk before the pages; the
+                // cached versions are dropped, they may have the changes
+                force();
+                writePages(pages);
             }
         }
     }
 
+    /** Undo changes, the last one first, logging a CLR for each.  Caller
+        holds this.
+        @return the pages undone, to write out once the CLRs are forced
+    */
+    private Map<PageId, Page> undo(List<LogRecord> changes) throws IOException {
+        HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            LogRecord r = changes.get(i);
+            PageId pid = r.pageId();
+            Page p = pages.get(pid);
+            if (p == null && r.tuple != null)
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, r.undo(p));
+            logCompensation(r);
+        }
+        return pages;
+    }
+
+    // write pages to their files, dropping any cached version
+    private static void writePages(Map<PageId, Page> pages) throws IOException {
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            Database.getBufferPool().discardPage(p.getId());
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+                raf.close();
+                for (Segment seg : segments.values())
+                    seg.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -493,18 +1003,416 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                segments.clear();
+                segments.putAll(openSegments());
+                if (raf.length() < HEADER_SIZE || segments.isEmpty()) {
+                    startLog();
+                    return;
+                }
+                raf.seek(0);
+                long cp = raf.readLong();
+
+                // analysis: the transactions that never finished, and the
+                // pages that may miss logged changes, with the first of them
+                HashMap<Long, Long> active = new HashMap<Long, Long>();
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+                LogReader in = new LogReader(cp != NO_CHECKPOINT_ID ? cp : segments.firstKey());
+                long end = in.lsn();
+                for (LogRecord r; (r = readRecord(in)) != null; end = in.lsn()) {
+                    switch (r.type) {
+                    case CHECKPOINT_RECORD:
+                        // transactions that finished before it are not in
+                        // it; a page may be dirtied by a record since the
+                        // checkpoint began and be in it too
+                        for (Map.Entry<Long, Long> e : r.active.entrySet())
+                            if (!active.containsKey(e.getKey()))
+                                active.put(e.getKey(), e.getValue());
+                        for (Map.Entry<PageId, Long> e : r.dirty.entrySet()) {
+                            Long lsn = dirty.get(e.getKey());
+                            if (lsn == null || e.getValue() < lsn)
+                                dirty.put(e.getKey(), e.getValue());
+                        }
+                        break;
+                    case BEGIN_RECORD:
+                        active.put(r.tid, r.lsn);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(r.tid);
+                        break;
+                    default:
+                        if (r.pageId() != null && !dirty.containsKey(r.pageId()))
+                            dirty.put(r.pageId(), r.lsn);
+                    }
+                }
+
+                // a record torn by the crash is dropped, new records
+                // follow the last whole one
+                while (segments.lastKey() > end)
+                    segments.pollLastEntry().getValue().delete();
+                current = segments.lastEntry().getValue();
+                current.raf().setLength(SEGMENT_HEADER_SIZE + end - current.start);
+                current.raf().seek(SEGMENT_HEADER_SIZE + end - current.start);
+                currentOffset = writtenLsn = durableLsn = end;
+
+                // redo: repeat history from the first change that may be
+                // missing on disk
+                if (!dirty.isEmpty())
+                    redo(Collections.min(dirty.values()), dirty);
+
+                // undo: roll back the transactions that never finished
+                if (!active.isEmpty()) {
+                    ArrayList<LogRecord> changes = new ArrayList<LogRecord>();
+                    in = new LogReader(Collections.min(active.values()));
+                    for (LogRecord r; (r = readRecord(in)) != null; )
+                        if (active.containsKey(r.tid) && r.isUndoable())
+                            changes.add(r);
+                    Map<PageId, Page> pages = undo(changes);
+                    for (long tid : active.keySet())
+                        appendAbort(tid);
+                    force();
+                    writePages(pages);
+                }
+                tidToFirstLogRecord.clear();
             }
          }
     }
 
+    /** Redo the changes to the pages of the dirty page table, from LSN
+        from on, and write the pages out.  A record is skipped if its page
+        was written after it, that is, if it is older than the page's
+        recLSN.  Caller holds this.
+    */
+    private void redo(long from, Map<PageId, Long> dirty) throws IOException {
+        int n = redoThreads;
+        RedoWorker[] workers = new RedoWorker[n];
+        for (int i = 0; i < n; i++) {
+            workers[i] = new RedoWorker();
+            if (n > 1)
+                workers[i].start();
+        }
+        // pages numbers known to exist, by table
+        HashMap<Integer, Integer> numPages = new HashMap<Integer, Integer>();
+        try {
+            LogReader in = new LogReader(from);
+            for (LogRecord r; (r = readRecord(in)) != null; ) {
+                PageId pid = r.pageId();
+                Long recLsn = pid == null ? null : dirty.get(pid);
+                if (recLsn == null || r.lsn < recLsn)
+                    continue;
+                ensurePage(pid, numPages);
+                RedoWorker w = workers[(pid.hashCode() & 0x7fffffff) % n];
+                if (n > 1)
+                    w.put(r);
+                else
+                    w.apply(r);
+            }
+        } finally {
+            if (n > 1) {
+                for (RedoWorker w : workers)
+                    w.put(END_OF_LOG);
+                for (RedoWorker w : workers) {
+                    try {
+                        w.join();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("interrupted waiting for redo");
+                    }
+                }
+            }
+        }
+        for (RedoWorker w : workers) {
+            if (n == 1)
+                writePages(w.pages);
+            else if (w.error != null)
+                throw new IOException("redo failed", w.error);
+        }
+    }
+
+    /** A heap file page the crash lost the growth of the file to is added
+        back, empty, so redo can read and write it. */
+    private static void ensurePage(PageId pid, Map<Integer, Integer> numPages) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (!(f instanceof HeapFile))
+            return;
+        Integer known = numPages.get(pid.getTableId());
+        if (known != null && pid.getPageNumber() < known)
+            return;
+        HeapFile hf = (HeapFile) f;
+        int n = hf.numPages();
+        for (; n <= pid.getPageNumber(); n++)
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), n), HeapPage.createEmptyPageData()));
+        numPages.put(pid.getTableId(), n);
+    }
+
+    /** Redoes the records of a share of the pages, in log order, keeping
+        the pages in memory until the end of the log. */
+    private static class RedoWorker extends Thread {
+        final ArrayBlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(REDO_QUEUE);
+        final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        volatile Throwable error;
+
+        RedoWorker() {
+            super("LogFile redo");
+            setDaemon(true);
+        }
+
+        void put(LogRecord r) throws IOException {
+            try {
+                queue.put(r);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        void apply(LogRecord r) {
+            PageId pid = r.pageId();
+            Page p = pages.get(pid);
+            if (p == null && r.tuple != null)
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            pages.put(pid, r.redo(p));
+        }
+
+        public void run() {
+            try {
+                // after an error, keep taking records so the reader never blocks
+                for (LogRecord r; (r = queue.take()) != END_OF_LOG; ) {
+                    if (error == null) {
+                        try {
+                            apply(r);
+                        } catch (RuntimeException e) {
+                            error = e;
+                        }
+                    }
+                }
+                if (error == null)
+                    writePages(pages);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
+    /** Return once everything logged so far is on disk, forcing it
+        together with any commits waiting. */
+    public void forceAll() throws IOException {
+        forceTo(logEnd() - 1);
+    }
+
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        writeBuffer();
+        current.channel().force(true);
+        forces++;
+        durableLsn = writtenLsn;
+        notifyAll();
+    }
+
+    /** A log record as rollback and recovery read it back. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        boolean compensation; // a CLR, redone but never undone
+        TupleLogRecord tuple; // INSERT and DELETE
+        Page before, after; // UPDATE; a CLR has no before image
+        HashMap<Long, Long> active; // CHECKPOINT: first record by transaction
+        HashMap<PageId, Long> dirty; // CHECKPOINT: recLSN by page
+
+        PageId pageId() {
+            return tuple != null ? tuple.getPageId() : after != null ? after.getId() : null;
+        }
+
+        boolean isUndoable() {
+            return !compensation && pageId() != null;
+        }
+
+        /** @return p, or the page replacing it, with the change */
+        Page redo(Page p) {
+            if (tuple == null)
+                return after;
+            tuple.redo((HeapPage) p);
+            return p;
+        }
+
+        /** @return p, or the page replacing it, without the change */
+        Page undo(Page p) {
+            if (tuple == null)
+                return before;
+            tuple.undo((HeapPage) p);
+            return p;
+        }
+    }
+
+    // ends the records queued to a redo thread
+    private static final LogRecord END_OF_LOG = new LogRecord();
+
+    /** Read the record at in's position.
+        @return the record, or null at the end of the log, including a
+        record cut short by a crash
+    */
+    private LogRecord readRecord(LogReader in) throws IOException {
+        LogRecord r = new LogRecord();
+        r.lsn = in.lsn();
+        try {
+            r.type = in.readInt();
+            r.tid = in.readLong();
+            switch (r.type) {
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+            case CHECKPOINT_BEGIN_RECORD:
+                break;
+            case UPDATE_RECORD:
+                r.before = readPageData(in);
+                r.after = readPageData(in);
+                break;
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                r.tuple = TupleLogRecord.read(r.type, in);
+                break;
+            case CLR_RECORD:
+                r.compensation = true;
+                int type = in.readInt();
+                if (type == UPDATE_RECORD)
+                    r.after = readPageData(in);
+                else
+                    r.tuple = TupleLogRecord.read(type, in);
+                break;
+            case CHECKPOINT_RECORD:
+                r.active = new HashMap<Long, Long>();
+                for (int n = in.readInt(); n > 0; n--)
+                    r.active.put(in.readLong(), in.readLong());
+                r.dirty = new HashMap<PageId, Long>();
+                for (int n = in.readInt(); n > 0; n--)
+                    r.dirty.put(readPageId(in), in.readLong());
+                break;
+            default:
+                return null;
+            }
+            if (in.readLong() != r.lsn)
+                return null;
+        } catch (EOFException e) {
+            return null;
+        }
+        return r;
+    }
+
+    /** Reads the log sequentially from an LSN on, from one segment into
+        the next.  It reads the segments at its own position, so records
+        can be appended meanwhile.  Caller holds this. */
+    private class LogReader extends DataInputStream {
+        LogReader(long lsn) throws IOException {
+            super(new SegmentInput(lsn));
+        }
+
+        /** @return the LSN of the next byte read */
+        long lsn() {
+            return ((SegmentInput) in).lsn();
+        }
+    }
+
+    /** An input stream over the segments from an LSN on, read with
+        positional reads through a buffer.  Caller holds this. */
+    private class SegmentInput extends InputStream {
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private Segment seg;
+        private long next; // LSN of the byte after buf's
+
+        SegmentInput(long lsn) throws IOException {
+            Map.Entry<Long, Segment> e = segments.floorEntry(lsn);
+            if (e == null)
+                throw new IOException("LSN " + lsn + " is before the log");
+            seg = e.getValue();
+            next = lsn;
+            buf.limit(0);
+        }
+
+        long lsn() {
+            return next - buf.remaining();
+        }
+
+        private boolean fill() throws IOException {
+            buf.clear();
+            int n = seg.channel().read(buf, SEGMENT_HEADER_SIZE + next - seg.start);
+            if (n <= 0) {
+                // the end of this segment; the log goes on if the next
+                // segment starts here
+                Segment following = segments.get(next);
+                if (following == null || following == seg)
+                    return false;
+                seg = following;
+                n = seg.channel().read(buf, SEGMENT_HEADER_SIZE);
+            }
+            buf.flip();
+            if (n <= 0)
+                return false;
+            next += n;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            return buf.get() & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+
+    /** A segment file, opened when first read or written. */
+    private static class Segment {
+        final long start;
+        final File file;
+        private RandomAccessFile raf;
+
+        Segment(long start, File file) {
+            this.start = start;
+            this.file = file;
+        }
+
+        RandomAccessFile raf() throws IOException {
+            if (raf == null)
+                raf = new RandomAccessFile(file, "rw");
+            return raf;
+        }
+
+        FileChannel channel() throws IOException {
+            return raf().getChannel();
+        }
+
+        void close() throws IOException {
+            if (raf != null)
+                raf.close();
+            raf = null;
+        }
+
+        void delete() throws IOException {
+            close();
+            file.delete();
+        }
+    }
+
+    /** The log buffer, written out without copying its contents. */
+    private static class LogBuffer extends ByteArrayOutputStream {
+        LogBuffer() {
+            super(1 << 16);
+        }
+
+        void writeTo(DataOutput out, int off, int len) throws IOException {
+            out.write(buf, off, len);
+        }
     }
 
 }
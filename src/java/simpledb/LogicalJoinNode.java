@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether t2 is looked up in its B+ tree index for each tuple of t1
+     * rather than read; set by the {@link JoinOptimizer} when cheaper. */
+    public boolean indexLookup = false;
+
     public LogicalJoinNode() {
     }
 
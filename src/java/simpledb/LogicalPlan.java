@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -29,12 +30,14 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private long limit = -1, offset = 0;
     private String query;
 //    private Query owner;
 
@@ -186,36 +189,59 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  A query may have several aggregates, all computed in the
+        same pass over the same groups.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to group the aggregates of the query by.  Adding the
+        same field twice has no effect.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Fields are
+        sorted on in the order they were added, the first one most significant.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause: return at most limit result tuples, after skipping offset of them.
+        @param limit the largest number of tuples to return
+        @param offset the number of tuples to skip first
+    */
+    public void addLimit(long limit, long offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -306,6 +332,9 @@ public class LogicalPlan {
 
         }
 
+        // the predicate and selectivity of each filter, in the order of filters
+        ArrayList<Predicate> filterPreds = new ArrayList<Predicate>();
+        ArrayList<Double> filterSels = new ArrayList<Double>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -334,15 +363,38 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
-
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            filterPreds.add(p);
+            filterSels.add(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // read each table through its index where that is cheaper; the filter
+        // the index scan applies is not needed on top of it
+        HashSet<Integer> indexed = new HashSet<Integer>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            int i = chooseIndexFilter(table.alias, s, filterPreds, filterSels);
+            if (i < 0)
+                continue;
+            indexed.add(i);
+            Predicate p = filterPreds.get(i);
+            subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias,
+                    new IndexPredicate(p.getOp(), p.getOperand())));
+            if (explain)
+                System.out.println("Scanning " + table.alias + " through its index on "
+                        + filters.elementAt(i).fieldQuantifiedName + " " + p.getOp() + " " + p.getOperand());
+        }
+        for (int i = 0; i < filters.size(); i++) {
+            if (indexed.contains(i))
+                continue;
+            String alias = filters.elementAt(i).tableAlias;
+            subplanMap.put(alias, new Filter(filterPreds.get(i), subplanMap.get(alias)));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -414,28 +466,29 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
-                }
+                // aggregates come after the group by fields in the output
+                // of the Aggregate node
+                int a = 0;
+                while (a < aggOps.size() && !(aggOps.elementAt(a).equals(si.aggOp)
+                        && aggFields.elementAt(a).equals(si.fname)))
+                    a++;
+                if (a == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + a);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -462,10 +515,22 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggOps.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int a = 0; a < afields.length; a++) {
+                    ops[a] = getAggOp(aggOps.elementAt(a));
+                    if (aggFields.elementAt(a).equals("null.*")) {
+                        if (ops[a] != Aggregator.Op.COUNT)
+                            throw new ParsingException(aggOps.elementAt(a) + "(*) is not supported");
+                        afields[a] = 0;  // any field counts the same
+                    } else {
+                        afields[a] = td.fieldNameToIndex(aggFields.elementAt(a));
+                    }
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int g = 0; g < gfields.length; g++)
+                    gfields[g] = td.fieldNameToIndex(groupByFields.elementAt(g));
+                aggNode = new Aggregate(node, afields, gfields, ops);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,12 +540,67 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                asc[i] = oByAsc.elementAt(i);
+            }
+            // a top-N heap when the tuples it keeps fit where a sort would
+            // have sorted in memory anyway
+            if (limit >= 0 && limit + offset <= OrderBy.getMemoryBudget() / Tuple.heapSize(node.getTupleDesc()))
+                node = new TopN(fields, asc, limit, offset, node);
+            else
+                node = new OrderBy(fields, asc, node);
+        }
+        if (limit >= 0 && !(node instanceof TopN)) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** Decide whether to read table alias through its B+ tree index rather
+     *  than scan all of it: the filters on alias that compare its key with an
+     *  operator the index can search on are candidates, and the one whose
+     *  index scan {@link TableStats#estimateIndexScanCost} estimates cheapest
+     *  is used if it costs less than {@link TableStats#estimateScanCost}.
+     *  @param alias the alias of the table
+     *  @param s the statistics of the table, or null if there are none
+     *  @param filterPreds the predicate of each filter of the plan
+     *  @param filterSels the estimated selectivity of each filter of the plan
+     *  @return the index in filters of the filter to apply through the index,
+     *    or -1 to scan the whole table
+     */
+    private int chooseIndexFilter(String alias, TableStats s,
+            ArrayList<Predicate> filterPreds, ArrayList<Double> filterSels) {
+        if (s == null || s.indexedField() < 0)
+            return -1;
+        int best = -1;
+        double bestCost = s.estimateScanCost();
+        for (int i = 0; i < filters.size(); i++) {
+            Predicate p = filterPreds.get(i);
+            if (!filters.elementAt(i).tableAlias.equals(alias) || p.getField() != s.indexedField())
+                continue;
+            switch (p.getOp()) {
+            case EQUALS:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                double cost = s.estimateIndexScanCost(filterSels.get(i));
+                if (cost < bestCost) {
+                    best = i;
+                    bestCost = cost;
+                }
+                break;
+            default:
+                // NOT_EQUALS and LIKE select no range of keys
+            }
+        }
+        return best;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
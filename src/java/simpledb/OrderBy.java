@@ -1,24 +1,46 @@
 package simpledb;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Tuples are sorted in memory as long as they fit in the memory budget.
+ * Past it, OrderBy is an external merge sort: every budget's worth of tuples
+ * is sorted and written to a temp file as a run of HeapPage-format pages, and
+ * the runs are merged with a loser tree.  If there are more runs than read
+ * buffers fit in the budget, they are first merged into longer runs.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget for buffered tuples, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /** Bytes read from each run at a time while merging. */
+    public static final int RUN_BUFFER_BYTES = 64 << 10;
+
+    private static volatile long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] asc;
     private String orderByFieldName;
     private Iterator<Tuple> it;
-    private boolean asc;
+
+    // sorted runs on disk when the input did not fit in the budget, and the
+    // merge over them
+    transient private ArrayList<Run> runs;
+    transient private LoserTree merge;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,67 +49,221 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields: by the first,
+     * then by the second among equal firsts, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per ORDER BY field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.asc = asc.clone();
     }
-    
+
+    /**
+     * Set the number of bytes of tuples an OrderBy keeps in memory before it
+     * writes sorted runs to disk.
+     */
+    public static void setMemoryBudget(long bytes) {
+        memoryBudget = bytes;
+    }
+
+    public static long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** @return true if the first sort field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
+    /** @return the first sort field */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    public boolean[] getAscending()
+    {
+        return this.asc.clone();
+    }
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /** Returns true if the last open() had to write sorted runs to disk. */
+    public boolean isSpilled() {
+        return runs != null;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        dropRuns();
+        childTups.clear();
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        Comparator<Tuple> cmp = new OrderByComparator(orderByFields, asc);
+        long maxTuples = Math.max(1, memoryBudget / Tuple.heapSize(td));
+        // load the tuples in a collection, sorting and writing it out as a
+        // run whenever it reaches the budget
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            // buffered tuples must not pin the pages they were read from
+            t.materialize();
+            childTups.add(t);
+            if (childTups.size() >= maxTuples) {
+                Collections.sort(childTups, cmp);
+                if (runs == null)
+                    runs = new ArrayList<Run>();
+                runs.add(writeRun(childTups));
+                childTups.clear();
+            }
+        }
+        Collections.sort(childTups, cmp);
+        if (runs == null) {
+            it = childTups.iterator();
+        } else {
+            if (!childTups.isEmpty())
+                runs.add(writeRun(childTups));
+            childTups.clear();
+            childTups.trimToSize();
+            mergeDown(cmp);
+            startMerge();
+        }
         super.open();
     }
 
     public void close() {
         super.close();
         it = null;
+        childTups.clear();
+        dropRuns();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        if (runs == null)
+            it = childTups.iterator();
+        else
+            startMerge();
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merge != null)
+            return merge.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
             return null;
     }
 
+    /** Merge runs into longer ones until a single merge can take them all. */
+    private void mergeDown(Comparator<Tuple> cmp) throws DbException {
+        int fanIn = (int) Math.max(2, Math.min(1024, memoryBudget / RUN_BUFFER_BYTES));
+        while (runs.size() > fanIn) {
+            ArrayList<Run> merged = new ArrayList<Run>();
+            for (int from = 0; from < runs.size(); from += fanIn) {
+                List<Run> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                LoserTree lt = new LoserTree(openRuns(group), cmp);
+                RunWriter w = newRunWriter();
+                try {
+                    Tuple t;
+                    while ((t = lt.next()) != null)
+                        w.add(t);
+                    merged.add(w.finish());
+                } catch (IOException e) {
+                    w.abort();
+                    throw new DbException("order by could not write run: " + e);
+                } finally {
+                    lt.close();
+                }
+                for (Run r : group)
+                    r.file.delete();
+            }
+            runs = merged;
+        }
+    }
+
+    private void startMerge() throws DbException {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        merge = new LoserTree(openRuns(runs), new OrderByComparator(orderByFields, asc));
+    }
+
+    private RunReader[] openRuns(List<Run> rs) throws DbException {
+        RunReader[] in = new RunReader[rs.size()];
+        for (int i = 0; i < in.length; i++)
+            in[i] = new RunReader(rs.get(i), td);
+        return in;
+    }
+
+    private Run writeRun(List<Tuple> sorted) throws DbException {
+        RunWriter w = newRunWriter();
+        try {
+            for (Tuple t : sorted)
+                w.add(t);
+            return w.finish();
+        } catch (IOException e) {
+            w.abort();
+            throw new DbException("order by could not write run: " + e);
+        }
+    }
+
+    private RunWriter newRunWriter() throws DbException {
+        try {
+            return new RunWriter(td);
+        } catch (IOException e) {
+            throw new DbException("order by could not create run: " + e);
+        }
+    }
+
+    private void dropRuns() {
+        if (merge != null)
+            merge.close();
+        merge = null;
+        if (runs != null)
+            for (Run r : runs)
+                r.file.delete();
+        runs = null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[] { this.child };
@@ -98,26 +274,236 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /** A sorted run: a temp file of HeapPage-format pages and its tuple count. */
+    private static class Run {
+        final File file;
+        final long count;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        Run(File file, long count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+    /** Number of tuple slots on a run page, as on a HeapPage. */
+    private static int slotsPerPage(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    /**
+     * Writes tuples to a run file as HeapPage-format pages: a header bitmap,
+     * then the tuples in fixed-size slots, filled in order.
+     */
+    private static class RunWriter {
+        private final File file;
+        private final OutputStream out;
+        private final byte[] page = new byte[BufferPool.getPageSize()];
+        private final SlotBuffer tupleBytes;
+        private final DataOutputStream tupleOut;
+        private final int slots, headerSize, tupleSize;
+        private int slot;
+        private long count;
+
+        RunWriter(TupleDesc td) throws IOException {
+            file = File.createTempFile("orderby", ".run");
+            file.deleteOnExit();
+            out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            tupleSize = td.getSize();
+            slots = slotsPerPage(td);
+            headerSize = (slots + 7) / 8;
+            tupleBytes = new SlotBuffer(tupleSize);
+            tupleOut = new DataOutputStream(tupleBytes);
+        }
+
+        void add(Tuple t) throws IOException {
+            tupleBytes.reset();
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                t.getField(i).serialize(tupleOut);
+            tupleOut.flush();
+            System.arraycopy(tupleBytes.bytes(), 0, page, headerSize + slot * tupleSize, tupleSize);
+            page[slot / 8] |= 1 << (slot % 8);
+            count++;
+            if (++slot == slots)
+                flushPage();
+        }
+
+        private void flushPage() throws IOException {
+            out.write(page);
+            Arrays.fill(page, (byte) 0);
+            slot = 0;
+        }
+
+        Run finish() throws IOException {
+            if (slot > 0)
+                flushPage();
+            out.close();
+            return new Run(file, count);
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is dropped anyway
+            }
+            file.delete();
+        }
     }
-    
+
+    /** Serialized tuple bytes, without the copy toByteArray() makes. */
+    private static class SlotBuffer extends ByteArrayOutputStream {
+        SlotBuffer(int size) {
+            super(size);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** Reads a run back in order, several pages per read. */
+    private static class RunReader {
+        private final FileChannel ch;
+        private final ByteBuffer buf;
+        private final TupleDesc td;
+        private final int[] offsets;
+        private final int pageSize, slots, headerSize, tupleSize;
+        private long left;
+        private int pageStart, slot;
+
+        RunReader(Run run, TupleDesc td) throws DbException {
+            this.td = td;
+            pageSize = BufferPool.getPageSize();
+            tupleSize = td.getSize();
+            slots = slotsPerPage(td);
+            headerSize = (slots + 7) / 8;
+            offsets = new int[td.numFields()];
+            for (int i = 1; i < offsets.length; i++)
+                offsets[i] = offsets[i - 1] + td.getFieldType(i - 1).getLen();
+            left = run.count;
+            slot = slots;
+            buf = ByteBuffer.allocate(Math.max(1, RUN_BUFFER_BYTES / pageSize) * pageSize);
+            buf.flip();
+            try {
+                ch = new FileInputStream(run.file).getChannel();
+            } catch (IOException e) {
+                throw new DbException("cannot open order by run: " + e);
+            }
+        }
+
+        /** @return the next tuple of the run, or null at its end */
+        Tuple next() throws DbException {
+            if (left == 0)
+                return null;
+            if (slot == slots) {
+                if (!buf.hasRemaining())
+                    fill();
+                pageStart = buf.position();
+                buf.position(pageStart + pageSize);
+                slot = 0;
+            }
+            int off = pageStart + headerSize + slot * tupleSize;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < offsets.length; i++)
+                t.setField(i, td.getFieldType(i).parse(buf, off + offsets[i]));
+            slot++;
+            left--;
+            return t;
+        }
+
+        private void fill() throws DbException {
+            try {
+                buf.clear();
+                while (buf.hasRemaining() && ch.read(buf) >= 0)
+                    ;
+                buf.flip();
+            } catch (IOException e) {
+                throw new DbException("cannot read order by run: " + e);
+            }
+            if (buf.remaining() < pageSize)
+                throw new DbException("order by run is truncated");
+        }
+
+        void close() {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // read only
+            }
+        }
+    }
+
+    /**
+     * Merges sorted runs with a tournament tree of losers: tree[0] is the run
+     * whose head is smallest, and every other node holds the run that lost
+     * the match played there, so replacing the winner's head costs one
+     * comparison per level, log2(k) in all.
+     */
+    static class LoserTree {
+        private final RunReader[] in;
+        private final Tuple[] heads;
+        private final int[] tree;
+        private final Comparator<Tuple> cmp;
+        private final int k;
+
+        LoserTree(RunReader[] in, Comparator<Tuple> cmp) throws DbException {
+            this.in = in;
+            this.cmp = cmp;
+            k = in.length;
+            heads = new Tuple[k];
+            tree = new int[Math.max(1, k)];
+            for (int i = 0; i < k; i++)
+                heads[i] = in[i].next();
+            // k stands for a run smaller than all others, so every real run
+            // loses to it until it has played its way up
+            Arrays.fill(tree, k);
+            for (int i = k - 1; i >= 0; i--)
+                adjust(i);
+        }
+
+        /** @return the smallest head of all runs, or null once all are done */
+        Tuple next() throws DbException {
+            if (k == 0)
+                return null;
+            int w = tree[0];
+            Tuple t = heads[w];
+            if (t == null)
+                return null;
+            heads[w] = in[w].next();
+            adjust(w);
+            return t;
+        }
+
+        // replay the matches from leaf s up to the root
+        private void adjust(int s) {
+            for (int t = (s + k) / 2; t > 0; t /= 2) {
+                if (less(tree[t], s)) {
+                    int tmp = s;
+                    s = tree[t];
+                    tree[t] = tmp;
+                }
+            }
+            tree[0] = s;
+        }
+
+        // true if run a's head comes before run b's; a finished run is
+        // larger than anything
+        private boolean less(int a, int b) {
+            if (a == k)
+                return true;
+            if (b == k)
+                return false;
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            return cmp.compare(heads[a], heads[b]) < 0;
+        }
+
+        void close() {
+            for (RunReader r : in)
+                r.close();
+        }
+    }
+
 }
@@ -0,0 +1,42 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples on a list of fields, each ascending or descending, as an
+ * ORDER BY clause does.  IntFields are compared by value directly; that is
+ * the same order Field.compare gives, without its two predicate calls.
+ */
+class OrderByComparator implements Comparator<Tuple> {
+    private final int[] fields;
+    private final boolean[] asc;
+
+    OrderByComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    OrderByComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compareFields(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    static int compareFields(Field t1, Field t2) {
+        if (t1 instanceof IntField && t2 instanceof IntField) {
+            int a = ((IntField) t1).getValue(), b = ((IntField) t2).getValue();
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+
+}
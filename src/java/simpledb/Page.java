@@ -7,8 +7,9 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
+ * Other constructors are allowed, recovery looks this one up by signature.
  */
 public interface Page {
 
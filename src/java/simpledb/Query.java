@@ -113,6 +113,21 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        printSpills(op);
         this.close();
     }
+
+    /** Print how much each operator of plan spilled to disk, if any did. */
+    private static void printSpills(OpIterator plan) {
+        if (plan instanceof Aggregate) {
+            Aggregate a = (Aggregate) plan;
+            if (a.isSpilled())
+                System.out.println(" aggregate spilled " + a.getSpillCount()
+                        + " times, " + a.getSpilledBytes() + " bytes.");
+        }
+        if (plan instanceof Operator)
+            for (OpIterator child : ((Operator) plan).getChildren())
+                if (child != null)
+                    printSpills(child);
+    }
 }
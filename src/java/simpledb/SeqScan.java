@@ -47,6 +47,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -96,7 +103,7 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return Database.getCatalog().getTupleDesc(tableid);
+        return TupleDesc.alias(Database.getCatalog().getTupleDesc(tableid), tableAlias);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -72,6 +73,7 @@ public class TableStats {
     private int ioCostPerPage;
     private int[] ma,mi;
     private int tableid;
+    private int height; // levels of the table's B+ tree, 0 if it is not one
     
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -129,6 +131,20 @@ public class TableStats {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+    	DbFile db=Database.getCatalog().getDatabaseFile(tableid);
+    	if(db instanceof BTreeFile) {
+    		TransactionId tid=new TransactionId();
+    		try {
+    			height=((BTreeFile)db).height(tid);
+    			Database.getBufferPool().transactionComplete(tid);
+    		} catch (DbException e) {
+    			e.printStackTrace();
+    		} catch (TransactionAbortedException e) {
+    			e.printStackTrace();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
     }
 
     /**
@@ -145,9 +161,62 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
+    	return numPages()*1.0*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that match a predicate on the
+     * key of the table's B+ tree: one page per level down to the leaf the
+     * range starts on, then the fraction of the pages the range covers,
+     * following the leaves' sibling pointers.  As in
+     * {@link #estimateScanCost}, every page read costs ioCostPerPage.
+     *
+     * @param selectivity
+     *            The selectivity of the predicate on the key
+     * @return The estimated cost of the index scan, or
+     *         Double.POSITIVE_INFINITY if the table is not a B+ tree
+     */
+    public double estimateIndexScanCost(double selectivity) {
+    	if(height==0)
+    		return Double.POSITIVE_INFINITY;
+    	return (height+Math.ceil(selectivity*numPages()))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of looking keys up one at a time in the table's B+
+     * tree, as an index nested-loop join does: each lookup reads one page per
+     * level, but the lookups are made in sorted batches, which read the
+     * internal pages they share and each leaf page at most once, so a batch
+     * never reads more pages than the whole tree has.
+     *
+     * @param lookups
+     *            The number of keys looked up
+     * @param batchSize
+     *            The number of keys sorted and looked up together
+     * @return The estimated cost of the lookups, or
+     *         Double.POSITIVE_INFINITY if the table is not a B+ tree
+     */
+    public double estimateIndexLookupCost(int lookups, int batchSize) {
+    	if(height==0)
+    		return Double.POSITIVE_INFINITY;
+    	double batches=Math.ceil((double)lookups/batchSize);
+    	return Math.min((double)lookups*height, batches*numPages())*ioCostPerPage;
+    }
+
+    /**
+     * @return the index of the field the table's B+ tree is keyed on, or -1 if
+     *         the table is not a B+ tree
+     */
+    public int indexedField() {
+    	DbFile db=Database.getCatalog().getDatabaseFile(tableid);
+    	return db instanceof BTreeFile ? ((BTreeFile)db).keyField() : -1;
+    }
+
+    private int numPages() {
     	DbFile db=Database.getCatalog().getDatabaseFile(tableid);
-    	int pages=((HeapFile)db).numPages();
-    	return pages*1.0*ioCostPerPage;
+    	if(db instanceof BTreeFile)
+    		return ((BTreeFile)db).numPages();
+    	return ((HeapFile)db).numPages();
     }
 
     /**
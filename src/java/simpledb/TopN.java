@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator for ORDER BY ... LIMIT: it returns the first limit
+ * tuples of its child in sort order, after skipping offset of them, without
+ * sorting the whole input.  The limit + offset smallest tuples seen so far
+ * are kept in a heap with the largest on top, so each input tuple costs at
+ * most one comparison against the top and a log(limit + offset) replacement.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final long limit, offset;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param limit
+     *            the largest number of tuples to return
+     * @param offset
+     *            the number of tuples, in sort order, to skip first
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, long limit, long offset, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction per ORDER BY field");
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        if (limit + offset > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("LIMIT + OFFSET too large to keep in memory");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return the first sort field */
+    public int getOrderByField() {
+        return orderByFields[0];
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = new OrderByComparator(orderByFields, asc);
+        int n = (int) (limit + offset);
+        top.clear();
+        if (n > 0) {
+            // largest kept tuple on top
+            PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.min(n, 1 << 16),
+                    Collections.reverseOrder(cmp));
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    // kept tuples must not pin the pages they were read from
+                    t.materialize();
+                    heap.add(t);
+                } else if (cmp.compare(t, heap.peek()) < 0) {
+                    heap.poll();
+                    t.materialize();
+                    heap.add(t);
+                }
+            }
+            top.addAll(heap);
+            Collections.sort(top, cmp);
+        }
+        it = top.listIterator((int) Math.min(offset, top.size()));
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        it = null;
+        top.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.listIterator((int) Math.min(offset, top.size()));
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -47,8 +47,9 @@ public class Transaction {
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //the commit record is forced with this transaction's
+                //tuple records and page images, so writing its dirty
+                //pages out below does not force the log again
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -18,6 +21,12 @@ public class Tuple implements Serializable {
     private TupleDesc td;
     private RecordId recordid;
     private List<Field> fds;
+    // tuples read from a page decode their fields from the page image on
+    // first access; src is dropped once every field has been decoded
+    private transient ByteBuffer src;
+    private transient int srcOffset;
+    private transient int[] fieldOffsets;
+    private transient TupleDesc srcTd;
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -33,6 +42,17 @@ public class Tuple implements Serializable {
     	//System.out.println("size :"+td.numFields());
     }
 
+    /**
+     * Rough number of heap bytes a fully decoded tuple of td takes: the field
+     * bytes plus the Tuple, its field list and one object per field.  Used by
+     * operators that budget the memory they buffer tuples in; they must
+     * materialize() the tuples they keep, as a tuple still reading its page
+     * image keeps the whole page alive.
+     */
+    static long heapSize(TupleDesc td) {
+        return td.getSize() + 16 * td.numFields() + 64;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -75,6 +95,45 @@ public class Tuple implements Serializable {
     	fds.set(i,f);
     }
 
+    /**
+     * Back this tuple by a serialized tuple image: field i, unless set
+     * explicitly, is decoded from buf at offset + fieldOffsets[i] the first
+     * time it is read.  The bytes must not change until the tuple has been
+     * materialized.
+     */
+    void setSource(ByteBuffer buf, int offset, int[] fieldOffsets) {
+    	this.src=buf;
+    	this.srcOffset=offset;
+    	this.fieldOffsets=fieldOffsets;
+    	this.srcTd=td;
+    }
+
+    /**
+     * Decode every field that has not been decoded yet and drop the reference
+     * to the serialized image.
+     */
+    void materialize() {
+    	if(src==null)
+    		return;
+    	for(int i=0;i<fds.size();++i)
+    		getField(i);
+    	src=null;
+    	fieldOffsets=null;
+    	srcTd=null;
+    }
+
+    /**
+     * @return true if this tuple no longer reads a serialized image
+     */
+    boolean isMaterialized() {
+    	return src==null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+    	materialize();
+    	out.defaultWriteObject();
+    }
+
     /**
      * @return the value of the ith field, or null if it has not been set.
      *
@@ -83,8 +142,23 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-    	//System.out.println("get:"+i);
-        return fds.get(i);
+    	Field f=fds.get(i);
+    	if(f==null&&src!=null) {
+    		f=srcTd.getFieldType(i).parse(src, srcOffset+fieldOffsets[i]);
+    		fds.set(i, f);
+    	}
+        return f;
+    }
+
+    /**
+     * @return the value of the ith field, which must be an int, read straight
+     *         from the serialized image if it has not been decoded yet.
+     */
+    int getInt(int i) {
+    	Field f=fds.get(i);
+    	if(f==null&&src!=null)
+    		return src.getInt(srcOffset+fieldOffsets[i]);
+    	return ((IntField)f).getValue();
     }
 
     /**
@@ -99,7 +173,7 @@ public class Tuple implements Serializable {
         // some code goes here
         String res="";
         for(int i=0;i<fds.size();++i) {
-        	res+=fds.get(i).toString();
+        	res+=getField(i).toString();
         	res+=" ";
         }
         res.substring(0, res.length()-1);
@@ -113,6 +187,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+    	materialize();
         return fds.iterator();
     }
 
@@ -186,6 +186,27 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(ty, name);
     }
 
+    /**
+     * Prefix the field names of td with a table alias, as scans present them
+     * to the rest of a plan: field f becomes alias.f.  A null alias or field
+     * name is printed as "null".
+     * 
+     * @param td
+     *            The TupleDesc of the table
+     * @param alias
+     *            The alias of the table
+     * @return the new TupleDesc
+     */
+    public static TupleDesc alias(TupleDesc td, String alias) {
+    	Type ty[] = new Type[td.numFields()];
+    	String name[] = new String[td.numFields()];
+    	for(int i=0;i<td.numFields();++i) {
+    		ty[i]=td.getFieldType(i);
+    		name[i]=alias+"."+td.getFieldName(i);
+    	}
+        return new TupleDesc(ty, name);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * The body of an INSERT or DELETE log record: one tuple put into or taken
+ * out of one slot of a HeapPage.  It holds the page id, the slot and the
+ * serialized tuple, which is all it takes to redo or undo the change, so it
+ * is a few dozen bytes where an UPDATE record holds two whole page images.
+ *
+ * @see LogFile
+ */
+public class TupleLogRecord {
+
+    final int type;
+    final HeapPageId pid;
+    final int slot;
+    final byte[] tuple;
+
+    /**
+     * @param type LogFile.INSERT_RECORD or LogFile.DELETE_RECORD
+     * @param rid the slot the tuple was inserted into or deleted from
+     * @param tuple the serialized tuple
+     */
+    TupleLogRecord(int type, RecordId rid, byte[] tuple) {
+        this(type, new HeapPageId(rid.getPageId().getTableId(), rid.getPageId().getPageNumber()),
+             rid.getTupleNumber(), tuple);
+    }
+
+    private TupleLogRecord(int type, HeapPageId pid, int slot, byte[] tuple) {
+        if (type != LogFile.INSERT_RECORD && type != LogFile.DELETE_RECORD)
+            throw new IllegalArgumentException("not a tuple record type: " + type);
+        this.type = type;
+        this.pid = pid;
+        this.slot = slot;
+        this.tuple = tuple;
+    }
+
+    /** @return the page the record changes */
+    public HeapPageId getPageId() {
+        return pid;
+    }
+
+    /** @return the serialized fields of t, as a HeapPage stores them */
+    static byte[] serialize(Tuple t) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(t.getTupleDesc().getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            t.getField(i).serialize(dos);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /** Write the record body: table, page number, slot and tuple. */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+        out.writeInt(slot);
+        out.writeInt(tuple.length);
+        out.write(tuple);
+    }
+
+    /** Read the body of a record of the given type, as write() wrote it. */
+    static TupleLogRecord read(int type, DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        int slot = in.readInt();
+        byte[] tuple = new byte[in.readInt()];
+        in.readFully(tuple);
+        return new TupleLogRecord(type, pid, slot, tuple);
+    }
+
+    /** @return the record of the opposite change, which a compensation
+        record logs to undo this one */
+    TupleLogRecord inverse() {
+        return new TupleLogRecord(type == LogFile.INSERT_RECORD ? LogFile.DELETE_RECORD : LogFile.INSERT_RECORD,
+                                  pid, slot, tuple);
+    }
+
+    /** Apply the change to p, which must be the page of this record. */
+    public void redo(HeapPage p) {
+        if (type == LogFile.INSERT_RECORD)
+            p.putSlot(slot, tuple);
+        else
+            p.clearSlot(slot);
+    }
+
+    /** Revert the change on p, which must be the page of this record. */
+    public void undo(HeapPage p) {
+        if (type == LogFile.INSERT_RECORD)
+            p.clearSlot(slot);
+        else
+            p.putSlot(slot, tuple);
+    }
+}
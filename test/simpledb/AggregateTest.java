@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -82,6 +83,10 @@ public class AggregateTest extends SimpleDbTestBase {
 
   }
 
+  @After public void resetBudget() {
+    Aggregate.setMemoryBudget(Aggregate.DEFAULT_MEMORY_BUDGET);
+  }
+
   /**
    * Unit test for Aggregate.getTupleDesc()
    */
@@ -176,6 +181,120 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for several aggregates over a two-column group key, computed
+   * in one Aggregate, and for opening it a second time
+   */
+  @Test public void multiAggregate() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 2, 4,
+                    1, 1, 6,
+                    3, 1, 2,
+                    3, 1, 5 });
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 2, 8, 6,
+                    1, 2, 1, 4, 4,
+                    3, 1, 2, 7, 5 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX });
+    assertEquals(5, op.getTupleDesc().numFields());
+    for (int i = 0; i < 2; i++) {
+      op.open();
+      expected.open();
+      TestUtil.matchAllTuples(expected, op);
+      expected.close();
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for planning a query with several aggregates and GROUP BY
+   * fields into a single Aggregate
+   */
+  @Test public void plannedMultiAggregate() throws Exception {
+    java.util.ArrayList<java.util.ArrayList<Integer>> rows = new java.util.ArrayList<java.util.ArrayList<Integer>>();
+    HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(3, 200, 4, null, rows, "c");
+    Database.getCatalog().addTable(hf, "agg");
+    TableStats.setTableStats("agg", new TableStats(hf.getId(), 1));
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid,
+        "SELECT t.c1, t.c0, COUNT(*), SUM(t.c2), MAX(t.c2) FROM agg t GROUP BY t.c0, t.c1;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator child = ((Operator) plan).getChildren()[0];
+    assertEquals(Aggregate.class, child.getClass());
+    assertEquals(3, ((Aggregate) child).aggregateOps().length);
+
+    java.util.HashMap<String, int[]> groups = new java.util.HashMap<String, int[]>();
+    for (java.util.ArrayList<Integer> r : rows) {
+      int[] g = groups.get(r.get(1) + "," + r.get(0));
+      if (g == null)
+        groups.put(r.get(1) + "," + r.get(0), g = new int[] { 0, 0, Integer.MIN_VALUE });
+      g[0]++;
+      g[1] += r.get(2);
+      g[2] = Math.max(g[2], r.get(2));
+    }
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      Tuple t = plan.next();
+      int[] g = groups.get(t.getField(0) + "," + t.getField(1));
+      assertNotNull(g);
+      for (int i = 0; i < 3; i++)
+        assertEquals(g[i], ((IntField) t.getField(2 + i)).getValue());
+      n++;
+    }
+    assertEquals(groups.size(), n);
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for an Aggregate with more groups than its memory budget, so
+   * that it spills and repartitions, including rewind()
+   */
+  @Test public void spilledAggregate() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.AVG };
+    // 40 groups in memory: too few for a partition of the 7000 groups
+    Aggregate.setMemoryBudget(40 * GroupAggregator.groupBytes(
+        new Type[] { Type.INT_TYPE, Type.INT_TYPE }, ops));
+    java.util.ArrayList<Tuple> tups = new java.util.ArrayList<Tuple>();
+    // group (i % 1000, i % 7) of i < 21000 holds the three values
+    // min, min + 7000 and min + 14000; add them group by group
+    for (int min = 0; min < 7000; min++)
+      for (int i = min; i < 21000; i += 7000)
+        tups.add(Utility.getHeapTuple(new int[] { i % 1000, i % 7, i }));
+    Aggregate op = new Aggregate(new TupleIterator(Utility.getTupleDesc(3), tups),
+        new int[] { 2, 2, 2 }, new int[] { 0, 1 }, ops);
+    op.open();
+    assertTrue(op.isSpilled());
+    // the input alone spills every 40 groups and once at the end; any more
+    // spills are partitions split again
+    assertTrue(op.getSpillCount() > 7000 / 40 + 1);
+    assertTrue(op.getSpilledBytes() > 7000 * 24);
+    for (int pass = 0; pass < 2; pass++) {
+      boolean[] seen = new boolean[7000];
+      int n = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int k = ((IntField) t.getField(0)).getValue();
+        int j = ((IntField) t.getField(1)).getValue();
+        int min = k;
+        while (min % 7 != j)
+          min += 1000;
+        assertTrue(!seen[min]);
+        seen[min] = true;
+        assertEquals(3, ((IntField) t.getField(2)).getValue());
+        assertEquals(min, ((IntField) t.getField(3)).getValue());
+        assertEquals(min + 7000, ((IntField) t.getField(4)).getValue());
+        n++;
+      }
+      assertEquals(7000, n);
+      op.rewind();
+    }
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,192 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.Predicate.Op;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private TransactionId tid;
+	private File f;
+
+	@Before
+	public void setUp() throws Exception {
+		tid = new TransactionId();
+		f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		f.delete();
+	}
+
+	private BTreeFile open(BTreeFile bf) {
+		Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+		return bf;
+	}
+
+	/**
+	 * Unsorted input is sorted first, with runs spilled to disk, and every
+	 * tuple ends up in the tree in key order.
+	 */
+	@Test public void sortAndLoad() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 60000, null, tuples);
+		long budget = OrderBy.getMemoryBudget();
+		OrderBy.setMemoryBudget(1 << 16);
+		BTreeFile bf;
+		try {
+			bf = open(BTreeBulkLoader.sortAndLoad(new SeqScan(tid, hf.getId()), f, 0, 0.7));
+		} finally {
+			OrderBy.setMemoryBudget(budget);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		SystemTestUtil.matchTuples(bf, tid, tuples);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int prev = Integer.MIN_VALUE;
+		while(it.hasNext()) {
+			int key = ((IntField) it.next().getField(0)).getValue();
+			assertTrue(prev <= key);
+			prev = key;
+		}
+		it.close();
+	}
+
+	/**
+	 * Pages are filled to the fill factor, except the last two of a level,
+	 * which share the rest, so inserts fit without splitting.  At this fill
+	 * factor the last leaf is left under half full.
+	 */
+	@Test public void fillFactor() throws Exception {
+		int rows = 10000;
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 0.5);
+		for(int i = 0; i < rows; i++)
+			loader.add(BTreeUtility.getBTreeTuple(new int[] { i * 2, i }));
+		int pages = loader.finish();
+		BTreeFile bf = open(new BTreeFile(f, 0, Utility.getTupleDesc(2)));
+		assertEquals(pages, bf.numPages());
+
+		int perPage = BTreeUtility.getNumTuplesPerPage(2) / 2;
+		BTreeLeafPage first = bf.findLeafPage(tid, Permissions.READ_ONLY, null);
+		assertEquals(perPage, first.getNumTuples());
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		// the gaps take an insert each without growing the file
+		for(int i = 0; i < rows; i += perPage)
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] { i * 2 + 1, 0 }));
+		assertEquals(pages, bf.numPages());
+	}
+
+	/**
+	 * Enough pages for two levels of internal pages: the last two internal
+	 * pages below the root share their entries, and their children point
+	 * back at the page they ended up on.
+	 */
+	@Test public void threeLevels() throws Exception {
+		int rows = 70000;
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 0.5);
+		for(int i = 0; i < rows; i++)
+			loader.add(BTreeUtility.getBTreeTuple(new int[] { i, i }));
+		loader.finish();
+		BTreeFile bf = open(new BTreeFile(f, 0, Utility.getTupleDesc(2)));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(tid, new HashMap<PageId, Page>());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		BTreeEntry last = root.reverseIterator().next();
+		assertEquals(BTreePageId.INTERNAL, last.getRightChild().pgcateg());
+		BTreeInternalPage left = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, last.getLeftChild(), Permissions.READ_ONLY);
+		BTreeInternalPage right = (BTreeInternalPage) Database.getBufferPool().getPage(
+				tid, last.getRightChild(), Permissions.READ_ONLY);
+		assertTrue(right.getNumEntries() > 0);
+		assertTrue(left.getNumEntries() >= right.getNumEntries());
+		Iterator<BTreeEntry> it = right.iterator();
+		while(it.hasNext()) {
+			BTreePage child = (BTreePage) Database.getBufferPool().getPage(
+					tid, it.next().getLeftChild(), Permissions.READ_ONLY);
+			assertEquals(right.getId(), child.getParentId());
+		}
+
+		for(int key = 0; key < rows; key += 997) {
+			DbFileIterator search = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			search.open();
+			assertTrue(search.hasNext());
+			assertEquals(new IntField(key), search.next().getField(1));
+			search.close();
+		}
+	}
+
+	/**
+	 * Runs of one key longer than a page are found by an equality search.
+	 */
+	@Test public void duplicateKeys() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 1.0);
+		for(int k = 0; k < 20; k++)
+			for(int i = 0; i < 1000; i++)
+				loader.add(BTreeUtility.getBTreeTuple(new int[] { k, i }));
+		loader.finish();
+		BTreeFile bf = open(new BTreeFile(f, 0, Utility.getTupleDesc(2)));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(7)));
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			assertEquals(new IntField(7), it.next().getField(0));
+			count++;
+		}
+		it.close();
+		assertEquals(1000, count);
+	}
+
+	/**
+	 * No input makes an empty tree that takes inserts.
+	 */
+	@Test public void empty() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 1.0);
+		loader.finish();
+		BTreeFile bf = open(new BTreeFile(f, 0, Utility.getTupleDesc(2)));
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		assertFalse(it.hasNext());
+		it.close();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+	}
+
+	@Test(expected=DbException.class)
+	public void unsortedInput() throws Exception {
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 1.0);
+		loader.add(BTreeUtility.getBTreeTuple(2, 2));
+		loader.add(BTreeUtility.getBTreeTuple(1, 2));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void fillFactorOutOfRange() throws Exception {
+		new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 0.3);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
@@ -207,6 +207,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// set all the pointers
 		page.setParentId(parentId);
 		sibling.setParentId(parentId);
+		sibling.setRightSibling(pageId, key);
 		
 		int totalEntries = page.getNumEntries() + sibling.getNumEntries();
 		int entriesToSteal = totalEntries/2 - page.getNumEntries();
@@ -217,6 +218,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		dirtypages.put(parentId, parent);
 		empty.stealFromLeftInternalPage(tid, dirtypages, page, sibling, parent, entry);
 		
+		// does the high key of the left page follow the parent key?
+		assertEquals(parent.iterator().next().getKey(), sibling.getHighKey());
+		assertEquals(pageId, sibling.getRightSiblingId());
+		
 		// are all the entries still there?
 		assertEquals(totalEntries, page.getNumEntries() + sibling.getNumEntries());
 		
@@ -273,6 +278,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// set all the pointers
 		page.setParentId(parentId);
 		sibling.setParentId(parentId);
+		page.setRightSibling(siblingId, key);
 		
 		int totalEntries = page.getNumEntries() + sibling.getNumEntries();
 		int entriesToSteal = totalEntries/2 - page.getNumEntries();
@@ -283,6 +289,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		dirtypages.put(parentId, parent);
 		empty.stealFromRightInternalPage(tid, dirtypages, page, sibling, parent, entry);
 		
+		// does the high key of the left page follow the parent key?
+		assertEquals(parent.iterator().next().getKey(), page.getHighKey());
+		assertEquals(siblingId, page.getRightSiblingId());
+		
 		// are all the entries still there?
 		assertEquals(totalEntries, page.getNumEntries() + sibling.getNumEntries());
 		
@@ -344,6 +354,7 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		// set all the pointers
 		leftPage.setParentId(parentId);
 		rightPage.setParentId(parentId);
+		leftPage.setRightSibling(rightPageId, minKey);
 		
 		int totalEntries = leftPage.getNumEntries() + rightPage.getNumEntries();
 		
@@ -356,6 +367,10 @@ public class BTreeFileDeleteTest extends SimpleDbTestBase {
 		assertEquals(0, rightPage.getNumEntries());
 		assertEquals(numParentEntries - 1, parent.getNumEntries());
 		assertEquals(rightPageId.getPageNumber(), empty.getEmptyPageNo(tid, dirtypages));
+		
+		// has the left page taken over the right link of the right page?
+		assertNull(leftPage.getRightSiblingId());
+		assertNull(leftPage.getHighKey());
 
 		// are all the parent pointers set?
 		Iterator<BTreeEntry> it = leftPage.reverseIterator();
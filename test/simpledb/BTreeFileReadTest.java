@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.Predicate.Op;
 
+import java.io.File;
 import java.util.*;
 
 import org.junit.After;
@@ -62,6 +63,25 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertEquals(1, f.numPages());
 	}
 
+	/**
+	 * Unit test for BTreeFile.numPages() after reopening a file that was not
+	 * closed: the empty root leaf is all zeros, but still counted
+	 */
+	@Test
+	public void numPagesAfterReopen() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		Tuple t = BTreeUtility.getBTreeTuple(1, 2);
+		Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+		Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(1, empty.numPages());
+
+		BTreeFile reopened = new BTreeFile(emptyFile, 0, td);
+		assertEquals(1, reopened.numPages());
+	}
+
 	/**
 	 * Unit test for BTreeFile.readPage()
 	 */
@@ -201,6 +221,112 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * The descent to a leaf releases the locks on the root pointer and the
+	 * internal pages it passes, but keeps the ones tid already held.
+	 */
+	@Test public void indexIteratorLockCoupling() throws Exception {
+		BTreeFile twoLeafPageFile = BTreeUtility.createBTreeFile(2, 520,
+				null, null, 0);
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(5));
+		DbFileIterator it = twoLeafPageFile.indexIterator(tid, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		Set<PageId> locked = Database.getBufferPool().getLockManager().getLockedPages(tid);
+		assertEquals(1, locked.size());
+		for(PageId pid : locked)
+			assertEquals(BTreePageId.LEAF, ((BTreePageId) pid).pgcateg());
+		it.close();
+
+		// a lock taken before the descent stays held
+		TransactionId other = new TransactionId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(twoLeafPageFile.getId());
+		Database.getBufferPool().getPage(other, rootPtrId, Permissions.READ_ONLY);
+		it = twoLeafPageFile.indexIterator(other, ipred);
+		it.open();
+		assertTrue(it.hasNext());
+		assertTrue(Database.getBufferPool().holdsLock(other, rootPtrId));
+		it.close();
+		Database.getBufferPool().transactionComplete(other);
+	}
+
+	/**
+	 * Threads insert keys and look them up again while descents lock-couple
+	 * past each other's splits; aborted transactions are retried.  Every
+	 * committed key must be found exactly once, in key order.
+	 */
+	@Test public void concurrentInsertLookup() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		final BTreeFile bf = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		final int threads = 4, txns = 15, perTxn = 30;
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] ts = new Thread[threads];
+		for(int i = 0; i < threads; i++) {
+			final int thread = i;
+			ts[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < txns; j++) {
+							int first = (j * threads + thread) * perTxn;
+							while(!insertAndLookUp(bf, thread, first, perTxn)) {
+								// aborted, e.g. as a deadlock victim; retry
+							}
+						}
+					} catch(Throwable e) {
+						errors.add(e);
+					}
+				}
+			};
+			ts[i].start();
+		}
+		for(Thread t : ts)
+			t.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			assertEquals(count, ((IntField) t.getField(0)).getValue());
+			assertEquals(count / perTxn % threads, ((IntField) t.getField(1)).getValue());
+			count++;
+		}
+		it.close();
+		assertEquals(threads * txns * perTxn, count);
+	}
+
+	/**
+	 * In one transaction, insert keys first..first+n-1 and look each one up
+	 * through the index.
+	 * 
+	 * @return false if the transaction aborted
+	 */
+	private static boolean insertAndLookUp(BTreeFile bf, int thread, int first, int n)
+			throws Exception {
+		TransactionId t = new TransactionId();
+		try {
+			for(int k = first; k < first + n; k++) {
+				Database.getBufferPool().insertTuple(t, bf.getId(),
+						BTreeUtility.getBTreeTuple(new int[] {k, thread}));
+			}
+			for(int k = first; k < first + n; k++) {
+				DbFileIterator it = bf.indexIterator(t, new IndexPredicate(Op.EQUALS, new IntField(k)));
+				it.open();
+				assertTrue("key " + k + " not found", it.hasNext());
+				assertEquals(thread, ((IntField) it.next().getField(1)).getValue());
+				assertFalse(it.hasNext());
+				it.close();
+			}
+		} catch(TransactionAbortedException e) {
+			Database.getBufferPool().transactionComplete(t, false);
+			return false;
+		}
+		Database.getBufferPool().transactionComplete(t, true);
+		return true;
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -4,9 +4,12 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.util.Arrays;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -179,6 +182,47 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 		assertEquals(false, dirtier != null);
 	}
 
+	/**
+	 * Check that page has changed since before was taken, and that its
+	 * before image is still before.
+	 */
+	private static void assertBeforeImage(byte[] before, BTreeHeaderPage page) {
+		assertFalse(Arrays.equals(before, page.getPageData()));
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * Unit test for BTreeHeaderPage.getBeforeImage(): each mutator leaves
+	 * the image from before the first change since the last setBeforeImage()
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeHeaderPage page = new BTreeHeaderPage(pid, EXAMPLE_DATA);
+		byte[] before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+		page.markSlotUsed(0, true);
+		assertBeforeImage(before, page);
+		// a later change does not move the image
+		page.markSlotUsed(1, true);
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+		page.setPrevPageId(new BTreePageId(pid.getTableId(), 1, BTreePageId.HEADER));
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.setNextPageId(new BTreePageId(pid.getTableId(), 2, BTreePageId.HEADER));
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.init();
+		assertBeforeImage(before, page);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -13,8 +13,10 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -116,6 +118,50 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.setRightSibling()
+	 */
+	@Test public void setRightSibling() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertNull(page.getRightSiblingId());
+		assertNull(page.getHighKey());
+
+		BTreePageId id = new BTreePageId(pid.getTableId(), 7, BTreePageId.INTERNAL);
+		page.setRightSibling(id, new IntField(70000));
+		page = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(id, page.getRightSiblingId());
+		assertEquals(new IntField(70000), page.getHighKey());
+
+		page.setHighKey(new IntField(80000));
+		assertEquals(new IntField(80000), page.getHighKey());
+
+		page.setRightSibling(null, null);
+		page = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertNull(page.getRightSiblingId());
+		assertNull(page.getHighKey());
+
+		try {
+			page.setRightSibling(new BTreePageId(pid.getTableId(), 7, BTreePageId.LEAF), new IntField(70000));
+			throw new Exception("should not be able to link a leaf node; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+
+		try {
+			page.setRightSibling(id, null);
+			throw new Exception("should not be able to link a page without a high key; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+
+		try {
+			page.setHighKey(new IntField(70000));
+			throw new Exception("should not be able to set the high key of the right-most page; expected DbException");
+		} catch (DbException e) {
+			// explicitly ignored
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.iterator()
 	 */
@@ -166,12 +212,89 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() after deletions have
+	 * left empty slots between the entries: it must return the same entries
+	 * as iterator(), with the same children, in reverse
+	 */
+	@Test public void reverseIteratorSkipsEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (i++ % 3 == 1)
+				page.deleteKeyAndRightChild(e);
+		}
+
+		LinkedList<BTreeEntry> forward = new LinkedList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.addFirst(it.next());
+		it = page.reverseIterator();
+		for (BTreeEntry expected : forward) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * The child an iteration over the entries picks for f: the left child of
+	 * the first entry with a key greater than or equal to f, or the right child
+	 * of the last entry.
+	 */
+	private static BTreePageId scanForChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild()
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(scanForChild(page, null), page.findChild(null));
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int d = -1; d <= 1; d++) {
+				IntField f = new IntField(entry[1] + d);
+				assertEquals(scanForChild(page, f), page.findChild(f));
+			}
+		}
+		assertEquals(scanForChild(page, new IntField(0)), page.findChild(new IntField(0)));
+		assertEquals(scanForChild(page, new IntField(70000)), page.findChild(new IntField(70000)));
+
+		// the key array follows changes to the page
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			if (((IntField) e.getKey()).getValue() == 33549) {
+				page.deleteKeyAndRightChild(e);
+				break;
+			}
+		}
+		for (int[] entry : EXAMPLE_VALUES) {
+			IntField f = new IntField(entry[1]);
+			assertEquals(scanForChild(page, f), page.findChild(f));
+		}
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
 	@Test public void getNumEmptySlots() throws Exception {
 		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
-		assertEquals(483, page.getNumEmptySlots());
+		assertEquals(482, page.getNumEmptySlots());
 	}
 
 	/**
@@ -238,7 +361,7 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		int free = page.getNumEmptySlots();
 
 		// NOTE(ghuo): this nested loop existence check is slow, but it
-		// shouldn't make a difference for n = 503 slots.
+		// shouldn't make a difference for n = 502 slots.
 
 		for (int i = 0; i < free; ++i) {
 			BTreeEntry addition = BTreeUtility.getBTreeEntry(i+21, 70000+i, pid.getTableId());
@@ -313,6 +436,54 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Check that page has changed since before was taken, and that its
+	 * before image is still before.
+	 */
+	private static void assertBeforeImage(byte[] before, BTreeInternalPage page) {
+		assertFalse(Arrays.equals(before, page.getPageData()));
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.getBeforeImage(): each mutator leaves
+	 * the image from before the first change since the last setBeforeImage()
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		byte[] before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+		page.insertEntry(BTreeUtility.getBTreeEntry(21, 70000, pid.getTableId()));
+		assertBeforeImage(before, page);
+		// a later change does not move the image
+		page.deleteKeyAndRightChild(page.iterator().next());
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+		BTreeEntry e = page.iterator().next();
+		e.setRightChild(new BTreePageId(pid.getTableId(), 99, BTreePageId.LEAF));
+		page.updateEntry(e);
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.deleteKeyAndLeftChild(page.iterator().next());
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.deleteKeyAndRightChild(page.reverseIterator().next());
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.setParentId(new BTreePageId(pid.getTableId(), 3, BTreePageId.INTERNAL));
+		assertBeforeImage(before, page);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
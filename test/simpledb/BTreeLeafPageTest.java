@@ -12,6 +12,7 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -185,6 +186,32 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void testIteratorFrom() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 22064, 1 }));
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int d = -1; d <= 1; d++) {
+				IntField f = new IntField(tuple[0] + d);
+				ArrayList<Tuple> expected = new ArrayList<Tuple>();
+				Iterator<Tuple> it = page.iterator();
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+						expected.add(t);
+				}
+				ArrayList<Tuple> actual = new ArrayList<Tuple>();
+				it = page.iterator(f);
+				while (it.hasNext())
+					actual.add(it.next());
+				assertEquals(expected, actual);
+			}
+		}
+		assertFalse(page.iterator(new IntField(70000)).hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
@@ -336,6 +363,52 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Check that page has changed since before was taken, and that its
+	 * before image is still before.
+	 */
+	private static void assertBeforeImage(byte[] before, BTreeLeafPage page) {
+		assertFalse(Arrays.equals(before, page.getPageData()));
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.getBeforeImage(): each mutator leaves the
+	 * image from before the first change since the last setBeforeImage()
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		byte[] before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+		page.insertTuple(BTreeUtility.getBTreeTuple(7, 2));
+		assertBeforeImage(before, page);
+		// a later change does not move the image
+		page.deleteTuple(page.iterator().next());
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		assertArrayEquals(before, page.getBeforeImage().getPageData());
+		page.deleteTuple(page.reverseIterator().next());
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.setLeftSiblingId(new BTreePageId(pid.getTableId(), 1, BTreePageId.LEAF));
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 2, BTreePageId.LEAF));
+		assertBeforeImage(before, page);
+
+		page.setBeforeImage();
+		before = page.getPageData();
+		page.setParentId(new BTreePageId(pid.getTableId(), 3, BTreePageId.INTERNAL));
+		assertBeforeImage(before, page);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -4,7 +4,8 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
-//import java.io.File;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import org.junit.Before;
@@ -115,6 +116,34 @@ public class BTreeRootPtrPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeRootPtrPage.getFormatVersion()
+	 */
+	@Test public void getFormatVersion() throws Exception {
+		BTreeRootPtrPage page = new BTreeRootPtrPage(pid, EXAMPLE_DATA);
+		assertEquals(BTreeRootPtrPage.FORMAT_VERSION, page.getFormatVersion());
+		page = new BTreeRootPtrPage(pid, BTreeRootPtrPage.createEmptyPageData());
+		assertEquals(BTreeRootPtrPage.FORMAT_VERSION, page.getFormatVersion());
+	}
+
+	/**
+	 * A BTreeFile written with another version of the file format is rejected
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectOtherFormatVersion() throws Exception {
+		File f = File.createTempFile("oldformat", ".dat");
+		f.deleteOnExit();
+		byte[] data = BTreeFileEncoder.convertToRootPtrPage(1, BTreePageId.LEAF, 0);
+		data[data.length - 1] = (byte) (BTreeRootPtrPage.FORMAT_VERSION - 1);
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(data);
+		fos.write(BTreeLeafPage.createEmptyPageData());
+		fos.close();
+
+		BTreeFile bf = BTreeUtility.openBTreeFile(2, f, 0);
+		bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+	}
+
 	/**
 	 * Unit test for BTreeRootPtrPage.isDirty()
 	 */
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolReadTest extends SimpleDbTestBase {
+    private TransactionId tid;
+    private CountingHeapFile file;
+
+    // class to record the pages the BufferPool reads from disk
+    class CountingHeapFile extends HeapFile {
+
+        private final ArrayList<Integer> reads = new ArrayList<Integer>();
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.add(pid.getPageNumber());
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("clock", ".dat");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        for (int i = 0; i < 5; ++i)
+            out.write(HeapPage.createEmptyPageData());
+        out.close();
+        file = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    private Page get(int pgNo) throws Exception {
+        return Database.getBufferPool().getPage(tid,
+                new HeapPageId(file.getId(), pgNo), Permissions.READ_WRITE);
+    }
+
+    /**
+     * Unit test for BufferPool eviction: a hit only sets the reference bit,
+     * and the clock hand gives every referenced page a second chance before
+     * evicting the first unreferenced page it passes.
+     */
+    @Test public void clockEvictionOrder() throws Exception {
+        Database.resetBufferPool(3);
+        get(0); get(1); get(2);
+        // the hand clears all three bits and comes back around to page 0
+        get(3);
+        assertEquals(Arrays.asList(0, 1, 2, 3), file.reads);
+        // page 1 is referenced again, so the hand passes it and takes page 2
+        get(1);
+        get(4);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), file.reads);
+        // the hand clears page 3's bit and takes page 1, whose bit the last
+        // sweep cleared, although page 1 was used after page 3 (LRU would
+        // have taken page 3)
+        get(0);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 0), file.reads);
+        get(3);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 0), file.reads);
+        get(1);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 0, 1), file.reads);
+    }
+
+    /**
+     * Unit test for BufferPool eviction: the clock hand skips dirty pages,
+     * and a pool full of dirty pages cannot take another one.
+     */
+    @Test public void clockSkipsDirtyPages() throws Exception {
+        Database.resetBufferPool(2);
+        get(0).markDirty(true, tid);
+        get(1);
+        get(2);
+        get(3);
+        get(0);
+        assertEquals(Arrays.asList(0, 1, 2, 3), file.reads);
+
+        get(3).markDirty(true, tid);
+        try {
+            get(4);
+            fail("expected DbException: every page in the pool is dirty");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolReadTest.class);
+    }
+}
@@ -133,6 +133,44 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete(): commit and abort visit
+     * the pages the transaction dirtied, including ones it no longer holds a
+     * lock on, and leave other transactions' dirty pages alone.
+     */
+    @Test public void transactionCompleteOwnPages() throws Exception {
+        File f = File.createTempFile("other", ".dat");
+        f.deleteOnExit();
+        HeapFile other = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        TransactionId tid2 = new TransactionId();
+
+        Tuple t1 = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t1);
+        PageId pid1 = t1.getRecordId().getPageId();
+        Tuple t2 = Utility.getHeapTuple(2, 2);
+        Database.getBufferPool().insertTuple(tid2, other.getId(), t2);
+        PageId pid2 = t2.getRecordId().getPageId();
+
+        // only the dirty-page set still knows tid wrote pid1
+        Database.getBufferPool().releasePage(tid, pid1);
+        Database.getBufferPool().transactionComplete(tid, true);
+        HeapPage p1 = (HeapPage) Database.getBufferPool().getPage(tid2, pid1, Permissions.READ_ONLY);
+        assertNull(p1.isDirty());
+        assertEquals(503, ((HeapPage) empty.readPage(pid1)).getNumEmptySlots());
+        HeapPage p2 = (HeapPage) Database.getBufferPool().getPage(tid2, pid2, Permissions.READ_ONLY);
+        assertEquals(tid2, p2.isDirty());
+        assertEquals(504, ((HeapPage) other.readPage(pid2)).getNumEmptySlots());
+
+        Database.getBufferPool().transactionComplete(tid2, false);
+        TransactionId tid3 = new TransactionId();
+        p2 = (HeapPage) Database.getBufferPool().getPage(tid3, pid2, Permissions.READ_ONLY);
+        assertNull(p2.isDirty());
+        assertEquals(504, p2.getNumEmptySlots());
+        p1 = (HeapPage) Database.getBufferPool().getPage(tid3, pid1, Permissions.READ_ONLY);
+        assertEquals(503, p1.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid3);
+    }
+
     /**
      * JUnit suite target
      */
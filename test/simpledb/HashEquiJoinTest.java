@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  OpIterator scan2;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    5, 7,
+                    7, 8 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 1, 2, 3,
+                    2, 3, 4,
+                    3, 4, 5,
+                    4, 5, 6,
+                    5, 6, 7,
+                    5, 0, 0 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7,
+                    5, 7, 5, 6, 7,
+                    5, 6, 5, 0, 0,
+                    5, 7, 5, 0, 0 });
+  }
+
+  @After public void resetBudget() {
+    HashEquiJoin.setMemoryBudget(HashEquiJoin.DEFAULT_MEMORY_BUDGET);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() with both inputs in memory
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    assertFalse(op.isSpilled());
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when the build side is over budget
+   * and both inputs are partitioned to disk, including rewind()
+   */
+  @Test public void eqJoinSpilled() throws Exception {
+    // room for a single build tuple
+    HashEquiJoin.setMemoryBudget(1);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    assertTrue(op.isSpilled());
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.close();
+    assertFalse(op.isSpilled());
+  }
+
+  /**
+   * Unit test for the planner choosing a hash join for equality joins
+   */
+  @Test public void plannedForEquality() throws Exception {
+    LogicalJoinNode eq = new LogicalJoinNode("t1", "t2", "a", "b", Predicate.Op.EQUALS);
+    LogicalJoinNode gt = new LogicalJoinNode("t1", "t2", "a", "b", Predicate.Op.GREATER_THAN);
+    TupleDesc td1 = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { "t1.a" });
+    TupleDesc td2 = new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { "t2.b" });
+    OpIterator left = new TupleIterator(td1, new ArrayList<Tuple>());
+    OpIterator right = new TupleIterator(td2, new ArrayList<Tuple>());
+    assertEquals(HashEquiJoin.class, JoinOptimizer.instantiateJoin(eq, left, right).getClass());
+    assertEquals(Join.class, JoinOptimizer.instantiateJoin(gt, left, right).getClass());
+  }
+
+  /**
+   * Unit test for the spill partitioning: keys that agree in their low bits,
+   * and so share buckets of the in-memory map, still spread over partitions
+   */
+  @Test public void partitionsUseHighHashBits() throws Exception {
+    boolean[] used = new boolean[HashEquiJoin.PARTITIONS];
+    int n = 0;
+    for (int i = 0; i < 1024; i++) {
+      int p = HashEquiJoin.partitionOf(new IntField(i << 6));
+      if (!used[p]) {
+        used[p] = true;
+        n++;
+      }
+    }
+    assertTrue("keys went to only " + n + " partitions", n >= HashEquiJoin.PARTITIONS / 2);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
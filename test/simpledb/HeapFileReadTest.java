@@ -77,6 +77,112 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory-mapped HeapFile, including
+     * a page appended after the file was first mapped.
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMapped());
+
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(hf.readPage(pid).getPageData(), page.getPageData()));
+
+        HeapPage second = new HeapPage(new HeapPageId(mapped.getId(), 1),
+                HeapPage.createEmptyPageData());
+        second.insertTuple(Utility.getHeapTuple(7, 2));
+        mapped.writePage(second);
+        page = (HeapPage) mapped.readPage(second.getId());
+        assertEquals(503, page.getNumEmptySlots());
+        assertTrue(page.isSlotUsed(0));
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() from many threads at once: every
+     * reader gets the page it asked for.
+     */
+    @Test
+    public void readPageConcurrent() throws Exception {
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        final int pages = big.numPages();
+        final byte[][] expected = new byte[pages][];
+        for (int i = 0; i < pages; i++)
+            expected[i] = big.readPage(new HeapPageId(big.getId(), i)).getPageData();
+
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[8];
+        for (int r = 0; r < readers.length; r++) {
+            final int seed = r;
+            readers[r] = new Thread() {
+                public void run() {
+                    Random rand = new Random(seed);
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            int pgno = rand.nextInt(pages);
+                            byte[] data = big.readPage(new HeapPageId(big.getId(), pgno)).getPageData();
+                            assertTrue(Arrays.equals(expected[pgno], data));
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() after a read was interrupted, which
+     * closes the file's channel: the next read opens it again.
+     */
+    @Test
+    public void readPageAfterInterrupt() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] expected = hf.readPage(pid).getPageData();
+        Thread.currentThread().interrupt();
+        try {
+            hf.readPage(pid);
+            fail("expected the interrupted read to fail");
+        } catch (IllegalArgumentException e) {
+            // explicitly ignored
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(Arrays.equals(expected, hf.readPage(pid).getPageData()));
+    }
+
+    /**
+     * Tuples read from a memory-mapped page keep their values when the page
+     * is written back to the file afterwards.
+     */
+    @Test
+    public void mappedTuplesOutliveWriteBack() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        // not read yet, so not decoded yet
+        Tuple t = page.iterator().next();
+
+        HeapPage changed = new HeapPage(pid, mapped.readPage(pid).getPageData());
+        Tuple old = changed.iterator().next();
+        int v0 = ((IntField) old.getField(0)).getValue();
+        int v1 = ((IntField) old.getField(1)).getValue();
+        changed.deleteTuple(old);
+        changed.insertTuple(Utility.getHeapTuple(new int[] { v0 + 1, v1 + 1 }));
+        mapped.writePage(changed);
+
+        assertEquals(v0, ((IntField) t.getField(0)).getValue());
+        assertEquals(v1, ((IntField) t.getField(1)).getValue());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -44,6 +44,95 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.addTuple() reusing a slot freed on an earlier,
+     * otherwise full page
+     */
+    @Test public void addTupleReusesFreedSlot() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 1008; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 0)
+                first = t;
+        }
+        assertEquals(2, empty.numPages());
+
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, empty.numPages());
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for keeping the free-space map in a side file across
+     * HeapFile.close()
+     */
+    @Test public void freeSpaceMapFile() throws Exception {
+        java.io.File fsm = java.io.File.createTempFile("table", ".fsm");
+        fsm.delete();
+        fsm.deleteOnExit();
+        empty.setFreeSpaceMapFile(fsm);
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+
+        empty.close();
+        assertTrue(fsm.exists());
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertFalse(fsm.exists());
+        assertEquals(2, empty.numPages());
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for growing the file an extent at a time: only allocated
+     * pages are counted, and closing gives the rest of the extent back
+     */
+    @Test public void addTupleGrowsByExtent() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        // the empty file starts out with one page; page 1 opened an extent
+        assertEquals(pageSize + ExtentAllocator.getExtentBytes(), empty.getFile().length());
+
+        empty.close();
+        assertEquals(2 * pageSize, empty.getFile().length());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for reopening a file that was never closed: the zeroed tail
+     * of its last extent is not counted as pages
+     */
+    @Test public void reopenSkipsUntrimmedExtent() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(pageSize + ExtentAllocator.getExtentBytes(), empty.getFile().length());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.numPages());
+        reopened.close();
+        assertEquals(2 * pageSize, empty.getFile().length());
+    }
+
+    /**
+     * Unit test for Database.reset() closing the old catalog's files, which
+     * trims them
+     */
+    @Test public void resetClosesFiles() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.reset();
+        assertEquals(2 * BufferPool.getPageSize(), empty.getFile().length());
+    }
+
     /**
      * JUnit suite target
      */
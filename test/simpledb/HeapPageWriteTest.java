@@ -1,9 +1,13 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +130,109 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.deleteTuple() and insertTuple(): a tuple handed
+     * out before its slot is reused keeps its values, although it is decoded
+     * lazily, and the array the page was built from is never written
+     */
+    @Test public void handedOutTupleSurvivesSlotReuse() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, data);
+        // the page writes its own copy of data from now on
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        // not read yet, so not decoded yet
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        Tuple addition = Utility.getHeapTuple(new int[] { -1, -1 });
+        page.insertTuple(addition);
+        assertEquals(t.getRecordId(), addition.getRecordId());
+
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) t.getField(0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1], ((IntField) t.getField(1)).getValue());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, data);
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(): tuples inserted during a scan are
+     * not returned by it
+     */
+    @Test public void iteratorSnapshotsUsedSlots() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+
+        int count = 1;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[count][0], ((IntField) t.getField(0)).getValue());
+            count++;
+        }
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES.length, count);
+    }
+
+    /**
+     * Check that page has changed since before was taken, and that its
+     * before image is still before.
+     */
+    private static void assertBeforeImage(byte[] before, HeapPage page) {
+        assertFalse(Arrays.equals(before, page.getPageData()));
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage(): each mutator leaves the image
+     * from before the first change since the last setBeforeImage()
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+        Tuple t = Utility.getHeapTuple(7, 2);
+        page.insertTuple(t);
+        assertBeforeImage(before, page);
+        // a later change does not move the image
+        page.deleteTuple(page.iterator().next());
+        assertBeforeImage(before, page);
+
+        page.setBeforeImage();
+        before = page.getPageData();
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        page.deleteTuple(t);
+        assertBeforeImage(before, page);
+
+        page.setBeforeImage();
+        before = page.getPageData();
+        int slot = t.getRecordId().getTupleNumber();
+        page.putSlot(slot, TupleLogRecord.serialize(t));
+        assertBeforeImage(before, page);
+
+        page.setBeforeImage();
+        before = page.getPageData();
+        page.clearSlot(slot);
+        assertBeforeImage(before, page);
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage() on a page viewing a buffer
+     * without a backing array, as a memory-mapped file gives
+     */
+    @Test public void beforeImageDirectBuffer() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(HeapPageReadTest.EXAMPLE_DATA.length);
+        buf.put(HeapPageReadTest.EXAMPLE_DATA).flip();
+        HeapPage page = new HeapPage(pid, buf);
+        byte[] before = page.getPageData();
+
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertBeforeImage(before, page);
+        // the buffer is left alone, and overwriting it, as a write-back
+        // through the mapping would, does not touch the image
+        assertEquals(HeapPageReadTest.EXAMPLE_DATA[0], buf.get(0));
+        buf.put(0, (byte) ~buf.get(0));
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
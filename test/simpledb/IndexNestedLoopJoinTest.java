@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  OpIterator scan1;
+  BTreeFile inner;
+  File f;
+  TransactionId tid;
+  OpIterator eqJoin;
+
+  /**
+   * Initialize each unit test: the same tuples as HashEquiJoinTest, with the
+   * inner ones in a B+ tree keyed on their first field
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2,
+                    3, 4,
+                    5, 6,
+                    5, 7,
+                    7, 8 });
+    int[][] tuples2 = { { 1, 2, 3 },
+                        { 2, 3, 4 },
+                        { 3, 4, 5 },
+                        { 4, 5, 6 },
+                        { 5, 6, 7 },
+                        { 5, 0, 0 } };
+    f = File.createTempFile("inlj", ".dat");
+    f.deleteOnExit();
+    BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(width2, "c"), 0, 1.0);
+    for (int[] t : tuples2)
+      loader.add(BTreeUtility.getBTreeTuple(t));
+    loader.finish();
+    inner = new BTreeFile(f, 0, Utility.getTupleDesc(width2, "c"));
+    Database.getCatalog().addTable(inner, SystemTestUtil.getUUID());
+    tid = new TransactionId();
+
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7,
+                    5, 7, 5, 6, 7,
+                    5, 6, 5, 0, 0,
+                    5, 7, 5, 0, 0 });
+  }
+
+  @After public void tearDown() throws Exception {
+    IndexNestedLoopJoin.setBatchSize(IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+    Database.getBufferPool().transactionComplete(tid);
+    f.delete();
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() looking up every outer tuple
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, new SeqScan(tid, inner.getId()));
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    assertEquals(6, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with outer batches smaller than the
+   * runs of equal keys, including rewind()
+   */
+  @Test public void smallBatches() throws Exception {
+    IndexNestedLoopJoin.setBatchSize(1);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, new SeqScan(tid, inner.getId()));
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    assertEquals(6, count(op));
+    op.close();
+  }
+
+  /**
+   * The index predicate and filters of the inner plan apply to the tuples
+   * the lookups find
+   */
+  @Test public void innerFilters() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator innerPlan = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0)),
+        new BTreeScan(tid, inner.getId(), "t",
+            new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(3))));
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, innerPlan);
+    op.open();
+    OpIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] { 3, 4, 3, 4, 5,
+                    5, 6, 5, 6, 7,
+                    5, 7, 5, 6, 7 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    assertEquals(3, count(op));
+    op.close();
+  }
+
+  /**
+   * Only equalities with the key of a scanned B+ tree can be looked up
+   */
+  @Test public void canLookUp() throws Exception {
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    assertTrue(IndexNestedLoopJoin.canLookUp(eq, new SeqScan(tid, inner.getId())));
+    assertFalse(IndexNestedLoopJoin.canLookUp(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+        new SeqScan(tid, inner.getId())));
+    assertFalse(IndexNestedLoopJoin.canLookUp(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, inner.getId())));
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(width2, 10, null, null);
+    assertFalse(IndexNestedLoopJoin.canLookUp(eq, new SeqScan(tid, hf.getId())));
+    assertFalse(IndexNestedLoopJoin.canLookUp(eq, scan1));
+  }
+
+  /**
+   * Unit test for the planner instantiating the join the JoinOptimizer chose
+   */
+  @Test public void planned() throws Exception {
+    LogicalJoinNode lj = new LogicalJoinNode("s", "t", "c0", "c0", Predicate.Op.EQUALS);
+    OpIterator left = new TupleIterator(Utility.getTupleDesc(width1, "s.c"), new ArrayList<Tuple>());
+    OpIterator right = new SeqScan(tid, inner.getId(), "t");
+    assertEquals(HashEquiJoin.class, JoinOptimizer.instantiateJoin(lj, left, right).getClass());
+    lj.indexLookup = true;
+    assertEquals(IndexNestedLoopJoin.class, JoinOptimizer.instantiateJoin(lj, left, right).getClass());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
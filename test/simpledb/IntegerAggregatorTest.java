@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.util.NoSuchElementException;
 
@@ -178,6 +179,57 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test that an avg whose sum does not fit in an int is still right, and
+   * that a sum that does not fit is an error rather than a wrapped value
+   */
+  @Test public void mergeLargeValues() throws Exception {
+    IntegerAggregator avg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.AVG);
+    IntegerAggregator sum = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.SUM);
+    for (int i = 0; i < 3; i++) {
+      avg.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { Integer.MAX_VALUE - i }));
+      sum.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { Integer.MAX_VALUE - i }));
+    }
+    OpIterator it = avg.iterator();
+    it.open();
+    assertEquals(Integer.MAX_VALUE - 1, ((IntField) it.next().getField(0)).getValue());
+
+    it = sum.iterator();
+    it.open();
+    try {
+      it.next();
+      fail("sum past Integer.MAX_VALUE should not wrap");
+    } catch (ArithmeticException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test many groups, with int and with string group-by values
+   */
+  @Test public void mergeManyGroups() throws Exception {
+    IntegerAggregator ints = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    TupleDesc std = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    IntegerAggregator strings = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.SUM);
+    for (int i = 0; i < 30000; i++) {
+      ints.mergeTupleIntoGroup(Utility.getHeapTuple(new int[] { (i % 10000) * 65536, i }));
+      Tuple t = new Tuple(std);
+      t.setField(0, new StringField("g" + (i % 10000), Type.STRING_LEN));
+      t.setField(1, new IntField(1));
+      strings.mergeTupleIntoGroup(t);
+    }
+    for (IntegerAggregator agg : new IntegerAggregator[] { ints, strings }) {
+      OpIterator it = agg.iterator();
+      it.open();
+      int groups = 0;
+      while (it.hasNext()) {
+        assertEquals(3, ((IntField) it.next().getField(1)).getValue());
+        groups++;
+      }
+      assertEquals(10000, groups);
+    }
+  }
+
   /**
    * JUnit suite target
    */
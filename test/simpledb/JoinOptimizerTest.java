@@ -621,4 +621,36 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * The hash join cost depends on which side is built: building the
+     * smaller side is cheaper, and a build side over HashEquiJoin's memory
+     * budget adds the partition I/O of both sides
+     */
+    @Test
+    public void hashJoinBuildSideCost() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"),
+                new Vector<LogicalJoinNode>());
+        LogicalJoinNode small = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        LogicalJoinNode big = small.swapInnerOuter();
+        double smallBuild = jo.estimateJoinCost(small, 1000, 10000, 5000, 50000);
+        double bigBuild = jo.estimateJoinCost(big, 10000, 1000, 50000, 5000);
+        Assert.assertTrue(smallBuild < bigBuild);
+
+        long budget = HashEquiJoin.getMemoryBudget();
+        try {
+            HashEquiJoin.setMemoryBudget(1 << 20);
+            double spilled = jo.estimateJoinCost(small, 100000, 10000, 5000, 50000);
+            HashEquiJoin.setMemoryBudget(1L << 40);
+            double inMemory = jo.estimateJoinCost(small, 100000, 10000, 5000, 50000);
+            Assert.assertTrue(spilled > inMemory);
+        } finally {
+            HashEquiJoin.setMemoryBudget(budget);
+        }
+    }
 }
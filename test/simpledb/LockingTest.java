@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,40 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A read lock is not granted while a write lock request waits on the page,
+   * except to a transaction that already holds a lock there.
+   */
+  @Test public void readersQueueBehindWriter() throws Exception {
+    TransactionId tid3 = new TransactionId();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired());
+
+    // tid1 holds a read lock already; making it wait would deadlock
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid3, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid1);
+    writer.join(TIMEOUT * 10);
+    assertTrue(writer.acquired());
+    Thread.sleep(TIMEOUT);
+    assertFalse(reader.acquired());
+
+    bp.transactionComplete(tid2);
+    reader.join(TIMEOUT * 10);
+    assertTrue(reader.acquired());
+    assertNull(writer.getError());
+    assertNull(reader.getError());
+    bp.transactionComplete(tid3);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,170 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+	private static final int ROWS = 20000;
+
+	private TransactionId tid;
+	private File f;
+
+	/**
+	 * A B+ tree table of ROWS rows (i, i % 100) keyed on its first column,
+	 * with fields c0 and c1.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		f = File.createTempFile("indexed", ".dat");
+		f.deleteOnExit();
+		BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2, "c"), 0, 1.0);
+		for(int i = 0; i < ROWS; i++)
+			loader.add(BTreeUtility.getBTreeTuple(new int[] { i, i % 100 }));
+		loader.finish();
+		BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2, "c"));
+		Database.getCatalog().addTable(bf, "indexed");
+		TableStats.setTableStats("indexed", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		f.delete();
+	}
+
+	private OpIterator plan(String where) throws Exception {
+		return new Parser().generateLogicalPlan(tid, "SELECT * FROM indexed t WHERE " + where + ";")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+	}
+
+	/** The operators on the path from the plan's root down to its scan. */
+	private static String shape(OpIterator plan) {
+		StringBuilder sb = new StringBuilder();
+		while(plan instanceof Operator) {
+			if(!(plan instanceof Project))
+				sb.append(plan.getClass().getSimpleName()).append(' ');
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return sb.append(plan.getClass().getSimpleName()).toString();
+	}
+
+	private static int count(OpIterator plan) throws Exception {
+		int n = 0;
+		plan.open();
+		while(plan.hasNext()) {
+			plan.next();
+			n++;
+		}
+		plan.close();
+		return n;
+	}
+
+	/**
+	 * A SeqScan and a BTreeScan of the same table name its fields alike.
+	 */
+	@Test public void scansNameFieldsAlike() throws Exception {
+		int id = Database.getCatalog().getTableId("indexed");
+		TupleDesc seq = new SeqScan(tid, id, "t").getTupleDesc();
+		TupleDesc index = new BTreeScan(tid, id, "t", null).getTupleDesc();
+		for(int i = 0; i < seq.numFields(); i++) {
+			assertEquals("t.c" + i, seq.getFieldName(i));
+			assertEquals(seq.getFieldName(i), index.getFieldName(i));
+		}
+	}
+
+	/**
+	 * An equality on the key is answered by the index alone.
+	 */
+	@Test public void keyEquality() throws Exception {
+		OpIterator plan = plan("t.c0 = 777");
+		assertEquals("BTreeScan", shape(plan));
+		assertEquals(1, count(plan));
+	}
+
+	/**
+	 * Of several filters, the cheapest range on the key goes to the index
+	 * and the others are applied on top of it.
+	 */
+	@Test public void keyRange() throws Exception {
+		OpIterator plan = plan("t.c0 >= 100 AND t.c0 < 300 AND t.c1 = 5");
+		assertEquals("Filter Filter BTreeScan", shape(plan));
+		assertEquals(2, count(plan));
+	}
+
+	/**
+	 * A range covering most of the table is cheaper to read with a full scan.
+	 */
+	@Test public void unselectiveRange() throws Exception {
+		OpIterator plan = plan("t.c0 > 10");
+		assertEquals("Filter SeqScan", shape(plan));
+		assertEquals(ROWS - 11, count(plan));
+	}
+
+	/**
+	 * Filters on other fields, or that the index cannot search on, leave
+	 * the table to a full scan.
+	 */
+	@Test public void noKeyRange() throws Exception {
+		assertEquals("Filter SeqScan", shape(plan("t.c1 = 5")));
+		OpIterator plan = plan("t.c0 <> 5");
+		assertEquals("Filter SeqScan", shape(plan));
+		assertEquals(ROWS - 1, count(plan));
+	}
+
+	/** Whether plan has an operator of class c. */
+	private static boolean uses(OpIterator plan, Class<?> c) {
+		if(c.isInstance(plan))
+			return true;
+		if(plan instanceof Operator)
+			for(OpIterator child : ((Operator) plan).getChildren())
+				if(uses(child, c))
+					return true;
+		return false;
+	}
+
+	private OpIterator join(String outer, int rows) throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, ROWS, null, null, "c");
+		Database.getCatalog().addTable(hf, outer);
+		TableStats.setTableStats(outer, new TableStats(hf.getId(), TableStats.IOCOSTPERPAGE));
+		return new Parser().generateLogicalPlan(tid, "SELECT * FROM " + outer + " o, indexed t WHERE o.c0 = t.c0;")
+				.physicalPlan(tid, TableStats.getStatsMap(), false);
+	}
+
+	/**
+	 * A few tuples joined on the key of the B+ tree table look it up in the
+	 * index instead of reading it.
+	 */
+	@Test public void indexJoin() throws Exception {
+		OpIterator plan = join("few", 10);
+		assertTrue(uses(plan, IndexNestedLoopJoin.class));
+		assertEquals(10, count(plan));
+	}
+
+	/**
+	 * As many tuples as the table has are cheaper to hash join with it.
+	 */
+	@Test public void hashJoin() throws Exception {
+		OpIterator plan = join("many", ROWS);
+		assertTrue(uses(plan, HashEquiJoin.class));
+		assertFalse(uses(plan, IndexNestedLoopJoin.class));
+		assertEquals(ROWS, count(plan));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(LogicalPlanTest.class);
+	}
+}
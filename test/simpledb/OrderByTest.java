@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan = TestUtil.createTupleList(2,
+        new int[] { 2, 1,
+                    1, 5,
+                    3, 0,
+                    1, 7,
+                    2, 9 });
+  }
+
+  @After public void resetBudget() {
+    OrderBy.setMemoryBudget(OrderBy.DEFAULT_MEMORY_BUDGET);
+  }
+
+  /**
+   * Unit test for OrderBy on one field, descending
+   */
+  @Test public void singleField() throws Exception {
+    OrderBy op = new OrderBy(0, false, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 3, 0,
+                    2, 1,
+                    2, 9,
+                    1, 5,
+                    1, 7 });
+    op.open();
+    assertFalse(op.isSpilled());
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Unit test for OrderBy on two fields, the second one breaking ties
+   */
+  @Test public void multiField() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 7,
+                    1, 5,
+                    2, 9,
+                    2, 1,
+                    3, 0 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for OrderBy writing sorted runs and merging them, with more
+   * runs than a single merge takes, including rewind()
+   */
+  @Test public void spilled() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    // ten tuples per run, two runs per merge
+    OrderBy.setMemoryBudget(10 * Tuple.heapSize(td));
+    Random r = new Random(42);
+    ArrayList<Tuple> tups = new ArrayList<Tuple>();
+    int[] counts = new int[50];
+    for (int i = 0; i < 1000; i++) {
+      int k = r.nextInt(counts.length);
+      counts[k]++;
+      tups.add(Utility.getHeapTuple(new int[] { k, i }));
+    }
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, true },
+        new TupleIterator(td, tups));
+    op.open();
+    assertTrue(op.isSpilled());
+    for (int pass = 0; pass < 2; pass++) {
+      int[] seen = new int[counts.length];
+      Tuple prev = null;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int k = ((IntField) t.getField(0)).getValue();
+        seen[k]++;
+        if (prev != null) {
+          int pk = ((IntField) prev.getField(0)).getValue();
+          assertTrue(pk > k || (pk == k
+              && ((IntField) prev.getField(1)).getValue() < ((IntField) t.getField(1)).getValue()));
+        }
+        prev = t;
+      }
+      for (int k = 0; k < counts.length; k++)
+        assertEquals(counts[k], seen[k]);
+      op.rewind();
+    }
+    op.close();
+    assertFalse(op.isSpilled());
+  }
+
+  /**
+   * Unit test for OrderBy buffering tuples read from heap pages: they are
+   * decoded, so they do not keep their pages alive
+   */
+  @Test public void buffersMaterializedTuples() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+    TransactionId tid = new TransactionId();
+    OrderBy op = new OrderBy(1, true, new SeqScan(tid, hf.getId()));
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      assertTrue(op.next().isMaterialized());
+      n++;
+    }
+    assertEquals(1000, n);
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -86,6 +86,27 @@ public class TableStatsTest extends SimpleDbTestBase {
 		
 	}
 	
+	/**
+	 * Verify that an index scan of a B+ tree table costs less than a full
+	 * scan for a small range, grows with the range, and costs more than the
+	 * full scan for all of it; a HeapFile has no index to scan.
+	 */
+	@Test public void estimateIndexScanCostTest() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+		Assert.assertEquals(0, s.indexedField());
+		Assert.assertTrue(s.estimateIndexScanCost(0.0) > 0);
+		Assert.assertTrue(s.estimateIndexScanCost(0.0) < s.estimateIndexScanCost(0.1));
+		Assert.assertTrue(s.estimateIndexScanCost(0.1) < s.estimateIndexScanCost(0.5));
+		Assert.assertTrue(s.estimateIndexScanCost(0.5) < s.estimateScanCost());
+		Assert.assertTrue(s.estimateIndexScanCost(1.0) > s.estimateScanCost());
+		Assert.assertEquals(bf.numPages() * IO_COST, s.estimateScanCost(), 0.001);
+
+		TableStats heap = new TableStats(this.tableId, IO_COST);
+		Assert.assertEquals(-1, heap.indexedField());
+		Assert.assertEquals(Double.POSITIVE_INFINITY, heap.estimateIndexScanCost(0.0), 0.0);
+	}
+
 	/**
 	 * Verify the table-cardinality estimates based on a selectivity estimate
 	 */
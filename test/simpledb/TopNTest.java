@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  OpIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan = TestUtil.createTupleList(2,
+        new int[] { 2, 1,
+                    1, 5,
+                    3, 0,
+                    1, 7,
+                    2, 9 });
+  }
+
+  @After public void resetBudget() {
+    OrderBy.setMemoryBudget(OrderBy.DEFAULT_MEMORY_BUDGET);
+  }
+
+  /**
+   * Unit test for TopN with an offset, including rewind()
+   */
+  @Test public void topWithOffset() throws Exception {
+    TopN op = new TopN(new int[] { 0, 1 }, new boolean[] { false, true }, 2, 1, scan);
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 2, 1,
+                    2, 9 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for TopN agreeing with a full OrderBy on random input
+   */
+  @Test public void matchesOrderBy() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    Random r = new Random(7);
+    ArrayList<Tuple> tups = new ArrayList<Tuple>();
+    for (int i = 0; i < 2000; i++)
+      tups.add(Utility.getHeapTuple(new int[] { r.nextInt(100), i }));
+    int[] fields = { 0, 1 };
+    boolean[] asc = { true, false };
+    TopN top = new TopN(fields, asc, 50, 20, new TupleIterator(td, tups));
+    Limit sorted = new Limit(50, 20, new OrderBy(fields, asc, new TupleIterator(td, tups)));
+    top.open();
+    sorted.open();
+    TestUtil.compareDbIterators(sorted, top);
+  }
+
+  /**
+   * Unit test for Limit and TopN at the ends: nothing to return, and more
+   * asked for than there is
+   */
+  @Test public void limits() throws Exception {
+    Limit l = new Limit(0, 0, scan);
+    l.open();
+    assertTrue(TestUtil.checkExhausted(l));
+    l.close();
+    l = new Limit(10, 3, scan);
+    l.open();
+    assertEquals(2, count(l));
+    l.close();
+    TopN t = new TopN(new int[] { 0 }, new boolean[] { true }, 10, 0, scan);
+    t.open();
+    assertEquals(5, count(t));
+    t.close();
+    t = new TopN(new int[] { 0 }, new boolean[] { true }, 0, 2, scan);
+    t.open();
+    assertTrue(TestUtil.checkExhausted(t));
+  }
+
+  /**
+   * Unit test for the planner choosing TopN for ORDER BY ... LIMIT, and a
+   * sort and a Limit when the limit is larger than the sort budget
+   */
+  @Test public void planned() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null, "c");
+    String name = "topn";
+    Database.getCatalog().addTable(hf, name);
+    TableStats.setTableStats(name, new TableStats(hf.getId(), 1));
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    OpIterator plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name
+        + " t ORDER BY t.c0 DESC, t.c1 LIMIT 10 OFFSET 5;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(TopN.class, ((Operator) plan).getChildren()[0].getClass());
+    plan.open();
+    assertEquals(10, count(plan));
+    plan.close();
+
+    OrderBy.setMemoryBudget(1);
+    plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t ORDER BY t.c0 limit 200;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(Limit.class, ((Operator) plan).getChildren()[0].getClass());
+    assertEquals(OrderBy.class, ((Operator) ((Operator) plan).getChildren()[0]).getChildren()[0].getClass());
+    plan.open();
+    assertEquals(100, count(plan));
+    plan.close();
+
+    plan = p.generateLogicalPlan(tid, "SELECT * FROM " + name + " t LIMIT 7;")
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    assertEquals(7, count(plan));
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static int count(OpIterator it) throws Exception {
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Unit test for TopN keeping tuples read from heap pages: they are
+   * decoded, so they do not keep their pages alive
+   */
+  @Test public void keepsMaterializedTuples() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+    TransactionId tid = new TransactionId();
+    TopN op = new TopN(new int[] { 1 }, new boolean[] { true }, 100, 0, new SeqScan(tid, hf.getId()));
+    op.open();
+    assertEquals(100, count(op));
+    op.rewind();
+    while (op.hasNext())
+      assertTrue(op.next().isMaterialized());
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -167,6 +167,20 @@ public class TupleDescTest extends SimpleDbTestBase {
         assertFalse(intString.equals(singleInt2));
     }
 
+    /**
+     * Unit test for TupleDesc.alias(): every name gets the prefix, also one
+     * that already starts with it
+     */
+    @Test public void alias() {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE },
+                new String[] { "a", "t.b" });
+        TupleDesc aliased = TupleDesc.alias(td, "t");
+        assertEquals(td, aliased);
+        assertEquals("t.a", aliased.getFieldName(0));
+        assertEquals("t.t.b", aliased.getFieldName(1));
+        assertEquals("null.null", TupleDesc.alias(new TupleDesc(new Type[] { Type.INT_TYPE }, new String[] { null }), null).getFieldName(0));
+    }
+
     /**
      * JUnit suite target
      */
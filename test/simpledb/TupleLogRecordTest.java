@@ -0,0 +1,88 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleLogRecordTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static TupleLogRecord roundTrip(TupleLogRecord r) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        r.write(new DataOutputStream(bytes));
+        return TupleLogRecord.read(r.type,
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * Redo and undo of an INSERT record, read back from its serialized form
+     */
+    @Test public void insertRecord() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(t);
+        byte[] after = page.getPageData();
+        TupleLogRecord r = roundTrip(new TupleLogRecord(LogFile.INSERT_RECORD,
+                t.getRecordId(), TupleLogRecord.serialize(t)));
+        assertEquals(pid, r.getPageId());
+
+        r.undo(page);
+        assertFalse(page.isSlotUsed(t.getRecordId().getTupleNumber()));
+        assertArrayEquals(HeapPage.createEmptyPageData(), page.getPageData());
+        r.redo(page);
+        assertArrayEquals(after, page.getPageData());
+        // redo is idempotent, as recovery may apply it to a page that has it
+        r.redo(page);
+        assertArrayEquals(after, page.getPageData());
+    }
+
+    /**
+     * Redo and undo of a DELETE record, which carries the deleted tuple
+     */
+    @Test public void deleteRecord() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        Tuple t = Utility.getHeapTuple(new int[] { 3, 4 });
+        page.insertTuple(t);
+        byte[] before = page.getPageData();
+        page.deleteTuple(t);
+        byte[] after = page.getPageData();
+        TupleLogRecord r = roundTrip(new TupleLogRecord(LogFile.DELETE_RECORD,
+                t.getRecordId(), TupleLogRecord.serialize(t)));
+
+        r.undo(page);
+        assertTrue(page.isSlotUsed(t.getRecordId().getTupleNumber()));
+        assertArrayEquals(before, page.getPageData());
+        r.redo(page);
+        assertArrayEquals(after, page.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleLogRecordTest.class);
+    }
+}
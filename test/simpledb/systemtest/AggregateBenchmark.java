@@ -0,0 +1,74 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * GROUP BY over a two-int-column heap table: AVG and MAX of the second
+ * column grouped by the first, which cycles through a given number of
+ * distinct values.  The table is read into the pool once before timing, so
+ * the numbers are for aggregation over a scan of cached pages.  Reports how
+ * much Aggregate spilled to disk under the given memory budget.
+ *
+ * Not a unit test; run it directly (with a large enough heap, e.g. -Xmx2g):
+ * <pre>
+ *     java simpledb.systemtest.AggregateBenchmark [rows] [budgetMB] [groups...]
+ * </pre>
+ */
+public class AggregateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        if (args.length > 1)
+            Aggregate.setMemoryBudget(Long.parseLong(args[1]) << 20);
+        int[] groupCounts = {1000, 1000000};
+        if (args.length > 2) {
+            groupCounts = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                groupCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+        int pageSize = BufferPool.getPageSize();
+        int slots = (pageSize * 8) / (8 * 8 + 1);
+        int pages = (rows + slots - 1) / slots;
+
+        for (int groups : groupCounts) {
+            File f = File.createTempFile("agg", ".dat");
+            f.deleteOnExit();
+            ScanBenchmark.writeFullTable(f, pages, pageSize, groups);
+            HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+            Database.resetBufferPool(pages + 16);
+            TransactionId tid = new TransactionId();
+            run(new Aggregate(new SeqScan(tid, hf.getId(), "t"), 1, 0, Aggregator.Op.COUNT));
+
+            for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MAX }) {
+                double best = Double.MAX_VALUE;
+                long out = 0;
+                Aggregate agg = null;
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    agg = new Aggregate(new SeqScan(tid, hf.getId(), "t"), 1, 0, op);
+                    out = run(agg);
+                    best = Math.min(best, (System.nanoTime() - start) / 1e9);
+                }
+                System.out.printf("%s by %d groups: %d rows -> %d groups in %.2fs (%.1f M rows/s), %d spills, %.1f MB%n",
+                        op, groups, (long) pages * slots, out, best, pages * slots / best / 1e6,
+                        agg.getSpillCount(), agg.getSpilledBytes() / 1048576.0);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            f.delete();
+        }
+    }
+
+    private static long run(Aggregate agg) throws Exception {
+        agg.open();
+        long out = 0;
+        while (agg.hasNext()) {
+            agg.next();
+            out++;
+        }
+        agg.close();
+        return out;
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Throughput of concurrent inserts and point lookups on one B+ tree index.
+ * The tree starts out with the given number of random two-int rows, keyed
+ * on the first column; each thread then runs, for a fixed time,
+ * transactions that insert one random row and look up a few random keys.
+ * Aborted transactions are retried.  Run for 1, 2, 4 and 8 threads, or
+ * the counts given.  Also reports the share of descents that reached their
+ * leaf without locking the pages above it.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.BTreeConcurrencyBenchmark [rows] [seconds] [lookupsPerTxn] [threads...]
+ * </pre>
+ */
+public class BTreeConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int[] counts = { 1, 2, 4, 8 };
+        if (args.length > 3) {
+            counts = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++)
+                counts[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        for (int threads : counts) {
+            Database.reset();
+            final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+            final BufferPool bp = Database.resetBufferPool(bf.numPages() * 2 + 1000);
+
+            final AtomicLong commits = new AtomicLong();
+            final AtomicLong aborts = new AtomicLong();
+            final long deadline = System.currentTimeMillis() + seconds * 1000L;
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final Random rand = new Random(i);
+                workers[i] = new Thread() {
+                    public void run() {
+                        try {
+                            while (System.currentTimeMillis() < deadline) {
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    for (int j = 0; j < lookups; j++) {
+                                        IntField key = new IntField(rand.nextInt(BTreeUtility.MAX_RAND_VALUE));
+                                        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+                                        it.open();
+                                        while (it.hasNext())
+                                            it.next();
+                                        it.close();
+                                    }
+                                    bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(
+                                            new int[] { rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 0 }));
+                                    bp.transactionComplete(tid, true);
+                                    commits.incrementAndGet();
+                                } catch (TransactionAbortedException e) {
+                                    bp.transactionComplete(tid, false);
+                                    aborts.incrementAndGet();
+                                }
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread t : workers)
+                t.start();
+            for (Thread t : workers)
+                t.join();
+            double secs = (System.nanoTime() - start) / 1e9;
+            long optimistic = bf.getOptimisticDescents();
+            long descents = optimistic + bf.getCoupledDescents();
+
+            System.out.printf("%d rows, %d thread%s: %d txns in %.1fs = %.0f txns/s, %d aborts, %.1f%% optimistic descents%n",
+                    rows, threads, threads == 1 ? " " : "s", commits.get(), secs,
+                    commits.get() / secs, aborts.get(), descents == 0 ? 0.0 : 100.0 * optimistic / descents);
+        }
+        Database.reset();
+    }
+}
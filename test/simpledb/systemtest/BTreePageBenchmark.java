@@ -0,0 +1,105 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Microbenchmark of point lookups inside full B+ tree pages with int keys,
+ * a fanout of about 500 at the default page size: picking the child of an
+ * internal page to descend into, and finding the first tuple of a leaf page
+ * with a key at least the one searched for.  Each is done both by iterating
+ * the entries or tuples, as the page iterators allow, and by the binary
+ * search of the page's sorted keys.  Each case runs for a warm-up round and
+ * then a timed round.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.BTreePageBenchmark [lookups]
+ * </pre>
+ */
+public class BTreePageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        File f = File.createTempFile("btreepage", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+        int max = BTreeUtility.MAX_RAND_VALUE;
+        BTreeInternalPage internal = BTreeUtility.createRandomInternalPage(
+                new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL), 0, BTreePageId.LEAF, 0, max, 2);
+        BTreeLeafPage leaf = BTreeUtility.createRandomLeafPage(
+                new BTreePageId(bf.getId(), 2, BTreePageId.LEAF), 2, 0, 0, max);
+        System.out.printf("%d entries per internal page, %d tuples per leaf page%n",
+                internal.getNumEntries(), leaf.getNumTuples());
+
+        IntField[] keys = new IntField[4096];
+        Random rand = new Random(0);
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new IntField(rand.nextInt(max));
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            long start = System.nanoTime();
+            long sink = 0;
+            for (int i = 0; i < lookups; i++)
+                sink += scanForChild(internal, keys[i & (keys.length - 1)]).getPageNumber();
+            report(report, "internal, iterate", start, lookups, sink);
+
+            start = System.nanoTime();
+            sink = 0;
+            for (int i = 0; i < lookups; i++)
+                sink += internal.findChild(keys[i & (keys.length - 1)]).getPageNumber();
+            report(report, "internal, binary search", start, lookups, sink);
+
+            start = System.nanoTime();
+            sink = 0;
+            for (int i = 0; i < lookups; i++) {
+                Tuple t = scanForTuple(leaf, keys[i & (keys.length - 1)]);
+                if (t != null)
+                    sink += t.getRecordId().getTupleNumber();
+            }
+            report(report, "leaf, iterate", start, lookups, sink);
+
+            start = System.nanoTime();
+            sink = 0;
+            for (int i = 0; i < lookups; i++) {
+                Iterator<Tuple> it = leaf.iterator(keys[i & (keys.length - 1)]);
+                if (it.hasNext())
+                    sink += it.next().getRecordId().getTupleNumber();
+            }
+            report(report, "leaf, binary search", start, lookups, sink);
+        }
+        Database.reset();
+        f.delete();
+    }
+
+    private static BTreePageId scanForChild(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()))
+                return e.getLeftChild();
+        }
+        return e.getRightChild();
+    }
+
+    private static Tuple scanForTuple(BTreeLeafPage page, Field f) {
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getField(0).compare(Predicate.Op.GREATER_THAN_OR_EQ, f))
+                return t;
+        }
+        return null;
+    }
+
+    private static void report(boolean report, String name, long start, int lookups, long sink) {
+        if (report)
+            System.out.printf("%-24s %8.1f ns/lookup (%d)%n", name,
+                    (double) (System.nanoTime() - start) / lookups, sink & 1);
+    }
+}
@@ -94,7 +94,7 @@ public class BTreeTest extends SimpleDbTestBase {
 		// and packed third tier of leaf pages
     	System.out.println("Creating large random B+ tree...");
     	ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
-		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 31000,
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 30752,
 				null, tuples, 0);
 		
 		// we will need more room in the buffer pool for this test
@@ -102,7 +102,7 @@ public class BTreeTest extends SimpleDbTestBase {
     	
     	ArrayBlockingQueue<ArrayList<Integer>> insertedTuples = new ArrayBlockingQueue<ArrayList<Integer>>(100000);
 		insertedTuples.addAll(tuples);
-		assertEquals(31000, insertedTuples.size());
+		assertEquals(30752, insertedTuples.size());
 		int size = insertedTuples.size();
 		
 		// now insert some random tuples
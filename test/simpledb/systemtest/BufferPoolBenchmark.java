@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Multi-threaded buffer pool benchmark.  Creates a heap file of TABLE_PAGES
+ * pages, sizes the buffer pool to hold POOL_PAGES of them and lets a number of
+ * threads issue skewed random READ_ONLY getPage() calls against it.  Reports
+ * throughput and the hit rate observed by the pool.
+ * <p>
+ * Hits take no pool-wide lock, but every getPage() still acquires its page
+ * lock from the LockManager, whose state sits behind one global latch, so
+ * the threads contend on that latch even when every call hits.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.BufferPoolBenchmark [threads] [seconds]
+ * </pre>
+ */
+public class BufferPoolBenchmark {
+    private static final int TABLE_PAGES = 2000;
+    private static final int POOL_PAGES = 500;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        // 2 int columns -> 504 tuples per page
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * 504, null, null);
+        final BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final long[] ops = new long[threads];
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int me = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    Random r = new Random(me);
+                    TransactionId tid = new TransactionId();
+                    long n = 0;
+                    try {
+                        while ((n & 1023) != 0 || System.currentTimeMillis() < deadline) {
+                            // 80% of accesses go to the first 20% of the pages
+                            int pgno = r.nextInt(5) < 4 ? r.nextInt(TABLE_PAGES / 5) : r.nextInt(TABLE_PAGES);
+                            PageId pid = new HeapPageId(f.getId(), pgno);
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                            bp.releasePage(tid, pid);
+                            n++;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    ops[me] = n;
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        for (long n : ops)
+            total += n;
+        System.out.printf("threads=%d pool=%d table=%d ops=%d elapsed=%.2fs throughput=%.0f ops/s hitrate=%.3f%n",
+                threads, POOL_PAGES, TABLE_PAGES, total, elapsed, total / elapsed, bp.getHitRate());
+    }
+}
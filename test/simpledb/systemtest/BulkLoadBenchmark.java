@@ -0,0 +1,48 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import simpledb.*;
+
+/**
+ * Bulk load of a B+ tree from a stream of two-int-column tuples with random
+ * keys: an external sort under the given memory budget feeds the bottom-up
+ * loader.  Reports the load rate, the size of the tree and the peak heap
+ * used, which stays flat as the row count grows; run it with a small heap
+ * (e.g. -Xmx256m) to see that it does not need the input to fit.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.BulkLoadBenchmark [rows] [fillFactor] [budgetMB]
+ * </pre>
+ */
+public class BulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        double fill = args.length > 1 ? Double.parseDouble(args[1]) : BTreeBulkLoader.DEFAULT_FILL_FACTOR;
+        long budget = (args.length > 2 ? Long.parseLong(args[2]) : 16) << 20;
+
+        OrderBy.setMemoryBudget(budget);
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+
+        long start = System.nanoTime();
+        BTreeFile bf = BTreeBulkLoader.sortAndLoad(new SortBenchmark.RandomTuples(rows), f, 0, fill);
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        System.out.printf("%d rows, fill %.2f: loaded in %.1fs = %.0f rows/s, %d pages (%.1f MB), peak heap %.1f MB%n",
+                rows, fill, secs, rows / secs, bf.numPages(), f.length() / 1e6, peak / 1e6);
+        f.delete();
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import simpledb.*;
+
+/**
+ * Query latency while checkpoints run.  A batch transaction keeps deleting
+ * rows of a large heap table, a page after another, so most of its pages
+ * stay dirty; query threads run short transactions that scan a small
+ * table; and a checkpoint is taken at a fixed interval.  Reports the query
+ * latency percentiles and how long checkpoints took; an interval of 0
+ * takes none, for the latency without checkpoints.  The log is the file
+ * "log" in the working directory, so run it from a directory on the disk.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.CheckpointBenchmark [seconds] [bigRows] [checkpointMillis] [queryThreads]
+ * </pre>
+ */
+public class CheckpointBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 5;
+        int bigRows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        final long interval = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        int queryThreads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        Database.reset();
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, bigRows, null, null);
+        final HeapFile small = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        Database.resetBufferPool(big.numPages() + small.numPages() + 64);
+
+        // the big table's rows, a page after another for each slot
+        final List<Tuple> rows = new ArrayList<Tuple>();
+        Transaction scan = new Transaction();
+        scan.start();
+        DbFileIterator it = big.iterator(scan.getId());
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next());
+        it.close();
+        scan.commit();
+        Collections.sort(rows, new Comparator<Tuple>() {
+            public int compare(Tuple a, Tuple b) {
+                RecordId x = a.getRecordId(), y = b.getRecordId();
+                if (x.getTupleNumber() != y.getTupleNumber())
+                    return x.getTupleNumber() - y.getTupleNumber();
+                return x.getPageId().getPageNumber() - y.getPageId().getPageNumber();
+            }
+        });
+
+        final long end = System.nanoTime() + (long) (seconds * 1e9);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread batch = new Thread() {
+            public void run() {
+                try {
+                    Transaction t = new Transaction();
+                    t.start();
+                    for (int i = 0; i < rows.size() && System.nanoTime() < end; i++) {
+                        Database.getBufferPool().deleteTuple(t.getId(), rows.get(i));
+                        if (i % 20 == 19)
+                            Thread.sleep(1);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+
+        final List<Long> checkpoints = Collections.synchronizedList(new ArrayList<Long>());
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    while (interval > 0 && System.nanoTime() + interval * 1000000 < end) {
+                        Thread.sleep(interval);
+                        long start = System.nanoTime();
+                        Database.getLogFile().logCheckpoint();
+                        checkpoints.add(System.nanoTime() - start);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        Thread[] queries = new Thread[queryThreads];
+        for (int i = 0; i < queryThreads; i++) {
+            queries[i] = new Thread() {
+                public void run() {
+                    List<Long> mine = new ArrayList<Long>();
+                    try {
+                        while (System.nanoTime() < end) {
+                            long start = System.nanoTime();
+                            Transaction t = new Transaction();
+                            t.start();
+                            SeqScan ss = new SeqScan(t.getId(), small.getId(), "");
+                            ss.open();
+                            while (ss.hasNext())
+                                ss.next();
+                            ss.close();
+                            t.commit();
+                            mine.add(System.nanoTime() - start);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                    latencies.addAll(mine);
+                }
+            };
+        }
+
+        batch.start();
+        checkpointer.start();
+        for (Thread t : queries)
+            t.start();
+        for (Thread t : queries)
+            t.join();
+        checkpointer.join();
+        batch.join();
+        if (!errors.isEmpty())
+            throw new RuntimeException(errors.get(0));
+
+        Collections.sort(latencies);
+        System.out.printf("%d queries: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                latencies.size(), percentile(latencies, 0.50), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1.0));
+        long total = 0, longest = 0;
+        for (long c : checkpoints) {
+            total += c;
+            longest = Math.max(longest, c);
+        }
+        System.out.printf("%d checkpoints: mean %.2f ms, max %.2f ms%n", checkpoints.size(),
+                checkpoints.isEmpty() ? 0 : total / 1e6 / checkpoints.size(), longest / 1e6);
+        Database.reset();
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, i))) / 1e6;
+    }
+}
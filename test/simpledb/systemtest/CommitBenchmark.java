@@ -0,0 +1,67 @@
+package simpledb.systemtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Commit throughput: each of a number of threads begins and commits empty
+ * transactions for a fixed time, so every commit is a BEGIN and a COMMIT
+ * record and a wait for the log to be forced.  Reports commits per second and
+ * log forces per thread count.  The log is the file "log" in the working
+ * directory, so run it from a directory on the disk to measure.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.CommitBenchmark [seconds] [delayMillis] [batch] [threads...]
+ * </pre>
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : LogFile.DEFAULT_GROUP_COMMIT_DELAY;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : LogFile.DEFAULT_GROUP_COMMIT_BATCH;
+        int[] threadCounts = {1, 2, 4, 8, 16, 32};
+        if (args.length > 3) {
+            threadCounts = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++)
+                threadCounts[i - 3] = Integer.parseInt(args[i]);
+        }
+
+        for (int threads : threadCounts) {
+            Database.reset();
+            final LogFile log = Database.getLogFile();
+            log.setGroupCommit(delay, batch);
+            final AtomicLong commits = new AtomicLong();
+            final long end = System.nanoTime() + (long) (seconds * 1e9);
+            Thread[] ts = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                ts[i] = new Thread() {
+                    public void run() {
+                        try {
+                            while (System.nanoTime() < end) {
+                                Transaction t = new Transaction();
+                                t.start();
+                                t.commit();
+                                commits.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+            long forces = log.getForceCount();
+            long start = System.nanoTime();
+            for (Thread t : ts)
+                t.start();
+            for (Thread t : ts)
+                t.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            forces = log.getForceCount() - forces;
+            System.out.printf("%2d threads: %8.0f commits/s, %.1f commits per force%n",
+                    threads, commits.get() / elapsed, (double) commits.get() / Math.max(1, forces));
+        }
+    }
+}
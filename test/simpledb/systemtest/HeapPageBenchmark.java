@@ -0,0 +1,54 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Microbenchmark of HeapPage: constructing a full page from its bytes, then
+ * iterating it while reading one field or all fields of every tuple.  Each
+ * case runs for a warm-up round and then a timed round.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.HeapPageBenchmark [columns]
+ * </pre>
+ */
+public class HeapPageBenchmark {
+    private static final int ITERATIONS = 50000;
+
+    public static void main(String[] args) throws Exception {
+        int columns = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (columns * 4 * 8 + 1);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(columns, tuplesPerPage, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] data = hf.readPage(pid).getPageData();
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("construct", report, pid, data, 0);
+            run("construct+scan 1 field", report, pid, data, 1);
+            run("construct+scan all fields", report, pid, data, columns);
+        }
+    }
+
+    private static void run(String name, boolean report, HeapPageId pid, byte[] data, int fields)
+            throws Exception {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            HeapPage p = new HeapPage(pid, data);
+            if (fields == 0)
+                continue;
+            java.util.Iterator<Tuple> it = p.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                for (int j = 0; j < fields; j++)
+                    sink += ((IntField) t.getField(j)).getValue();
+            }
+        }
+        double usPerPage = (System.nanoTime() - start) / 1e3 / ITERATIONS;
+        if (report)
+            System.out.printf("%-28s %8.2f us/page (%d)%n", name, usPerPage, sink & 1);
+    }
+}
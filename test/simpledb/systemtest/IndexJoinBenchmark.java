@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Equality join of a stream of random keys with a two-int-column B+ tree
+ * table holding the keys 0..2^20-1 once, keyed on the first column, through
+ * the default-sized buffer pool: with HashEquiJoin, which reads the whole
+ * table, and with IndexNestedLoopJoin looking each key up in the index,
+ * both one key at a time in arrival order (batches of 1) and in sorted
+ * batches.  Each case runs for a warm-up round and then a timed round.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.IndexJoinBenchmark [outerRows...]
+ * </pre>
+ */
+public class IndexJoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = { 1000, 10000, 100000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                counts[i] = Integer.parseInt(args[i]);
+        }
+
+        File f = File.createTempFile("indexjoin", ".dat");
+        f.deleteOnExit();
+        BTreeBulkLoader loader = new BTreeBulkLoader(f, Utility.getTupleDesc(2), 0, 1.0);
+        for (int i = 0; i < 1 << 20; i++)
+            loader.add(BTreeUtility.getBTreeTuple(new int[] { i, i }));
+        int pages = loader.finish();
+        BTreeFile bf = new BTreeFile(f, 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        System.out.printf("%d rows in %d pages, %d pages of buffer pool%n",
+                1 << 20, pages, BufferPool.DEFAULT_PAGES);
+
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (int rows : counts) {
+            for (int round = 0; round < 2; round++) {
+                boolean report = round == 1;
+                TransactionId tid = new TransactionId();
+                run(report, rows, "hash join", new HashEquiJoin(pred,
+                        new SortBenchmark.RandomTuples(rows), new SeqScan(tid, bf.getId())));
+                IndexNestedLoopJoin.setBatchSize(1);
+                run(report, rows, "index join, unsorted", new IndexNestedLoopJoin(pred,
+                        new SortBenchmark.RandomTuples(rows), new SeqScan(tid, bf.getId())));
+                IndexNestedLoopJoin.setBatchSize(IndexNestedLoopJoin.DEFAULT_BATCH_SIZE);
+                run(report, rows, "index join, batched", new IndexNestedLoopJoin(pred,
+                        new SortBenchmark.RandomTuples(rows), new SeqScan(tid, bf.getId())));
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+        Database.reset();
+        f.delete();
+    }
+
+    private static void run(boolean report, int rows, String name, OpIterator join) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        long start = System.nanoTime();
+        join.open();
+        long out = 0;
+        while (join.hasNext()) {
+            join.next();
+            out++;
+        }
+        join.close();
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (report)
+            System.out.printf("%7d outer rows, %-22s %8.3fs, %d matches%n", rows, name, secs, out);
+    }
+}
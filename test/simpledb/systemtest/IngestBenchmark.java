@@ -0,0 +1,72 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import simpledb.*;
+
+/**
+ * Bulk ingest into an empty two-int-column heap table: a single transaction
+ * inserts the given number of rows and commits, for each of a list of extent
+ * sizes the file grows by.  The pool is large enough to keep every page.
+ * File growth alone is also timed, by allocating the same number of pages
+ * straight from an ExtentAllocator.
+ *
+ * Not a unit test; run it directly (with a large enough heap, e.g. -Xmx2g):
+ * <pre>
+ *     java simpledb.systemtest.IngestBenchmark [rows] [extentKB...]
+ * </pre>
+ */
+public class IngestBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int[] extentsKB = {4, 1024, 65536};
+        if (args.length > 1) {
+            extentsKB = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                extentsKB[i - 1] = Integer.parseInt(args[i]);
+        }
+        int slots = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+
+        for (int round = 0; round < 2; round++) {
+            for (int kb : extentsKB) {
+                ExtentAllocator.setExtentBytes(kb * 1024);
+                File f = File.createTempFile("ingest", ".dat");
+                f.deleteOnExit();
+                HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+                Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+                BufferPool bp = Database.resetBufferPool(rows / slots + 16);
+
+                long start = System.nanoTime();
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < rows; i++)
+                    bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+                bp.transactionComplete(tid, true);
+                hf.close();
+                double secs = (System.nanoTime() - start) / 1e9;
+                int pages = hf.numPages();
+                f.delete();
+
+                f = File.createTempFile("grow", ".dat");
+                f.deleteOnExit();
+                RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                FileChannel ch = raf.getChannel();
+                ExtentAllocator extents = new ExtentAllocator(0);
+                start = System.nanoTime();
+                for (int i = 0; i < pages; i++)
+                    extents.allocate(ch);
+                extents.trim(ch);
+                double growUs = (System.nanoTime() - start) / 1e3;
+                raf.close();
+                f.delete();
+
+                if (round == 1)
+                    System.out.printf("extent %6d KB: %d rows, %d pages in %.2fs = %.0f rows/s; growth alone %.0f us (%.2f us/page)%n",
+                            kb, rows, pages, secs, rows / secs, growUs, growUs / pages);
+            }
+        }
+        ExtentAllocator.setExtentBytes(ExtentAllocator.DEFAULT_EXTENT_BYTES);
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Sustained insert rate into a large two-int-column heap table from many
+ * threads.  The table starts out with the given number of rows, every page
+ * full, so inserters have to find the space at its end.  Each thread runs
+ * one-row transactions for a fixed time; aborted transactions are retried.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.InsertBenchmark [rows] [threads] [seconds]
+ * </pre>
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int pageSize = BufferPool.getPageSize();
+        int slots = (pageSize * 8) / (8 * 8 + 1);
+        int pages = (rows + slots - 1) / slots;
+
+        File f = File.createTempFile("insert", ".dat");
+        f.deleteOnExit();
+        ScanBenchmark.writeFullTable(f, pages, pageSize);
+        final HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(pages * 2);
+
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(id, 2));
+                                bp.transactionComplete(tid, true);
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers)
+            t.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d rows, %d threads: %d inserts in %.1fs = %.0f inserts/s, %d aborts, table grew %d -> %d pages%n",
+                rows, threads, commits.get(), secs, commits.get() / secs, aborts.get(), pages, hf.numPages());
+        f.delete();
+    }
+}
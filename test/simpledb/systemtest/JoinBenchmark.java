@@ -0,0 +1,57 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Equality join of two large two-int-column heap tables, each holding the
+ * keys 0..rows-1 once, with HashEquiJoin on the first column.  Reports the
+ * time to produce all rows matches and whether the join spilled to
+ * partition files under the given memory budget.
+ *
+ * Not a unit test; run it directly (with a large enough heap, e.g. -Xmx2g):
+ * <pre>
+ *     java simpledb.systemtest.JoinBenchmark [rows] [budgetMB]
+ * </pre>
+ */
+public class JoinBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        if (args.length > 1)
+            HashEquiJoin.setMemoryBudget(Long.parseLong(args[1]) << 20);
+        int pageSize = BufferPool.getPageSize();
+        int slots = (pageSize * 8) / (8 * 8 + 1);
+        int pages = (rows + slots - 1) / slots;
+
+        HeapFile[] tables = new HeapFile[2];
+        for (int i = 0; i < 2; i++) {
+            File f = File.createTempFile("join", ".dat");
+            f.deleteOnExit();
+            ScanBenchmark.writeFullTable(f, pages, pageSize);
+            tables[i] = new HeapFile(f, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(tables[i], SystemTestUtil.getUUID());
+        }
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, tables[0].getId(), "a"), new SeqScan(tid, tables[1].getId(), "b"));
+        join.open();
+        long out = 0;
+        while (join.hasNext()) {
+            join.next();
+            out++;
+        }
+        boolean spilled = join.isSpilled();
+        join.close();
+        Database.getBufferPool().transactionComplete(tid);
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d x %d rows: %d matches in %.1fs (%s, budget %d MB)%n",
+                (long) pages * slots, (long) pages * slots, out, secs,
+                spilled ? "spilled" : "in memory", HashEquiJoin.getMemoryBudget() >> 20);
+    }
+}
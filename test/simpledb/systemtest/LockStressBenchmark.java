@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Lock manager stress benchmark in the spirit of DeadlockTest: many threads
+ * run short transactions that lock a few random pages of a small table with
+ * mixed permissions, so deadlocks are frequent.  Aborted transactions are
+ * retried.  Reports the abort rate, throughput, deadlocks and lock-wait
+ * histogram per thread count.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.LockStressBenchmark [seconds] [threads...]
+ * </pre>
+ */
+public class LockStressBenchmark {
+    private static final int PAGES = 8;
+    private static final int LOCKS_PER_XACT = 3;
+
+    public static void main(String[] args) throws Exception {
+        final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        int[] threadCounts = {1, 4, 16, 32};
+        if (args.length > 1) {
+            threadCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                threadCounts[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        for (int threads : threadCounts) {
+            Database.reset();
+            // 2 int columns -> 504 tuples per page
+            final HeapFile f = SystemTestUtil.createRandomHeapFile(2, PAGES * 504, null, null);
+            final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            final AtomicLong commits = new AtomicLong();
+            final AtomicLong aborts = new AtomicLong();
+            final long end = System.nanoTime() + (long) (seconds * 1e9);
+            Thread[] ts = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                final Random r = new Random(i);
+                ts[i] = new Thread() {
+                    public void run() {
+                        try {
+                            while (System.nanoTime() < end) {
+                                TransactionId tid = new TransactionId();
+                                try {
+                                    for (int j = 0; j < LOCKS_PER_XACT; j++) {
+                                        PageId pid = new HeapPageId(f.getId(), r.nextInt(PAGES));
+                                        bp.getPage(tid, pid, r.nextBoolean() ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+                                    }
+                                    bp.transactionComplete(tid, true);
+                                    commits.incrementAndGet();
+                                } catch (TransactionAbortedException e) {
+                                    bp.transactionComplete(tid, false);
+                                    aborts.incrementAndGet();
+                                }
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread t : ts)
+                t.start();
+            for (Thread t : ts)
+                t.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long c = commits.get(), a = aborts.get();
+            System.out.printf("%2d threads: %d commits, %d aborts (abort rate %.3f), %.0f xacts/s, %d deadlocks%n",
+                    threads, c, a, (double) a / Math.max(1, c + a), (c + a) / elapsed,
+                    bp.getLockManager().getDeadlockCount());
+            System.out.println("lock wait histogram:");
+            bp.getLockManager().printWaitHistogram();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Lock manager liveness test in the spirit of DeadlockTest: many threads run
+ * short transactions that lock a few random pages of a small table with mixed
+ * permissions, so deadlocks are frequent.  Aborted transactions are retried
+ * until each thread has committed its share; a deadlock the lock manager
+ * misses leaves a thread parked for good.  LockStressBenchmark reports the
+ * abort rate and throughput of the same workload.
+ */
+public class LockStressTest extends SimpleDbTestBase {
+    private static final int THREADS = 16;
+    private static final int PAGES = 8;
+    private static final int LOCKS_PER_XACT = 3;
+    private static final int XACTS_PER_THREAD = 50;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Test public void testDeadlockStress() throws Exception {
+        // 2 int columns -> 504 tuples per page
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, PAGES * 504, null, null);
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Thread[] workers = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final Random r = new Random(i);
+            workers[i] = new Thread() {
+                public void run() {
+                    try {
+                        int committed = 0;
+                        while (committed < XACTS_PER_THREAD) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int j = 0; j < LOCKS_PER_XACT; j++) {
+                                    PageId pid = new HeapPageId(f.getId(), r.nextInt(PAGES));
+                                    bp.getPage(tid, pid, r.nextBoolean() ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+                                }
+                                bp.transactionComplete(tid, true);
+                                committed++;
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                            }
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (Thread t : workers)
+            t.start();
+        for (Thread t : workers) {
+            t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            assertFalse("worker did not finish, lock manager missed a deadlock", t.isAlive());
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockStressTest.class);
+    }
+}
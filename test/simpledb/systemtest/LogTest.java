@@ -190,6 +190,45 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestBTreeCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        File file3 = new File("simple3.db");
+        file3.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(file3.getAbsolutePath(), 2, 0);
+
+        // *** Test:
+        // B+ tree pages are logged as page images; crash after the
+        // commit record is forced but before the pages are written:
+        // recovery must redo all of them
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1500; i++)
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(),
+                    BTreeUtility.getBTreeTuple(i, 2));
+        Database.getLogFile().logCommit(t1.getId());
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, file3, 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(1500, count);
+        t.commit();
+    }
+
     @Test public void TestAbort()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -427,6 +466,207 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestRedoLostWrites()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // commit rows over several pages, then lose the page writes
+        // (the heap file goes back to its state before them)
+        // crash: redo, split among threads, must put them back
+
+        byte[] old = java.nio.file.Files.readAllBytes(file1.toPath());
+        for (int i = 0; i < 10; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 200; j++)
+                insertRow(hf1, t, 100 + i * 200 + j, 0);
+            t.commit();
+        }
+        assertTrue(hf1.numPages() > 3);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30, 0);
+        Database.getBufferPool().flushAllPages(); // XXX something to UNDO
+        java.nio.file.Files.write(file1.toPath(), old);
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRedoThreads(3);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 100, true);
+        look(hf1, t, 1234, true);
+        look(hf1, t, 2099, true);
+        look(hf1, t, 30, false);
+        t.commit();
+    }
+
+    // wait for the background writer to put v1 on disk
+    void awaitOnDisk(HeapFile hf, int v1) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext())
+                if (((IntField) it.next().getField(0)).getValue() == v1)
+                    return;
+            Thread.sleep(10);
+        }
+        fail("LogTest: checkpoint did not write the page back");
+    }
+
+    @Test public void TestFuzzyCheckpointWriteBack()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // a checkpoint has the pages of running transactions written
+        // back; abort and crash must still take their rows out
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 31, 0);
+        Database.getLogFile().logCheckpoint();
+        awaitOnDisk(hf1, 31);
+        t1.abort();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 32, 0);
+        Database.getLogFile().logCheckpoint();
+        awaitOnDisk(hf1, 32);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 31, false);
+        look(hf1, t, 32, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointBufferPoolAbort()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // the background writer puts a running transaction's page on
+        // disk; aborting it through the BufferPool, not the Transaction,
+        // must still take its row out, also after a crash
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 33, 0);
+        Database.getLogFile().logCheckpoint();
+        awaitOnDisk(hf1, 33);
+        Database.getBufferPool().transactionComplete(t1.getId(), false);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 33, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 33, false);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, InterruptedException {
+        // concurrent commits share log forces, and each one returns only
+        // once its records are in the log file
+        final int threads = 8, commits = 100;
+        final LogFile log = Database.getLogFile();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(log.getForceCount() <= threads * commits);
+
+        // the segment's first LSN, then a BEGIN and a COMMIT record per
+        // transaction: type, tid and LSN
+        assertEquals(8 + threads * commits * 2 * (4 + 8 + 8),
+                new File("log.0000000000000000").length());
+    }
+
+    // the log's segment files
+    List<String> segments() {
+        List<String> names = new ArrayList<String>();
+        for (String name : new File(".").list())
+            if (name.startsWith("log.") && name.length() == 4 + 16)
+                names.add(name);
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test public void TestSegmentTruncation()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setSegmentSize(256);
+        for (int i = 10; i < 30; i++)
+            doInsert(hf2, i, -1);
+
+        // *** Test:
+        // a checkpoint deletes the segments before the first record of
+        // the open transaction, and no more; crash: recovery reads on
+        // from one segment into the next to undo it
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3, 0);
+        for (int i = 30; i < 40; i++)
+            doInsert(hf2, i, -1);
+        List<String> before = segments();
+        Database.getLogFile().logCheckpoint();
+        List<String> after = segments();
+        assertTrue(after.size() < before.size());
+        assertFalse(after.contains("log.0000000000000000"));
+        assertTrue(after.contains(before.get(before.size() - 1)));
+        for (int i = 40; i < 50; i++)
+            doInsert(hf2, i, -1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 3, false);
+        for (int i = 10; i < 50; i++)
+            look(hf2, t, i, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
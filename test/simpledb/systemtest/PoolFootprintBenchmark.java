@@ -0,0 +1,62 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Heap memory held by the buffer pool after a scan-heavy workload: every
+ * page of a two-int-column table is read into a pool large enough to keep
+ * them all, then the table is scanned with SeqScan (which also keeps the
+ * Tuple objects it was handed on their pages), and finally every page is
+ * dirtied in one transaction to show the cost of the before images once pages
+ * are actually modified.  The retained heap is reported per cached page after
+ * each step.
+ *
+ * Not a unit test; run it directly (with a large enough heap, e.g. -Xmx2g):
+ * <pre>
+ *     java simpledb.systemtest.PoolFootprintBenchmark [pages]
+ * </pre>
+ */
+public class PoolFootprintBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int pageSize = BufferPool.getPageSize();
+
+        File f = File.createTempFile("footprint", ".dat");
+        f.deleteOnExit();
+        ScanBenchmark.writeFullTable(f, pages, pageSize);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(pages);
+
+        long base = SystemTestUtil.getMemoryFootprint();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < pages; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        report("after read", SystemTestUtil.getMemoryFootprint() - base, pages, pageSize);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        while (scan.hasNext())
+            scan.next();
+        scan.close();
+        bp.transactionComplete(tid);
+        report("after scan", SystemTestUtil.getMemoryFootprint() - base, pages, pageSize);
+
+        tid = new TransactionId();
+        for (int i = 0; i < pages; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE).markDirty(true, tid);
+        report("all pages dirty", SystemTestUtil.getMemoryFootprint() - base, pages, pageSize);
+        bp.transactionComplete(tid, false);
+        f.delete();
+    }
+
+    private static void report(String name, long bytes, int pages, int pageSize) {
+        System.out.printf("%-16s %6.1f MB retained, %6.0f bytes/page (%.2fx page size)%n",
+                name, bytes / 1048576.0, (double) bytes / pages, (double) bytes / pages / pageSize);
+    }
+}
@@ -0,0 +1,106 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import simpledb.*;
+
+/**
+ * Recovery time against log size.  Each round commits transactions that
+ * insert rows into a two-int-column heap table, leaves one more transaction
+ * open with its changes flushed, and "crashes": the database is reset and
+ * recover() is timed, redoing the log and undoing the open transaction,
+ * with 1, 2 and 4 redo threads.  The log and the table are restored
+ * from a copy before each recovery, so every run recovers the same log,
+ * the file "log" and its segments in the working directory; run it from a
+ * directory on the disk.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.RecoveryBenchmark [rowsPerTxn] [transactions...]
+ * </pre>
+ */
+public class RecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rowsPerTxn = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int[] sizes = { 1000, 4000, 16000 };
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+        int[] threads = { 1, 2, 4 };
+
+        File table = new File("recovery.dat");
+        File dir = new File(".");
+        File tableCopy = new File("recovery.dat.copy");
+        File logCopy = new File("logcopy");
+        logCopy.mkdir();
+        for (int txns : sizes) {
+            Database.reset();
+            table.delete();
+            HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+            for (int i = 0; i < txns; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int j = 0; j < rowsPerTxn; j++)
+                    Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                            Utility.getHeapTuple(new int[] { i, j }));
+                t.commit();
+            }
+            Transaction open = new Transaction();
+            open.start();
+            for (int j = 0; j < rowsPerTxn; j++)
+                Database.getBufferPool().insertTuple(open.getId(), hf.getId(),
+                        Utility.getHeapTuple(new int[] { -1, j }));
+            Database.getBufferPool().flushAllPages();
+            Files.copy(table.toPath(), tableCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            long logSize = copyLog(dir, logCopy);
+
+            for (int n : threads) {
+                Database.reset();
+                Files.copy(tableCopy.toPath(), table.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                copyLog(logCopy, dir);
+                Utility.openHeapFile(2, table);
+                LogFile lf = Database.getLogFile();
+                lf.setRedoThreads(n);
+                long start = System.nanoTime();
+                lf.recover();
+                double ms = (System.nanoTime() - start) / 1e6;
+                System.out.printf("%6d txns, %7.1f MB log, %d redo thread%s: recovery %8.1f ms%n",
+                        txns, logSize / 1e6, n, n == 1 ? " " : "s", ms);
+            }
+        }
+        Database.reset();
+        table.delete();
+        tableCopy.delete();
+        for (File f : logFiles(logCopy))
+            f.delete();
+        logCopy.delete();
+    }
+
+    /** Replace the log file and segments in to with those in from.
+        @return the bytes copied */
+    private static long copyLog(File from, File to) throws IOException {
+        for (File f : logFiles(to))
+            f.delete();
+        long size = 0;
+        for (File f : logFiles(from)) {
+            Files.copy(f.toPath(), new File(to, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            size += f.length();
+        }
+        return size;
+    }
+
+    private static File[] logFiles(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.equals("log") || name.startsWith("log.");
+            }
+        });
+    }
+}
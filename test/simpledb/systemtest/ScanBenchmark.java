@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import simpledb.*;
+
+/**
+ * Sequential scan throughput over a large two-int-column heap file.  The
+ * table is written directly in HeapPage format (every slot used), then it is
+ * scanned with SeqScan through a small buffer pool.  If the process may write
+ * /proc/sys/vm/drop_caches the OS page cache is dropped first so the scan is
+ * cold; otherwise the number reported is a warm scan.  Passing "mmap" scans
+ * the table as a memory-mapped HeapFile.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.ScanBenchmark [tableMB] [mmap]
+ * </pre>
+ */
+public class ScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int mb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        boolean mapped = args.length > 1 && args[1].equals("mmap");
+        int pageSize = BufferPool.getPageSize();
+        int pages = (int) ((long) mb * (1 << 20) / pageSize);
+
+        File f = File.createTempFile("scan", ".dat");
+        f.deleteOnExit();
+        writeFullTable(f, pages, pageSize);
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2), mapped);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        boolean cold = dropCaches();
+        long start = System.nanoTime();
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "");
+        scan.open();
+        long tuples = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            tuples++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%s %s scan: %d MB, %d pages, %d tuples in %.2fs = %.1f MB/s, %.0f pages/s%n",
+                cold ? "cold" : "warm", mapped ? "mmap" : "read", mb, pages, tuples, secs, mb / secs, pages / secs);
+        f.delete();
+    }
+
+    /** Writes pages full of (i, i) tuples in HeapPage format. */
+    static void writeFullTable(File f, int pages, int pageSize) throws IOException {
+        writeFullTable(f, pages, pageSize, 0);
+    }
+
+    /**
+     * As above, with the first column taking each of 0..keys-1 equally often,
+     * in a scattered order (v * 1000003 mod keys).
+     */
+    static void writeFullTable(File f, int pages, int pageSize, int keys) throws IOException {
+        int tupleSize = 8;
+        int slots = (pageSize * 8) / (tupleSize * 8 + 1);
+        int headerSize = (slots + 7) / 8;
+        byte[] header = new byte[headerSize];
+        for (int i = 0; i < slots; i++)
+            header[i / 8] |= (byte) (1 << (i % 8));
+        byte[] padding = new byte[pageSize - headerSize - slots * tupleSize];
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 20));
+        int v = 0;
+        for (int p = 0; p < pages; p++) {
+            out.write(header);
+            for (int i = 0; i < slots; i++, v++) {
+                out.writeInt(keys == 0 ? v : (int) ((long) v * 1000003 % keys));
+                out.writeInt(v);
+            }
+            out.write(padding);
+        }
+        out.close();
+    }
+
+    static boolean dropCaches() {
+        try {
+            FileWriter w = new FileWriter("/proc/sys/vm/drop_caches");
+            w.write("3\n");
+            w.close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb.systemtest;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * ORDER BY over a stream of two-int-column tuples with random keys, sorted
+ * on the first column and then the second.  Reports the time to produce
+ * every sorted tuple and whether OrderBy wrote sorted runs to disk under the
+ * given memory budget.  Given a limit, it instead times ORDER BY ... LIMIT
+ * both as a TopN and as a full sort under a Limit.
+ *
+ * Not a unit test; run it directly (with a large enough heap, e.g. -Xmx2g):
+ * <pre>
+ *     java simpledb.systemtest.SortBenchmark [rows] [budgetMB] [limit]
+ * </pre>
+ */
+public class SortBenchmark {
+
+    /** rows random tuples, the same ones again after rewind(). */
+    static class RandomTuples extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td = Utility.getTupleDesc(2);
+        private final int rows;
+        private Random r;
+        private int made;
+
+        RandomTuples(int rows) {
+            this.rows = rows;
+        }
+
+        public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+            rewind();
+            super.open();
+        }
+
+        public void rewind() {
+            r = new Random(1);
+            made = 0;
+        }
+
+        protected Tuple fetchNext() {
+            if (made == rows)
+                return null;
+            made++;
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(r.nextInt(1 << 20)));
+            t.setField(1, new IntField(r.nextInt()));
+            return t;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        if (args.length > 1)
+            OrderBy.setMemoryBudget(Long.parseLong(args[1]) << 20);
+        if (args.length > 2) {
+            topN(rows, Integer.parseInt(args[2]));
+            return;
+        }
+
+        long start = System.nanoTime();
+        OrderBy sort = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true },
+                new RandomTuples(rows));
+        sort.open();
+        long out = 0;
+        int prev = Integer.MIN_VALUE;
+        while (sort.hasNext()) {
+            int k = ((IntField) sort.next().getField(0)).getValue();
+            if (k < prev)
+                throw new RuntimeException("out of order at row " + out);
+            prev = k;
+            out++;
+        }
+        boolean spilled = sort.isSpilled();
+        sort.close();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d rows sorted in %.1fs (%s, budget %d MB)%n",
+                out, secs, spilled ? "spilled" : "in memory", OrderBy.getMemoryBudget() >> 20);
+    }
+
+    static void topN(int rows, int limit) throws Exception {
+        int[] fields = { 0, 1 };
+        boolean[] asc = { true, true };
+        for (int round = 0; round < 2; round++) {
+            OpIterator[] plans = {
+                    new TopN(fields, asc, limit, 0, new RandomTuples(rows)),
+                    new Limit(limit, 0, new OrderBy(fields, asc, new RandomTuples(rows))) };
+            for (OpIterator plan : plans) {
+                long start = System.nanoTime();
+                plan.open();
+                long out = 0;
+                while (plan.hasNext()) {
+                    plan.next();
+                    out++;
+                }
+                plan.close();
+                double secs = (System.nanoTime() - start) / 1e9;
+                if (round == 1)
+                    System.out.printf("%s: top %d of %d rows in %.2fs%n",
+                            plan.getClass().getSimpleName(), out, rows, secs);
+            }
+        }
+    }
+}
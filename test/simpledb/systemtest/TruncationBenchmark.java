@@ -0,0 +1,64 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Checkpoint time, truncation included, while long transactions hold the
+ * log back.  Transactions that insert rows into a two-int-column heap
+ * table are committed between checkpoints, and one more stays open from
+ * each checkpoint to the next, so each checkpoint truncates the log up to
+ * the previous one and keeps the log written since.  The log is the file
+ * "log" in the working directory; run it from a directory on the disk.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.TruncationBenchmark [rowsPerTxn] [transactions] [checkpoints]
+ * </pre>
+ */
+public class TruncationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rowsPerTxn = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int txns = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int checkpoints = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Database.reset();
+        File table = new File("truncation.dat");
+        table.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(table.getAbsolutePath(), 2);
+        LogFile log = Database.getLogFile();
+        int committed = 0;
+        Transaction open = null;
+        long total = 0, longest = 0;
+        for (int c = 1; c <= checkpoints; c++) {
+            if (open != null)
+                open.commit();
+            open = new Transaction();
+            open.start();
+            Database.getBufferPool().insertTuple(open.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[] { -c, 0 }));
+            for (int until = (int) ((long) txns * c / checkpoints); committed < until; committed++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int j = 0; j < rowsPerTxn; j++)
+                    Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                            Utility.getHeapTuple(new int[] { committed, j }));
+                t.commit();
+            }
+            long start = System.nanoTime();
+            log.logCheckpoint();
+            long ns = System.nanoTime() - start;
+            total += ns;
+            longest = Math.max(longest, ns);
+            System.out.printf("%6d txns, %7.1f MB logged: checkpoint %8.1f ms%n",
+                    committed, log.logEnd() / 1e6, ns / 1e6);
+        }
+        System.out.printf("%d checkpoints: mean %.1f ms, max %.1f ms%n",
+                checkpoints, total / 1e6 / checkpoints, longest / 1e6);
+        open.commit();
+        Database.reset();
+        table.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Single-row updates: each transaction replaces one random row of a
+ * two-int-column heap table (a delete and an insert, which is how SimpleDB
+ * updates) and commits.  Reports the log bytes written per transaction and
+ * the commit latency, with HeapPage changes logged as tuple records and,
+ * for comparison, as before and after page images.  The log is the file
+ * "log" in the working directory, so run it from a directory on the disk.
+ *
+ * Not a unit test; run it directly:
+ * <pre>
+ *     java simpledb.systemtest.UpdateBenchmark [rows] [transactions]
+ * </pre>
+ */
+public class UpdateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int txns = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        for (boolean tupleLogging : new boolean[] { false, true }) {
+            Database.reset();
+            BufferPool.setTupleLogging(tupleLogging);
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+            Database.resetBufferPool(hf.numPages() + 16);
+
+            // the rows, with their record ids, read once up front
+            ArrayList<Tuple> current = new ArrayList<Tuple>();
+            Transaction scan = new Transaction();
+            scan.start();
+            DbFileIterator it = hf.iterator(scan.getId());
+            it.open();
+            while (it.hasNext())
+                current.add(it.next());
+            it.close();
+            scan.commit();
+
+            Random r = new Random(1);
+            LogFile log = Database.getLogFile();
+            long logStart = log.logEnd();
+            long commitNanos = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < txns; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                int row = r.nextInt(current.size());
+                Tuple old = current.get(row);
+                Tuple updated = new Tuple(old.getTupleDesc());
+                updated.setField(0, old.getField(0));
+                updated.setField(1, new IntField(((IntField) old.getField(1)).getValue() + 1));
+                Database.getBufferPool().deleteTuple(t.getId(), old);
+                Database.getBufferPool().insertTuple(t.getId(), hf.getId(), updated);
+                current.set(row, updated);
+                long c = System.nanoTime();
+                t.commit();
+                commitNanos += System.nanoTime() - c;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-12s %7.0f log bytes/txn, commit %6.1f us, %6.0f txn/s%n",
+                    tupleLogging ? "tuple log:" : "page images:",
+                    (double) (log.logEnd() - logStart) / txns, commitNanos / 1e3 / txns, txns / elapsed);
+        }
+        BufferPool.setTupleLogging(true);
+    }
+}